@@ -0,0 +1,215 @@
+package cluster.persistence;
+
+import akka.persistence.journal.Tagged;
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * {@link FlightEvents} recorded with Java Flight Recorder.
+ * <p>
+ * The events are in the categories Akka Persistence / Entity and Akka Persistence / Read Side and are enabled
+ * like any other event in a recording's settings. Stack traces are off, durations are in nanoseconds and projection lag in milliseconds.
+ */
+class JfrFlightEvents extends FlightEvents {
+    private static final String entityCategory = "Entity";
+    private static final String readSideCategory = "Read Side";
+
+    @Override
+    void commandReceived(String shardId, String entityId, String command) {
+        CommandReceived event = new CommandReceived();
+        if (event.shouldCommit()) {
+            event.shardId = shardId;
+            event.entityId = entityId;
+            event.command = command;
+            event.commit();
+        }
+    }
+
+    @Override
+    void persistStarted(String shardId, String entityId, Tagged taggedEvent) {
+        PersistStarted event = new PersistStarted();
+        if (event.shouldCommit()) {
+            event.shardId = shardId;
+            event.entityId = entityId;
+            event.tag = taggedEvent.tags().mkString(",");
+            event.commit();
+        }
+    }
+
+    @Override
+    void persisted(String shardId, String entityId, Tagged taggedEvent, long sequenceNr, long persistNanos) {
+        Persisted event = new Persisted();
+        if (event.shouldCommit()) {
+            event.shardId = shardId;
+            event.entityId = entityId;
+            event.tag = taggedEvent.tags().mkString(",");
+            event.sequenceNr = sequenceNr;
+            event.persistTime = persistNanos;
+            event.commit();
+        }
+    }
+
+    @Override
+    void commandAcked(String shardId, String entityId, String command, long commandNanos) {
+        CommandAcked event = new CommandAcked();
+        if (event.shouldCommit()) {
+            event.shardId = shardId;
+            event.entityId = entityId;
+            event.command = command;
+            event.commandTime = commandNanos;
+            event.commit();
+        }
+    }
+
+    @Override
+    void recovered(String shardId, String entityId, long replayedEvents, long recoveryNanos) {
+        Recovered event = new Recovered();
+        if (event.shouldCommit()) {
+            event.shardId = shardId;
+            event.entityId = entityId;
+            event.replayedEvents = replayedEvents;
+            event.recoveryTime = recoveryNanos;
+            event.commit();
+        }
+    }
+
+    @Override
+    void projected(String tag, String shardId, String persistenceId, long sequenceNr, long lagMillis, long handleNanos) {
+        Projected event = new Projected();
+        if (event.shouldCommit()) {
+            event.tag = tag;
+            event.shardId = shardId;
+            event.entityId = persistenceId;
+            event.sequenceNr = sequenceNr;
+            event.lag = lagMillis;
+            event.handleTime = handleNanos;
+            event.commit();
+        }
+    }
+
+    @Override
+    void offsetCommitted(String tag, String shardId, long commitNanos) {
+        OffsetCommitted event = new OffsetCommitted();
+        if (event.shouldCommit()) {
+            event.tag = tag;
+            event.shardId = shardId;
+            event.commitTime = commitNanos;
+            event.commit();
+        }
+    }
+
+    @Name("cluster.persistence.CommandReceived")
+    @Label("Command Received")
+    @Category({"Akka Persistence", entityCategory})
+    @StackTrace(false)
+    static class CommandReceived extends Event {
+        @Label("Shard")
+        String shardId;
+        @Label("Entity")
+        String entityId;
+        @Label("Command")
+        String command;
+    }
+
+    @Name("cluster.persistence.PersistStarted")
+    @Label("Persist Started")
+    @Category({"Akka Persistence", entityCategory})
+    @StackTrace(false)
+    static class PersistStarted extends Event {
+        @Label("Shard")
+        String shardId;
+        @Label("Entity")
+        String entityId;
+        @Label("Tag")
+        String tag;
+    }
+
+    @Name("cluster.persistence.Persisted")
+    @Label("Persisted")
+    @Category({"Akka Persistence", entityCategory})
+    @StackTrace(false)
+    static class Persisted extends Event {
+        @Label("Shard")
+        String shardId;
+        @Label("Entity")
+        String entityId;
+        @Label("Tag")
+        String tag;
+        @Label("Sequence Number")
+        long sequenceNr;
+        @Label("Persist Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long persistTime;
+    }
+
+    @Name("cluster.persistence.CommandAcked")
+    @Label("Command Acked")
+    @Category({"Akka Persistence", entityCategory})
+    @StackTrace(false)
+    static class CommandAcked extends Event {
+        @Label("Shard")
+        String shardId;
+        @Label("Entity")
+        String entityId;
+        @Label("Command")
+        String command;
+        @Label("Time From Receipt")
+        @Timespan(Timespan.NANOSECONDS)
+        long commandTime;
+    }
+
+    @Name("cluster.persistence.Recovered")
+    @Label("Entity Recovered")
+    @Category({"Akka Persistence", entityCategory})
+    @StackTrace(false)
+    static class Recovered extends Event {
+        @Label("Shard")
+        String shardId;
+        @Label("Entity")
+        String entityId;
+        @Label("Replayed Events")
+        long replayedEvents;
+        @Label("Recovery Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long recoveryTime;
+    }
+
+    @Name("cluster.persistence.Projected")
+    @Label("Tag Event Projected")
+    @Category({"Akka Persistence", readSideCategory})
+    @StackTrace(false)
+    static class Projected extends Event {
+        @Label("Tag")
+        String tag;
+        @Label("Read-Side Shard")
+        String shardId;
+        @Label("Entity")
+        String entityId;
+        @Label("Sequence Number")
+        long sequenceNr;
+        @Label("Lag")
+        @Timespan(Timespan.MILLISECONDS)
+        long lag;
+        @Label("Handle Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long handleTime;
+    }
+
+    @Name("cluster.persistence.OffsetCommitted")
+    @Label("Tag Offset Committed")
+    @Category({"Akka Persistence", readSideCategory})
+    @StackTrace(false)
+    static class OffsetCommitted extends Event {
+        @Label("Tag")
+        String tag;
+        @Label("Read-Side Shard")
+        String shardId;
+        @Label("Commit Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long commitTime;
+    }
+}
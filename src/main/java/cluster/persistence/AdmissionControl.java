@@ -0,0 +1,190 @@
+package cluster.persistence;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import com.typesafe.config.Config;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Per-node limit on entity commands that have been accepted and not yet persisted.
+ * <p>
+ * Each entity asks for a slot when a command arrives and gives it back with the command's persist latency
+ * when the event is written. Commands beyond the limit are rejected at once with
+ * {@link EntityMessage.CommandRejected} rather than waiting in entity stashes and mailboxes.
+ * <p>
+ * The limit adapts to the persist latency. With {@code vegas} it grows while latency stays close to the
+ * lowest latency seen and shrinks as the estimated queue of waiting commands grows. With {@code aimd} it
+ * grows by one per fast persist and shrinks by {@code backoff-ratio} per persist slower than
+ * {@code latency-threshold}. When disabled, commands are counted but never rejected, so the count of
+ * commands waiting to be persisted is available for draining the node at shutdown. The current limit is published as the JMX attribute
+ * {@code cluster.persistence:type=AdmissionControl,address=<node address>/Limit}.
+ */
+class AdmissionControl implements Extension, AdmissionControlMBean {
+    static final Id id = new Id();
+
+    private final boolean enabled;
+    private final boolean vegas;
+    private final int minLimit;
+    private final int maxLimit;
+    private final int probeSamples;
+    private final long latencyThresholdNanos;
+    private final double backoffRatio;
+    private double limit;
+    private int inFlight;
+    private long admitted;
+    private long rejected;
+    private long samples;
+    private long latencyNanos;
+    private long minLatencyNanos = Long.MAX_VALUE;
+
+    private AdmissionControl(ExtendedActorSystem system) {
+        Config config = system.settings().config().getConfig("entity-admission");
+        enabled = config.getBoolean("enabled");
+        vegas = config.getString("algorithm").equals("vegas");
+        minLimit = config.getInt("min-limit");
+        maxLimit = config.getInt("max-limit");
+        limit = config.getInt("initial-limit");
+        probeSamples = config.getInt("vegas.probe-samples");
+        latencyThresholdNanos = config.getDuration("aimd.latency-threshold").toNanos();
+        backoffRatio = config.getDouble("aimd.backoff-ratio");
+
+        if (enabled) {
+            register(system);
+        }
+    }
+
+    static AdmissionControl get(ActorSystem system) {
+        return id.get(system);
+    }
+
+    /**
+     * @return true when the command is admitted and holds a slot until {@link #release} is called
+     */
+    synchronized boolean tryAcquire() {
+        if (enabled && inFlight >= (int) limit) {
+            rejected++;
+            return false;
+        }
+        inFlight++;
+        admitted++;
+        return true;
+    }
+
+    /**
+     * Give back the slot of a persisted command and adapt the limit to its latency.
+     */
+    synchronized void release(long latencyNanos) {
+        inFlight--;
+        if (enabled) {
+            this.latencyNanos = latencyNanos;
+            if (vegas) {
+                vegas(latencyNanos);
+            } else {
+                aimd(latencyNanos);
+            }
+            limit = Math.max(minLimit, Math.min(maxLimit, limit));
+        }
+    }
+
+    /**
+     * Give back the slot of a command that was not persisted, without a latency sample.
+     */
+    synchronized void release() {
+        inFlight--;
+    }
+
+    private void vegas(long latencyNanos) {
+        if (++samples % probeSamples == 0) {
+            minLatencyNanos = latencyNanos;
+        }
+        minLatencyNanos = Math.min(minLatencyNanos, Math.max(1, latencyNanos));
+
+        double queued = limit * (1 - (double) minLatencyNanos / Math.max(1, latencyNanos));
+        double log = Math.max(1, Math.log10(limit));
+
+        if (queued > 6 * log) {
+            limit -= log;
+        } else if (inFlight * 2 < limit) {
+            return;
+        } else if (queued <= log) {
+            limit += 6 * log;
+        } else if (queued < 3 * log) {
+            limit += log;
+        }
+    }
+
+    private void aimd(long latencyNanos) {
+        if (latencyNanos > latencyThresholdNanos) {
+            limit *= backoffRatio;
+        } else if (inFlight * 2 >= limit) {
+            limit += 1;
+        }
+    }
+
+    private void register(ExtendedActorSystem system) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(String.format("cluster.persistence:type=AdmissionControl,address=%s",
+                    ObjectName.quote(system.provider().getDefaultAddress().toString())));
+            server.registerMBean(this, name);
+            system.registerOnTermination(() -> {
+                try {
+                    server.unregisterMBean(name);
+                } catch (JMException e) {
+                    system.log().warning("Unregister {} failed, {}", name, e.getMessage());
+                }
+            });
+        } catch (JMException e) {
+            system.log().warning("Register admission control MBean failed, {}", e.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    @Override
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    @Override
+    public synchronized long getAdmitted() {
+        return admitted;
+    }
+
+    @Override
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    @Override
+    public synchronized double getLatencyMillis() {
+        return latencyNanos / 1e6;
+    }
+
+    @Override
+    public synchronized double getMinLatencyMillis() {
+        return minLatencyNanos == Long.MAX_VALUE ? 0 : minLatencyNanos / 1e6;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s[limit %d, in flight %d, admitted %d, rejected %d]",
+                getClass().getSimpleName(), (int) limit, inFlight, admitted, rejected);
+    }
+
+    static class Id extends AbstractExtensionId<AdmissionControl> {
+        @Override
+        public AdmissionControl createExtension(ExtendedActorSystem system) {
+            return new AdmissionControl(system);
+        }
+    }
+}
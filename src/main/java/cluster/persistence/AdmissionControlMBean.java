@@ -0,0 +1,18 @@
+package cluster.persistence;
+
+/**
+ * JMX view of a node's {@link AdmissionControl}.
+ */
+public interface AdmissionControlMBean {
+    int getLimit();
+
+    int getInFlight();
+
+    long getAdmitted();
+
+    long getRejected();
+
+    double getLatencyMillis();
+
+    double getMinLatencyMillis();
+}
@@ -0,0 +1,127 @@
+package cluster.persistence;
+
+import akka.actor.AbstractLoggingActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scatters a set of queries to one target, gathers the answers and replies with one merged
+ * {@link EntityMessage.BulkQueryAck}, then stops.
+ * <p>
+ * It is used at both levels of a bulk query: on the client node it sends one {@link EntityMessage.ShardQuery}
+ * per shard to the shard region, and inside a shard it sends one {@link EntityMessage.Query} per entity to
+ * the local shard. When the deadline passes it replies with what it has and lists the rest as timed out.
+ */
+class BulkQueryActor extends AbstractLoggingActor {
+    private final ActorRef target;
+    private final List<?> queries;
+    private final long timeoutMillis;
+    private final ActorRef replyTo;
+    private final Set<Entity.Id> pending = new HashSet<>();
+    private final List<Entity> entities = new ArrayList<>();
+    private final List<Entity.Id> notFound = new ArrayList<>();
+    private final List<Entity.Id> timedOut = new ArrayList<>();
+    private Cancellable deadline;
+
+    BulkQueryActor(ActorRef target, List<?> queries, long timeoutMillis, ActorRef replyTo) {
+        this.target = target;
+        this.queries = queries;
+        this.timeoutMillis = timeoutMillis;
+        this.replyTo = replyTo;
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(EntityMessage.QueryAck.class, this::queryAck)
+                .match(EntityMessage.QueryAckNotFound.class, this::queryAckNotFound)
+                .match(EntityMessage.BulkQueryAck.class, this::bulkQueryAck)
+                .matchEquals("deadline", d -> reply())
+                .build();
+    }
+
+    private void queryAck(EntityMessage.QueryAck queryAck) {
+        if (pending.remove(queryAck.entity.id)) {
+            entities.add(queryAck.entity);
+            replyIfComplete();
+        }
+    }
+
+    private void queryAckNotFound(EntityMessage.QueryAckNotFound queryAckNotFound) {
+        if (pending.remove(queryAckNotFound.id)) {
+            notFound.add(queryAckNotFound.id);
+            replyIfComplete();
+        }
+    }
+
+    private void bulkQueryAck(EntityMessage.BulkQueryAck bulkQueryAck) {
+        bulkQueryAck.entities.forEach(entity -> {
+            if (pending.remove(entity.id)) {
+                entities.add(entity);
+            }
+        });
+        bulkQueryAck.notFound.forEach(id -> {
+            if (pending.remove(id)) {
+                notFound.add(id);
+            }
+        });
+        bulkQueryAck.timedOut.forEach(id -> {
+            if (pending.remove(id)) {
+                timedOut.add(id);
+            }
+        });
+        replyIfComplete();
+    }
+
+    private void replyIfComplete() {
+        if (pending.isEmpty()) {
+            reply();
+        }
+    }
+
+    private void reply() {
+        timedOut.addAll(pending);
+        replyTo.tell(new EntityMessage.BulkQueryAck(entities, notFound, timedOut), context().parent());
+        context().stop(self());
+    }
+
+    @Override
+    public void preStart() {
+        queries.forEach(query -> {
+            if (query instanceof EntityMessage.Query) {
+                pending.add(((EntityMessage.Query) query).id);
+            } else if (query instanceof EntityMessage.ShardQuery) {
+                pending.addAll(((EntityMessage.ShardQuery) query).ids);
+            }
+            target.tell(query, self());
+        });
+
+        if (pending.isEmpty()) {
+            reply();
+        } else {
+            deadline = context().system().scheduler().scheduleOnce(
+                    FiniteDuration.create(timeoutMillis, TimeUnit.MILLISECONDS),
+                    self(),
+                    "deadline",
+                    context().dispatcher(),
+                    ActorRef.noSender()
+            );
+        }
+    }
+
+    @Override
+    public void postStop() {
+        if (deadline != null) {
+            deadline.cancel();
+        }
+    }
+
+    static Props props(ActorRef target, List<?> queries, long timeoutMillis, ActorRef replyTo) {
+        return Props.create(BulkQueryActor.class, target, queries, timeoutMillis, replyTo);
+    }
+}
@@ -1,26 +1,76 @@
 package cluster.persistence;
 
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
 import com.datastax.driver.core.Cluster;
 import com.datastax.driver.core.Session;
-import com.typesafe.config.ConfigFactory;
 import com.typesafe.config.ConfigValueType;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
 
-class Cassandra {
-    static Session session() {
+/**
+ * The Cassandra session of the node for the queries made outside the journal and snapshot plugins, shared by
+ * the read-side tag processors and {@link JournalRetention} so the node has one driver cluster.
+ * <p>
+ * The session is connected on first use. The driver initializes its cluster on the thread that connects, so
+ * that runs on {@code akka.actor.default-blocking-io-dispatcher} and callers get a stage that completes once
+ * connected. A failed connect is tried again by the next use. The cluster is closed when the actor system
+ * terminates.
+ */
+class Cassandra implements Extension {
+    static final Id id = new Id();
+
+    private final com.typesafe.config.Config config;
+    private final Executor blockingIo;
+    private CompletableFuture<Session> session;
+
+    private Cassandra(ExtendedActorSystem actorSystem) {
+        config = actorSystem.settings().config();
+        blockingIo = actorSystem.dispatchers().lookup("akka.actor.default-blocking-io-dispatcher");
+        actorSystem.registerOnTermination(this::close);
+    }
+
+    static Cassandra get(ActorSystem actorSystem) {
+        return id.get(actorSystem);
+    }
+
+    synchronized CompletionStage<Session> session() {
+        if (session == null || session.isCompletedExceptionally()) {
+            session = CompletableFuture.supplyAsync(this::connect, blockingIo);
+        }
+        return session;
+    }
+
+    private Session connect() {
         Cluster.Builder builder = Cluster.builder();
-        Config.contactPoints().forEach(builder::addContactPoint);
-        builder.withPort(Config.port());
-        return builder.build().connect(); //Config.keyspace());
+        Config.contactPoints(config).forEach(builder::addContactPoint);
+        builder.withPort(Config.port(config));
+        Cluster cluster = builder.build();
+        try {
+            return cluster.connect(); //Config.keyspace(config));
+        } catch (RuntimeException e) {
+            cluster.close();
+            throw e;
+        }
+    }
+
+    private synchronized void close() {
+        if (session != null) {
+            session.thenAccept(connected -> connected.getCluster().close());
+        }
     }
 
     private static class Config {
-        static List<String> contactPoints() {
+        static List<String> contactPoints(com.typesafe.config.Config config) {
             List<String> contactPoints = new ArrayList<>();
 
-            ConfigFactory.load().getList("cassandra-journal.contact-points")
+            config.getList("cassandra-journal.contact-points")
                     .forEach(value -> {
                         if (value.valueType().equals(ConfigValueType.STRING)) {
                             contactPoints.add((String) value.unwrapped());
@@ -30,12 +80,19 @@ class Cassandra {
             return contactPoints;
         }
 
-        static int port() {
-            return ConfigFactory.load().getInt("cassandra-journal.port");
+        static int port(com.typesafe.config.Config config) {
+            return config.getInt("cassandra-journal.port");
+        }
+
+        static String keyspace(com.typesafe.config.Config config) {
+            return config.getString("cassandra-journal.keyspace");
         }
+    }
 
-        static String keyspace() {
-            return ConfigFactory.load().getString("cassandra-journal.keyspace");
+    static class Id extends AbstractExtensionId<Cassandra> {
+        @Override
+        public Cassandra createExtension(ExtendedActorSystem system) {
+            return new Cassandra(system);
         }
     }
 }
@@ -0,0 +1,319 @@
+package cluster.persistence;
+
+import akka.actor.AbstractLoggingActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import akka.cluster.Cluster;
+import akka.cluster.ClusterEvent;
+import akka.cluster.Member;
+import akka.cluster.MemberStatus;
+import akka.cluster.metrics.ClusterMetricsChanged;
+import akka.cluster.metrics.ClusterMetricsExtension;
+import akka.cluster.metrics.NodeMetrics;
+import akka.cluster.metrics.StandardMetrics;
+import akka.cluster.pubsub.DistributedPubSub;
+import akka.cluster.pubsub.DistributedPubSubMediator;
+import akka.cluster.sharding.ClusterSharding;
+import akka.cluster.sharding.ShardRegion;
+import akka.pattern.Patterns;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.typesafe.config.Config;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.StringWriter;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Runs on every node, publishes the metrics of its node and keeps the latest metrics of all nodes.
+ * <p>
+ * Every {@code interval} the node's CPU and heap use from akka-cluster-metrics, the shards and entities of each
+ * of its shard regions, its persist, recovery and projection rates, its projection lag per tag and its
+ * admission control state are published to all nodes with pub-sub. Reports of nodes that have left the cluster
+ * or have not published for three intervals are dropped. {@link GetClusterMetrics} is answered with the
+ * cluster-wide view as JSON, the membership with its leader and oldest node, totals over all nodes and the
+ * report of each node. {@link ClusterMetricsRoutes} serves it on the management HTTP endpoint.
+ * <p>
+ * Membership changes are logged once as they happen.
+ */
+class ClusterMetricsCollectorActor extends AbstractLoggingActor {
+    static final String topic = "cluster-node-metrics";
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private final Cluster cluster = Cluster.get(context().system());
+    private final NodeMetricsRecorder recorder = NodeMetricsRecorder.get(context().system());
+    private final FiniteDuration interval;
+    private final Duration askTimeout;
+    private final long staleMillis;
+    private final Map<String, NodeReport> reports = new HashMap<>();
+    private double cpu = -1;
+    private long heapUsed = -1;
+    private long heapMax = -1;
+    private Cancellable collect;
+
+    ClusterMetricsCollectorActor() {
+        Config config = context().system().settings().config().getConfig("cluster-metrics-collector");
+        interval = FiniteDuration.create(config.getDuration("interval").toNanos(), TimeUnit.NANOSECONDS);
+        askTimeout = config.getDuration("region-state-timeout");
+        staleMillis = interval.toMillis() * 3;
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .matchEquals("collect", c -> collect())
+                .match(ClusterMetricsChanged.class, this::clusterMetrics)
+                .match(NodeReport.class, this::nodeReport)
+                .match(GetClusterMetrics.class, g -> sender().tell(json(), self()))
+                .match(ClusterEvent.MemberRemoved.class, this::memberRemoved)
+                .match(ClusterEvent.ClusterDomainEvent.class, event -> log().info("{} sent to {}", event, cluster.selfMember()))
+                .match(DistributedPubSubMediator.SubscribeAck.class, ack -> log().debug("{}", ack))
+                .build();
+    }
+
+    private void clusterMetrics(ClusterMetricsChanged clusterMetricsChanged) {
+        for (NodeMetrics nodeMetrics : clusterMetricsChanged.getNodeMetrics()) {
+            if (nodeMetrics.address().equals(cluster.selfAddress())) {
+                StandardMetrics.Cpu cpuMetrics = StandardMetrics.extractCpu(nodeMetrics);
+                if (cpuMetrics != null && cpuMetrics.cpuCombined().isDefined()) {
+                    cpu = (Double) cpuMetrics.cpuCombined().get();
+                }
+                StandardMetrics.HeapMemory heapMetrics = StandardMetrics.extractHeapMemory(nodeMetrics);
+                if (heapMetrics != null) {
+                    heapUsed = heapMetrics.used();
+                    heapMax = heapMetrics.max().isDefined() ? (Long) heapMetrics.max().get() : -1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Ask each shard region of this node for its shards and entities, then publish the node's report.
+     */
+    private void collect() {
+        NodeMetricsRecorder.Rates rates = recorder.take();
+        AdmissionControl admissionControl = AdmissionControl.get(context().system());
+        String address = cluster.selfAddress().toString();
+        double cpu = this.cpu;
+        long heapUsed = this.heapUsed;
+        long heapMax = this.heapMax;
+        ActorRef mediator = DistributedPubSub.get(context().system()).mediator();
+        ClusterSharding clusterSharding = ClusterSharding.get(context().system());
+        Map<String, Integer> shards = new TreeMap<>();
+        Map<String, Integer> entities = new TreeMap<>();
+        CompletableFuture<?>[] states = clusterSharding.getShardTypeNames().stream()
+                .map(typeName -> Patterns.ask(clusterSharding.shardRegion(typeName), ShardRegion.getShardRegionStateInstance(), askTimeout)
+                        .thenAccept(state -> {
+                            Set<ShardRegion.ShardState> shardStates = ((ShardRegion.CurrentShardRegionState) state).getShards();
+                            synchronized (shards) {
+                                shards.put(typeName, shardStates.size());
+                                entities.put(typeName, (int) shardStates.stream()
+                                        .flatMap(shardState -> shardState.getEntityIds().stream())
+                                        .filter(entityId -> !EntityMessage.isShardAgentEntityId(entityId))
+                                        .count());
+                            }
+                        })
+                        .exceptionally(e -> {
+                            log().warning("Shard region state of {} not available, {}", typeName, e.getMessage());
+                            return null;
+                        })
+                        .toCompletableFuture())
+                .toArray(CompletableFuture[]::new);
+        CompletableFuture.allOf(states).thenRun(() -> {
+            NodeReport nodeReport;
+            synchronized (shards) {
+                nodeReport = new NodeReport(address, System.currentTimeMillis(), cpu, heapUsed, heapMax,
+                        new TreeMap<>(shards), new TreeMap<>(entities), rates.persistedPerSecond, rates.recoveriesPerSecond,
+                        rates.replayedPerSecond, rates.projectedPerSecond, new TreeMap<>(rates.projectionLagMillis),
+                        admissionControl.getLimit(), admissionControl.getInFlight());
+            }
+            mediator.tell(new DistributedPubSubMediator.Publish(topic, nodeReport), ActorRef.noSender());
+        });
+    }
+
+    private void nodeReport(NodeReport nodeReport) {
+        reports.put(nodeReport.address, nodeReport);
+    }
+
+    private void memberRemoved(ClusterEvent.MemberRemoved memberRemoved) {
+        log().info("{} sent to {}", memberRemoved, cluster.selfMember());
+        reports.remove(memberRemoved.member().address().toString());
+    }
+
+    private String json() throws IOException {
+        long now = System.currentTimeMillis();
+        reports.values().removeIf(nodeReport -> now - nodeReport.timestampMillis > staleMillis);
+        ClusterEvent.CurrentClusterState state = cluster.state();
+        List<Member> members = new ArrayList<>();
+        state.getMembers().forEach(members::add);
+        Member oldest = members.stream()
+                .filter(member -> member.status().equals(MemberStatus.up()))
+                .reduce((older, member) -> older.isOlderThan(member) ? older : member)
+                .orElse(null);
+
+        StringWriter json = new StringWriter();
+        try (JsonGenerator generator = jsonFactory.createGenerator(json)) {
+            generator.writeStartObject();
+            generator.writeNumberField("timestamp", now);
+            generator.writeStringField("selfNode", cluster.selfAddress().toString());
+
+            generator.writeArrayFieldStart("members");
+            for (Member member : members) {
+                generator.writeStartObject();
+                generator.writeStringField("node", member.address().toString());
+                generator.writeStringField("status", member.status().toString());
+                generator.writeBooleanField("leader", member.address().equals(state.getLeader()));
+                generator.writeBooleanField("oldest", member.equals(oldest));
+                generator.writeBooleanField("reachable", !state.getUnreachable().contains(member));
+                generator.writeArrayFieldStart("roles");
+                for (String role : member.getRoles()) {
+                    generator.writeString(role);
+                }
+                generator.writeEndArray();
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+
+            generator.writeObjectFieldStart("totals");
+            generator.writeNumberField("nodesReporting", reports.size());
+            writeSums(generator, "shards", nodeReport -> nodeReport.shards);
+            writeSums(generator, "entities", nodeReport -> nodeReport.entities);
+            generator.writeNumberField("persistedPerSecond", sum(nodeReport -> nodeReport.persistedPerSecond));
+            generator.writeNumberField("recoveriesPerSecond", sum(nodeReport -> nodeReport.recoveriesPerSecond));
+            generator.writeNumberField("replayedPerSecond", sum(nodeReport -> nodeReport.replayedPerSecond));
+            generator.writeNumberField("projectedPerSecond", sum(nodeReport -> nodeReport.projectedPerSecond));
+            generator.writeNumberField("maxProjectionLagMillis", reports.values().stream()
+                    .flatMap(nodeReport -> nodeReport.projectionLagMillis.values().stream())
+                    .mapToLong(Long::longValue)
+                    .max()
+                    .orElse(0));
+            generator.writeEndObject();
+
+            generator.writeArrayFieldStart("nodes");
+            for (NodeReport nodeReport : new TreeMap<>(reports).values()) {
+                generator.writeStartObject();
+                generator.writeStringField("node", nodeReport.address);
+                generator.writeNumberField("ageMillis", now - nodeReport.timestampMillis);
+                generator.writeNumberField("cpu", nodeReport.cpu);
+                generator.writeNumberField("heapUsed", nodeReport.heapUsed);
+                generator.writeNumberField("heapMax", nodeReport.heapMax);
+                writeCounts(generator, "shards", nodeReport.shards);
+                writeCounts(generator, "entities", nodeReport.entities);
+                generator.writeNumberField("persistedPerSecond", nodeReport.persistedPerSecond);
+                generator.writeNumberField("recoveriesPerSecond", nodeReport.recoveriesPerSecond);
+                generator.writeNumberField("replayedPerSecond", nodeReport.replayedPerSecond);
+                generator.writeNumberField("projectedPerSecond", nodeReport.projectedPerSecond);
+                generator.writeObjectFieldStart("projectionLagMillis");
+                for (Map.Entry<String, Long> lag : nodeReport.projectionLagMillis.entrySet()) {
+                    generator.writeNumberField(lag.getKey(), lag.getValue());
+                }
+                generator.writeEndObject();
+                generator.writeNumberField("admissionLimit", nodeReport.admissionLimit);
+                generator.writeNumberField("inFlight", nodeReport.inFlight);
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+        return json.toString();
+    }
+
+    private double sum(ToDoubleFunction<NodeReport> rate) {
+        return reports.values().stream().mapToDouble(rate).sum();
+    }
+
+    private void writeSums(JsonGenerator generator, String name, Function<NodeReport, Map<String, Integer>> counts) throws IOException {
+        Map<String, Integer> sums = new TreeMap<>();
+        reports.values().forEach(nodeReport -> counts.apply(nodeReport).forEach((region, count) -> sums.merge(region, count, Integer::sum)));
+        writeCounts(generator, name, sums);
+    }
+
+    private static void writeCounts(JsonGenerator generator, String name, Map<String, Integer> counts) throws IOException {
+        generator.writeObjectFieldStart(name);
+        for (Map.Entry<String, Integer> count : counts.entrySet()) {
+            generator.writeNumberField(count.getKey(), count.getValue());
+        }
+        generator.writeEndObject();
+    }
+
+    @Override
+    public void preStart() {
+        log().debug("Start");
+        cluster.subscribe(self(), ClusterEvent.initialStateAsEvents(), ClusterEvent.MemberEvent.class, ClusterEvent.ReachabilityEvent.class);
+        ClusterMetricsExtension.get(context().system()).subscribe(self());
+        DistributedPubSub.get(context().system()).mediator().tell(new DistributedPubSubMediator.Subscribe(topic, self()), self());
+        collect = context().system().scheduler().schedule(interval, interval, self(), "collect", context().dispatcher(), ActorRef.noSender());
+    }
+
+    @Override
+    public void postStop() {
+        log().debug("Stop");
+        collect.cancel();
+        cluster.unsubscribe(self());
+        ClusterMetricsExtension.get(context().system()).unsubscribe(self());
+    }
+
+    static Props props() {
+        return Props.create(ClusterMetricsCollectorActor.class);
+    }
+
+    static class GetClusterMetrics {
+        static final GetClusterMetrics instance = new GetClusterMetrics();
+    }
+
+    /**
+     * Metrics of one node, published by its collector. CPU and heap are -1 until akka-cluster-metrics has
+     * sampled them.
+     */
+    static class NodeReport implements Serializable {
+        static final long serialVersionUID = 42L;
+        final String address;
+        final long timestampMillis;
+        final double cpu;
+        final long heapUsed;
+        final long heapMax;
+        final Map<String, Integer> shards;
+        final Map<String, Integer> entities;
+        final double persistedPerSecond;
+        final double recoveriesPerSecond;
+        final double replayedPerSecond;
+        final double projectedPerSecond;
+        final Map<String, Long> projectionLagMillis;
+        final int admissionLimit;
+        final int inFlight;
+
+        NodeReport(String address, long timestampMillis, double cpu, long heapUsed, long heapMax,
+                   Map<String, Integer> shards, Map<String, Integer> entities,
+                   double persistedPerSecond, double recoveriesPerSecond, double replayedPerSecond, double projectedPerSecond,
+                   Map<String, Long> projectionLagMillis, int admissionLimit, int inFlight) {
+            this.address = address;
+            this.timestampMillis = timestampMillis;
+            this.cpu = cpu;
+            this.heapUsed = heapUsed;
+            this.heapMax = heapMax;
+            this.shards = shards;
+            this.entities = entities;
+            this.persistedPerSecond = persistedPerSecond;
+            this.recoveriesPerSecond = recoveriesPerSecond;
+            this.replayedPerSecond = replayedPerSecond;
+            this.projectedPerSecond = projectedPerSecond;
+            this.projectionLagMillis = projectionLagMillis;
+            this.admissionLimit = admissionLimit;
+            this.inFlight = inFlight;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, shards %s, entities %s, %.1f persisted/s, %.1f recoveries/s, lag %s]", getClass().getSimpleName(),
+                    address, shards, entities, persistedPerSecond, recoveriesPerSecond, projectionLagMillis);
+        }
+    }
+}
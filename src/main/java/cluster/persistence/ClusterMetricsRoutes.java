@@ -0,0 +1,38 @@
+package cluster.persistence;
+
+import akka.actor.ActorSelection;
+import akka.actor.ExtendedActorSystem;
+import akka.http.javadsl.model.ContentTypes;
+import akka.http.javadsl.model.HttpEntities;
+import akka.http.javadsl.server.Route;
+import akka.management.javadsl.ManagementRouteProvider;
+import akka.management.javadsl.ManagementRouteProviderSettings;
+import akka.pattern.Patterns;
+
+import java.time.Duration;
+
+import static akka.http.javadsl.server.Directives.*;
+
+/**
+ * Adds {@code GET /cluster-metrics} to the akka-management HTTP endpoint, the cluster-wide metrics kept by
+ * this node's {@link ClusterMetricsCollectorActor} as JSON.
+ * <p>
+ * Registered in {@code akka.management.http.routes}, which is why the class is public.
+ */
+public class ClusterMetricsRoutes implements ManagementRouteProvider {
+    private final ActorSelection collector;
+    private final Duration askTimeout;
+
+    public ClusterMetricsRoutes(ExtendedActorSystem actorSystem) {
+        collector = actorSystem.actorSelection("/user/clusterMetricsCollector");
+        askTimeout = actorSystem.settings().config().getDuration("cluster-metrics-collector.ask-timeout");
+    }
+
+    @Override
+    public Route routes(ManagementRouteProviderSettings settings) {
+        return path("cluster-metrics", () ->
+                get(() ->
+                        onSuccess(Patterns.ask(collector, ClusterMetricsCollectorActor.GetClusterMetrics.instance, askTimeout), json ->
+                                complete(HttpEntities.create(ContentTypes.APPLICATION_JSON, (String) json)))));
+    }
+}
@@ -0,0 +1,100 @@
+package cluster.persistence;
+
+import akka.actor.AbstractLoggingActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import akka.japi.Pair;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the commands of one {@link EntityMessage.CommandBatch} to the local shard, gathers the replies and
+ * replies with one {@link EntityMessage.CommandBatchAck}, then stops.
+ * <p>
+ * Replies are matched to commands by entity id and idempotency key, not by order: an entity rejects a command
+ * it cannot admit at once, ahead of the ack of an earlier command that is still being persisted. Commands
+ * repeated in a batch share a key and get their replies in order. Commands without a reply when the batch
+ * times out are returned as null replies.
+ */
+class CommandBatchActor extends AbstractLoggingActor {
+    private final ActorRef shard;
+    private final EntityMessage.CommandBatch commandBatch;
+    private final ActorRef replyTo;
+    private final Map<Pair<Entity.Id, String>, Deque<Integer>> pending = new HashMap<>();
+    private final List<Object> replies;
+    private int unanswered;
+    private Cancellable deadline;
+
+    CommandBatchActor(ActorRef shard, EntityMessage.CommandBatch commandBatch, ActorRef replyTo) {
+        this.shard = shard;
+        this.commandBatch = commandBatch;
+        this.replyTo = replyTo;
+        replies = new ArrayList<>(Collections.nCopies(commandBatch.commands.size(), null));
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(EntityMessage.CommandAck.class, commandAck -> reply(Pair.create(commandAck.entityEvent.id, commandAck.entityEvent.idempotencyKey), commandAck))
+                .match(EntityMessage.CommandRejected.class, commandRejected -> reply(Pair.create(commandRejected.id, commandRejected.idempotencyKey), commandRejected))
+                .matchEquals("deadline", d -> reply())
+                .build();
+    }
+
+    private void reply(Pair<Entity.Id, String> command, Object reply) {
+        Deque<Integer> indexes = pending.get(command);
+        if (indexes != null) {
+            replies.set(indexes.poll(), reply);
+            if (indexes.isEmpty()) {
+                pending.remove(command);
+            }
+            if (--unanswered == 0) {
+                reply();
+            }
+        }
+    }
+
+    private void reply() {
+        if (unanswered > 0) {
+            log().warning("{} timed out with {} unanswered commands", commandBatch, unanswered);
+        }
+        replyTo.tell(new EntityMessage.CommandBatchAck(commandBatch.batchId, replies), context().parent());
+        context().stop(self());
+    }
+
+    @Override
+    public void preStart() {
+        for (int i = 0; i < commandBatch.commands.size(); i++) {
+            EntityMessage.EntityCommand command = commandBatch.commands.get(i);
+            pending.computeIfAbsent(Pair.create(command.id, command.idempotencyKey), c -> new ArrayDeque<>()).add(i);
+            shard.tell(command, self());
+        }
+        unanswered = commandBatch.commands.size();
+
+        if (unanswered == 0) {
+            reply();
+        } else {
+            deadline = context().system().scheduler().scheduleOnce(
+                    FiniteDuration.create(commandBatch.timeoutMillis, TimeUnit.MILLISECONDS),
+                    self(),
+                    "deadline",
+                    context().dispatcher(),
+                    ActorRef.noSender()
+            );
+        }
+    }
+
+    @Override
+    public void postStop() {
+        if (deadline != null) {
+            deadline.cancel();
+        }
+    }
+
+    static Props props(ActorRef shard, EntityMessage.CommandBatch commandBatch, ActorRef replyTo) {
+        return Props.create(CommandBatchActor.class, shard, commandBatch, replyTo);
+    }
+}
@@ -0,0 +1,131 @@
+package cluster.persistence;
+
+import java.io.Serializable;
+import java.time.Instant;
+import java.util.Arrays;
+
+/**
+ * The idempotency keys of the most recent commands persisted by one entity, with the amount and time of the
+ * event each one persisted.
+ * <p>
+ * Only the last {@code maxEntries} keys are kept, so a repeated command is recognised as long as fewer than
+ * {@code maxEntries} other commands were persisted for the entity in between. Events written before commands
+ * had keys are not kept.
+ * <p>
+ * A key is kept as a 64 bit hash, with the lowest bit telling whether the command was a deposit or a
+ * withdrawal, next to the event's amount and its time in epoch nanoseconds. The entries are parallel rings, so
+ * the window holds no object per command. The event returned for a repeat is rebuilt from these, so its ack
+ * is the original's.
+ */
+class CommandDedupWindow {
+    private final int maxEntries;
+    private long[] keys;
+    private EntityMessage.Amount[] amounts;
+    private long[] times;
+    private int size;
+    private int next;
+
+    CommandDedupWindow(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return the event persisted for the key of the given command, or null
+     */
+    EntityMessage.EntityEvent get(EntityMessage.EntityCommand command) {
+        if (keys == null || command.idempotencyKey == null) {
+            return null;
+        }
+        long hash = hash(command.idempotencyKey);
+        for (int i = 0; i < size; i++) {
+            if ((keys[i] & ~1L) == hash) {
+                Instant time = Instant.ofEpochSecond(0, times[i]);
+                return (keys[i] & 1L) == 0
+                        ? new EntityMessage.DepositEvent(command.id, amounts[i], time, command.idempotencyKey)
+                        : new EntityMessage.WithdrawalEvent(command.id, amounts[i], time, command.idempotencyKey);
+            }
+        }
+        return null;
+    }
+
+    void add(EntityMessage.EntityEvent event) {
+        if (event.idempotencyKey != null) {
+            add(hash(event.idempotencyKey) | (event instanceof EntityMessage.WithdrawalEvent ? 1L : 0L),
+                    event.amount, event.time.getEpochSecond() * 1_000_000_000L + event.time.getNano());
+        }
+    }
+
+    private void add(long key, EntityMessage.Amount amount, long time) {
+        if (maxEntries == 0) {
+            return;
+        }
+        if (keys == null) {
+            int length = Math.min(maxEntries, 4);
+            keys = new long[length];
+            amounts = new EntityMessage.Amount[length];
+            times = new long[length];
+        } else if (size == keys.length && size < maxEntries) {
+            // the ring only grows before it is full the first time, so the entries are still in order
+            int length = Math.min(maxEntries, size * 2);
+            keys = Arrays.copyOf(keys, length);
+            amounts = Arrays.copyOf(amounts, length);
+            times = Arrays.copyOf(times, length);
+            next = size;
+        }
+        keys[next] = key;
+        amounts[next] = amount;
+        times[next] = time;
+        next = (next + 1) % keys.length;
+        if (size < keys.length) {
+            size++;
+        }
+    }
+
+    /**
+     * The entries in the window, oldest first, for including in a snapshot.
+     */
+    Entries entries() {
+        Entries entries = new Entries(size);
+        for (int i = 0; i < size; i++) {
+            int from = (next - size + i + keys.length) % keys.length;
+            entries.keys[i] = keys[from];
+            entries.amounts[i] = amounts[from];
+            entries.times[i] = times[from];
+        }
+        return entries;
+    }
+
+    void addAll(Entries entries) {
+        for (int i = 0; i < entries.keys.length; i++) {
+            add(entries.keys[i], entries.amounts[i], entries.times[i]);
+        }
+    }
+
+    /**
+     * 64 bit FNV-1a of the key, mixed, with the lowest bit cleared.
+     */
+    static long hash(String idempotencyKey) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < idempotencyKey.length(); i++) {
+            hash ^= idempotencyKey.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash & ~1L;
+    }
+
+    static class Entries implements Serializable {
+        static final long serialVersionUID = 42L;
+        final long[] keys;
+        final EntityMessage.Amount[] amounts;
+        final long[] times;
+
+        private Entries(int size) {
+            keys = new long[size];
+            amounts = new EntityMessage.Amount[size];
+            times = new long[size];
+        }
+    }
+}
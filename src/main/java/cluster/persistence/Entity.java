@@ -28,6 +28,14 @@ class Entity implements Serializable {
         return new Entity(id, BigDecimal.ZERO.subtract(amount));
     }
 
+    static Entity of(Id id, BigDecimal amount) {
+        return new Entity(id, new Balance(amount));
+    }
+
+    static Entity copy(Entity entity) {
+        return new Entity(entity.id, entity.balance);
+    }
+
     static Entity deposit(Entity entity, BigDecimal amount) {
         entity.balance = new Balance(entity.balance.amount.add(amount));
         return entity;
@@ -66,6 +74,18 @@ class Entity implements Serializable {
             this.id = id;
         }
 
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            return Objects.equals(id, ((Id) o).id);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(id);
+        }
+
         @Override
         public String toString() {
             return String.format("%s[%s]", getClass().getSimpleName(), id);
@@ -0,0 +1,43 @@
+package cluster.persistence;
+
+import akka.actor.AbstractLoggingActor;
+import akka.actor.ActorRef;
+import akka.actor.Props;
+
+/**
+ * Node-local entry point for {@link EntityMessage.BulkQuery}. Each bulk query is split by shard and
+ * gathered by its own {@link BulkQueryActor}, which replies to the original sender.
+ */
+class EntityBulkQueryActor extends AbstractLoggingActor {
+    private final ActorRef shardRegion;
+
+    EntityBulkQueryActor(ActorRef shardRegion) {
+        this.shardRegion = shardRegion;
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(EntityMessage.BulkQuery.class, this::bulkQuery)
+                .build();
+    }
+
+    private void bulkQuery(EntityMessage.BulkQuery bulkQuery) {
+        log().debug("{} <- {}", bulkQuery, sender());
+        context().actorOf(BulkQueryActor.props(shardRegion, bulkQuery.byShard(EntityRouting.get(context().system())), bulkQuery.timeoutMillis, sender()));
+    }
+
+    @Override
+    public void preStart() {
+        log().info("Start");
+    }
+
+    @Override
+    public void postStop() {
+        log().info("Stop");
+    }
+
+    static Props props(ActorRef shardRegion) {
+        return Props.create(EntityBulkQueryActor.class, shardRegion);
+    }
+}
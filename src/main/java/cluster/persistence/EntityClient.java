@@ -0,0 +1,162 @@
+package cluster.persistence;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.pattern.AskTimeoutException;
+import akka.pattern.Patterns;
+import com.typesafe.config.Config;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Asynchronous client for entity commands and queries, for callers that are not actors.
+ * <p>
+ * Any number of requests can be outstanding, up to {@code max-in-flight} are sent at a time and the rest
+ * wait in order for a free slot. A request that is not answered within its timeout is sent again up to
+ * {@code retries} times, after {@code retry-backoff}. A retry sends the same command instance again with
+ * the same idempotency key, so an entity that already persisted it answers with the original ack.
+ * <p>
+ * A rejected command completes with a {@link CommandRejectedException} and is not retried, backing off is
+ * left to the caller.
+ * <p>
+ * The target is the entity shard region or anything in front of it that answers the same messages, such
+ * as the command batcher or the near cache.
+ */
+class EntityClient {
+    private final ActorSystem actorSystem;
+    private final ActorRef target;
+    private final Duration requestTimeout;
+    private final int maxInFlight;
+    private final int retries;
+    private final Duration retryBackoff;
+    private final Queue<Runnable> waiting = new ArrayDeque<>();
+    private int inFlight;
+
+    EntityClient(ActorSystem actorSystem, ActorRef target) {
+        this(actorSystem, target, actorSystem.settings().config().getConfig("entity-client"));
+    }
+
+    EntityClient(ActorSystem actorSystem, ActorRef target, Config config) {
+        this.actorSystem = actorSystem;
+        this.target = target;
+        requestTimeout = config.getDuration("request-timeout");
+        maxInFlight = config.getInt("max-in-flight");
+        retries = config.getInt("retries");
+        retryBackoff = config.getDuration("retry-backoff");
+    }
+
+    CompletionStage<EntityMessage.CommandAck> deposit(Entity.Id id, BigDecimal amount) {
+        return command(new EntityMessage.DepositCommand(id, new EntityMessage.Amount(amount)));
+    }
+
+    CompletionStage<EntityMessage.CommandAck> withdraw(Entity.Id id, BigDecimal amount) {
+        return command(new EntityMessage.WithdrawalCommand(id, new EntityMessage.Amount(amount)));
+    }
+
+    CompletionStage<EntityMessage.CommandAck> command(EntityMessage.EntityCommand command) {
+        return command(command, requestTimeout);
+    }
+
+    CompletionStage<EntityMessage.CommandAck> command(EntityMessage.EntityCommand command, Duration timeout) {
+        return request(command, timeout).thenApply(response -> {
+            if (response instanceof EntityMessage.CommandAck) {
+                return (EntityMessage.CommandAck) response;
+            } else if (response instanceof EntityMessage.CommandRejected) {
+                throw new CommandRejectedException((EntityMessage.CommandRejected) response);
+            }
+            throw new IllegalStateException(String.format("Unexpected response %s to %s", response, command));
+        });
+    }
+
+    /**
+     * @return the query ack, or empty when the entity does not exist
+     */
+    CompletionStage<Optional<EntityMessage.QueryAck>> query(Entity.Id id) {
+        return query(new EntityMessage.Query(id), requestTimeout);
+    }
+
+    CompletionStage<Optional<EntityMessage.QueryAck>> query(EntityMessage.Query query, Duration timeout) {
+        return request(query, timeout).thenApply(response -> {
+            if (response instanceof EntityMessage.QueryAck) {
+                return Optional.of((EntityMessage.QueryAck) response);
+            } else if (response instanceof EntityMessage.QueryAckNotFound) {
+                return Optional.empty();
+            }
+            throw new IllegalStateException(String.format("Unexpected response %s to %s", response, query));
+        });
+    }
+
+    /**
+     * Number of requests sent and not yet answered.
+     */
+    synchronized int inFlight() {
+        return inFlight;
+    }
+
+    private CompletionStage<Object> request(Object message, Duration timeout) {
+        CompletableFuture<Object> response = new CompletableFuture<>();
+        response.whenComplete((r, e) -> release());
+        acquire(() -> attempt(message, timeout, retries, response));
+        return response;
+    }
+
+    private void attempt(Object message, Duration timeout, int retriesLeft, CompletableFuture<Object> response) {
+        Patterns.ask(target, message, timeout).whenComplete((r, e) -> {
+            if (e == null) {
+                response.complete(r);
+            } else if (retriesLeft > 0 && isTimeout(e)) {
+                Patterns.after(retryBackoff, actorSystem.scheduler(), actorSystem.dispatcher(), () -> {
+                    attempt(message, timeout, retriesLeft - 1, response);
+                    return CompletableFuture.completedFuture(null);
+                });
+            } else {
+                response.completeExceptionally(e);
+            }
+        });
+    }
+
+    private static boolean isTimeout(Throwable e) {
+        return e instanceof AskTimeoutException || e instanceof CompletionException && e.getCause() instanceof AskTimeoutException;
+    }
+
+    private void acquire(Runnable send) {
+        synchronized (this) {
+            if (inFlight >= maxInFlight) {
+                waiting.add(send);
+                return;
+            }
+            inFlight++;
+        }
+        send.run();
+    }
+
+    private void release() {
+        Runnable next;
+        synchronized (this) {
+            next = waiting.poll();
+            if (next == null) {
+                inFlight--;
+            }
+        }
+        if (next != null) {
+            next.run();
+        }
+    }
+
+    static class CommandRejectedException extends RuntimeException {
+        static final long serialVersionUID = 42L;
+        final EntityMessage.CommandRejected commandRejected;
+
+        CommandRejectedException(EntityMessage.CommandRejected commandRejected) {
+            super(commandRejected.toString());
+            this.commandRejected = commandRejected;
+        }
+    }
+}
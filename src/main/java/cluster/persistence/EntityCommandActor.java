@@ -1,8 +1,10 @@
 package cluster.persistence;
 
+import akka.Done;
 import akka.actor.AbstractLoggingActor;
 import akka.actor.ActorRef;
 import akka.actor.Cancellable;
+import akka.actor.CoordinatedShutdown;
 import akka.actor.Props;
 import scala.concurrent.duration.Duration;
 import scala.concurrent.duration.FiniteDuration;
@@ -15,7 +17,9 @@ class EntityCommandActor extends AbstractLoggingActor {
     private final ActorRef shardRegion;
     private Cancellable ticker;
     private FiniteDuration tickInterval = Duration.create(2, TimeUnit.SECONDS);
+    private final int maxRetries = 5;
     private EntityMessage.EntityCommand lastCommand;
+    private int retries;
     private final Receive sending;
     private final Receive receiving;
 
@@ -23,11 +27,14 @@ class EntityCommandActor extends AbstractLoggingActor {
         sending = receiveBuilder()
                 .matchEquals("tick", t -> tickSending())
                 .match(EntityMessage.CommandAck.class, this::commandAckSending)
+                .match(GracefulShutdown.Drain.class, drain -> drain())
                 .build();
 
         receiving = receiveBuilder()
                 .matchEquals("tick", t -> tickReceiving())
                 .match(EntityMessage.CommandAck.class, this::commandAckReceiving)
+                .match(EntityMessage.CommandRejected.class, this::commandRejectedReceiving)
+                .match(GracefulShutdown.Drain.class, drain -> drain())
                 .build();
     }
 
@@ -48,6 +55,7 @@ class EntityCommandActor extends AbstractLoggingActor {
         lastCommand = command();
         log().info("{} -> {}", lastCommand, shardRegion);
         shardRegion.tell(lastCommand, self());
+        retries = 0;
         getContext().become(receiving);
     }
 
@@ -58,11 +66,31 @@ class EntityCommandActor extends AbstractLoggingActor {
         getContext().become(sending);
     }
 
-    private void tickReceiving() {
-        log().warning("No response to last command {}", lastCommand);
+    private void commandRejectedReceiving(EntityMessage.CommandRejected commandRejected) {
+        log().warning("Received {} {}", commandRejected, sender());
         getContext().become(sending);
     }
 
+    /**
+     * The retry has the command's idempotency key, so it is not applied twice. After {@code maxRetries} the
+     * command is given up and the next one is sent.
+     */
+    private void tickReceiving() {
+        if (retries++ < maxRetries) {
+            log().warning("No response to last command {}, retrying", lastCommand);
+            shardRegion.tell(lastCommand, self());
+        } else {
+            log().warning("No response to last command {} after {} retries, giving up", lastCommand, maxRetries);
+            getContext().become(sending);
+        }
+    }
+
+    private void drain() {
+        log().info("Stop sending commands");
+        ticker.cancel();
+        sender().tell(Done.getInstance(), self());
+    }
+
     private EntityMessage.EntityCommand command() {
         Entity.Id id = Random.entityId(1, 100);
         BigDecimal amount = Random.amount(-10000, 10000);
@@ -85,11 +113,13 @@ class EntityCommandActor extends AbstractLoggingActor {
                 context().system().dispatcher(),
                 null
         );
+        GracefulShutdown.get(context().system()).register(self(), CoordinatedShutdown.PhaseServiceUnbind());
     }
 
     @Override
     public void postStop() {
         log().info("Stop");
+        GracefulShutdown.get(context().system()).unregister(self());
         ticker.cancel();
     }
 
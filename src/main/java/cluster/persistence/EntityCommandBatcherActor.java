@@ -0,0 +1,221 @@
+package cluster.persistence;
+
+import akka.Done;
+import akka.actor.AbstractLoggingActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.CoordinatedShutdown;
+import akka.actor.Props;
+import com.typesafe.config.Config;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Node-local front of the entity shard region that sends commands in batches.
+ * <p>
+ * Commands are grouped by shard. A shard's batch is sent as one {@link EntityMessage.CommandBatch} when it
+ * reaches {@code max-batch-size} or when it has waited {@code linger}, and no more than {@code max-in-flight}
+ * batches per shard wait for their ack at a time. The replies returned in the {@link EntityMessage.CommandBatchAck}
+ * are passed on to each command's sender. Commands of a batch that times out are not acked, the same as a
+ * lost unbatched command.
+ * <p>
+ * At most {@code max-buffered} commands wait for a batch slot on this node, commands beyond that are rejected
+ * at once. Commands for the reserved shard agent entity ids are rejected too.
+ */
+class EntityCommandBatcherActor extends AbstractLoggingActor {
+    private final ActorRef shardRegion;
+    private final EntityRouting entityRouting = EntityRouting.get(context().system());
+    private final int maxBatchSize;
+    private final FiniteDuration linger;
+    private final int maxInFlight;
+    private final int maxBuffered;
+    private final long timeoutMillis;
+    private final Map<String, Shard> shards = new HashMap<>();
+    private final Map<Long, InFlight> inFlight = new HashMap<>();
+    private int buffered;
+    private long nextBatchId;
+    private ActorRef drained;
+
+    EntityCommandBatcherActor(ActorRef shardRegion) {
+        this.shardRegion = shardRegion;
+        Config config = context().system().settings().config().getConfig("entity-command-batch");
+        maxBatchSize = config.getInt("max-batch-size");
+        linger = FiniteDuration.create(config.getDuration("linger").toNanos(), TimeUnit.NANOSECONDS);
+        maxInFlight = config.getInt("max-in-flight");
+        maxBuffered = config.getInt("max-buffered");
+        timeoutMillis = config.getDuration("timeout").toMillis();
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(EntityMessage.EntityCommand.class, this::command)
+                .match(EntityMessage.CommandBatchAck.class, this::commandBatchAck)
+                .match(Flush.class, flush -> flush(flush.shardId))
+                .match(Expire.class, this::expire)
+                .match(GracefulShutdown.Drain.class, drain -> drain())
+                .build();
+    }
+
+    private void command(EntityMessage.EntityCommand command) {
+        if (drained != null) {
+            sender().tell(EntityMessage.CommandRejected.from(command, "shutting down"), self());
+            return;
+        }
+        if (EntityMessage.isShardAgentEntityId(command.id.id)) {
+            sender().tell(EntityMessage.CommandRejected.from(command, "reserved entity id"), self());
+            return;
+        }
+        if (buffered >= maxBuffered) {
+            log().debug("Overloaded, reject {} <- {}", command, sender());
+            sender().tell(EntityMessage.CommandRejected.from(command, "overloaded"), self());
+            return;
+        }
+        String shardId = entityRouting.shardId(command.id);
+        Shard shard = shards.computeIfAbsent(shardId, id -> new Shard());
+        shard.commands.add(command);
+        shard.senders.add(sender());
+        buffered++;
+
+        if (shard.commands.size() >= maxBatchSize) {
+            flush(shardId);
+        } else if (shard.linger == null) {
+            shard.linger = context().system().scheduler().scheduleOnce(linger, self(), new Flush(shardId), context().dispatcher(), ActorRef.noSender());
+        }
+    }
+
+    private void flush(String shardId) {
+        Shard shard = shards.get(shardId);
+        if (shard.linger != null) {
+            shard.linger.cancel();
+            shard.linger = null;
+        }
+
+        while (!shard.commands.isEmpty() && shard.inFlight < maxInFlight) {
+            int size = Math.min(maxBatchSize, shard.commands.size());
+            List<EntityMessage.EntityCommand> commands = new ArrayList<>(shard.commands.subList(0, size));
+            List<ActorRef> senders = new ArrayList<>(shard.senders.subList(0, size));
+            shard.commands.subList(0, size).clear();
+            shard.senders.subList(0, size).clear();
+            buffered -= size;
+
+            long batchId = nextBatchId++;
+            Cancellable expiry = context().system().scheduler().scheduleOnce(
+                    FiniteDuration.create(timeoutMillis, TimeUnit.MILLISECONDS),
+                    self(),
+                    new Expire(batchId),
+                    context().dispatcher(),
+                    ActorRef.noSender()
+            );
+            inFlight.put(batchId, new InFlight(shardId, senders, expiry));
+            shard.inFlight++;
+            // the shard side gets most of the timeout so its partial acks arrive before the batch expires
+            shardRegion.tell(new EntityMessage.CommandBatch(shardId, batchId, commands, timeoutMillis * 4 / 5), self());
+        }
+    }
+
+    private void commandBatchAck(EntityMessage.CommandBatchAck commandBatchAck) {
+        InFlight batch = inFlight.remove(commandBatchAck.batchId);
+        if (batch == null) {
+            log().debug("Late {}", commandBatchAck);
+        } else {
+            batch.expiry.cancel();
+            for (int i = 0; i < commandBatchAck.replies.size(); i++) {
+                Object reply = commandBatchAck.replies.get(i);
+                if (reply != null) {
+                    batch.senders.get(i).tell(reply, self());
+                }
+            }
+            completed(batch.shardId);
+        }
+    }
+
+    private void expire(Expire expire) {
+        InFlight batch = inFlight.remove(expire.batchId);
+        if (batch != null) {
+            log().warning("Command batch {} to shard {} with {} commands timed out", expire.batchId, batch.shardId, batch.senders.size());
+            completed(batch.shardId);
+        }
+    }
+
+    /**
+     * Stop taking commands, send everything buffered and answer the drain when the last batch is acked or expired.
+     */
+    private void drain() {
+        drained = sender();
+        shards.keySet().forEach(this::flush);
+        drainedIfIdle();
+    }
+
+    private void drainedIfIdle() {
+        if (drained != null && inFlight.isEmpty() && shards.values().stream().allMatch(shard -> shard.commands.isEmpty())) {
+            log().info("Drained");
+            drained.tell(Done.getInstance(), self());
+            drained = null;
+        }
+    }
+
+    private void completed(String shardId) {
+        Shard shard = shards.get(shardId);
+        shard.inFlight--;
+        if (shard.commands.size() >= maxBatchSize || !shard.commands.isEmpty() && (shard.linger == null || drained != null)) {
+            flush(shardId);
+        }
+        drainedIfIdle();
+    }
+
+    @Override
+    public void preStart() {
+        log().info("Start");
+        GracefulShutdown.get(context().system()).register(self(), CoordinatedShutdown.PhaseServiceUnbind());
+    }
+
+    @Override
+    public void postStop() {
+        log().info("Stop");
+        GracefulShutdown.get(context().system()).unregister(self());
+        shards.values().stream().filter(shard -> shard.linger != null).forEach(shard -> shard.linger.cancel());
+        inFlight.values().forEach(batch -> batch.expiry.cancel());
+    }
+
+    static Props props(ActorRef shardRegion) {
+        return Props.create(EntityCommandBatcherActor.class, shardRegion);
+    }
+
+    private static class Shard {
+        final List<EntityMessage.EntityCommand> commands = new ArrayList<>();
+        final List<ActorRef> senders = new ArrayList<>();
+        Cancellable linger;
+        int inFlight;
+    }
+
+    private static class InFlight {
+        final String shardId;
+        final List<ActorRef> senders;
+        final Cancellable expiry;
+
+        InFlight(String shardId, List<ActorRef> senders, Cancellable expiry) {
+            this.shardId = shardId;
+            this.senders = senders;
+            this.expiry = expiry;
+        }
+    }
+
+    private static class Flush {
+        final String shardId;
+
+        Flush(String shardId) {
+            this.shardId = shardId;
+        }
+    }
+
+    private static class Expire {
+        final long batchId;
+
+        Expire(long batchId) {
+            this.batchId = batchId;
+        }
+    }
+}
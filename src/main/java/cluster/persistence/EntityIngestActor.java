@@ -0,0 +1,256 @@
+package cluster.persistence;
+
+import akka.Done;
+import akka.actor.AbstractLoggingActor;
+import akka.actor.ActorRef;
+import akka.actor.CoordinatedShutdown;
+import akka.actor.Props;
+import akka.actor.Status;
+import akka.http.javadsl.ConnectHttp;
+import akka.http.javadsl.Http;
+import akka.http.javadsl.ServerBinding;
+import akka.http.javadsl.model.*;
+import akka.http.javadsl.server.Route;
+import akka.japi.Pair;
+import akka.pattern.Patterns;
+import akka.stream.ActorMaterializer;
+import akka.stream.javadsl.Source;
+import akka.util.ByteString;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.typesafe.config.Config;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+
+import static akka.http.javadsl.server.Directives.*;
+import static akka.http.javadsl.server.PathMatchers.segment;
+
+/**
+ * HTTP endpoint for bulk command ingest.
+ * <p>
+ * {@code POST /entity/commands} takes a streamed NDJSON body with one command per line, for example
+ * {@code {"type":"deposit","id":"42","amount":"100.00","key":"feed-7-line-1"}}, and streams back one NDJSON result per line as
+ * the acks arrive, each carrying the line number it answers. At most {@code parallelism} commands are
+ * waiting for an ack at a time, so a slow cluster or a client that reads the results slowly backpressures
+ * the reading of the request body. Lines that cannot be parsed, are longer than {@code max-line-length} or
+ * are not acked in time get an error result and the stream carries on.
+ * <p>
+ * Commands are sent with an {@link EntityClient}, so the node-wide {@code entity-client.max-in-flight} limit
+ * and its retries of unanswered commands apply across all ingest requests.
+ * <p>
+ * The optional {@code key} is the command's idempotency key. Posting a feed again with the same keys
+ * does not apply commands that the entities already persisted.
+ */
+class EntityIngestActor extends AbstractLoggingActor {
+    private static final JsonFactory jsonFactory = new JsonFactory();
+    private static final ByteString newline = ByteString.fromString("\n");
+    private static final ContentType ndjson = ContentTypes.create(MediaTypes.applicationWithFixedCharset("x-ndjson", HttpCharsets.UTF_8, "ndjson"));
+
+    private final EntityClient client;
+    private final Config config;
+    private final int parallelism;
+    private final int maxLineLength;
+    private final Duration askTimeout;
+    private CompletionStage<ServerBinding> binding;
+
+    EntityIngestActor(ActorRef commandTarget) {
+        client = new EntityClient(context().system(), commandTarget);
+        config = context().system().settings().config().getConfig("entity-ingest");
+        parallelism = config.getInt("parallelism");
+        maxLineLength = config.getBytes("max-line-length").intValue();
+        askTimeout = config.getDuration("ask-timeout");
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(ServerBinding.class, b -> log().info("Listening on {}", b.localAddress()))
+                .match(Status.Failure.class, f -> log().warning("Bind to {}:{} failed, {}", config.getString("hostname"), config.getInt("port"), f.cause().getMessage()))
+                .match(GracefulShutdown.Drain.class, drain -> drain())
+                .build();
+    }
+
+    /**
+     * Stop accepting connections, ingest requests already streaming carry on until the command target drains.
+     */
+    private void drain() {
+        log().info("Unbind");
+        CompletionStage<Done> unbound = binding
+                .thenCompose(ServerBinding::unbind)
+                .handle((done, e) -> Done.getInstance());
+        Patterns.pipe(unbound, context().dispatcher()).to(sender());
+    }
+
+    private Route route() {
+        return path(segment("entity").slash("commands"), () ->
+                post(() ->
+                        extractRequestEntity(entity ->
+                                complete(HttpResponse.create().withEntity(HttpEntities.createChunked(ndjson, ingest(entity.getDataBytes())))))));
+    }
+
+    private Source<ByteString, ?> ingest(Source<ByteString, ?> body) {
+        return lines(body)
+                .zipWithIndex()
+                .filter(line -> !line.first().map(text -> text.trim().isEmpty()).orElse(false))
+                .mapAsyncUnordered(parallelism, this::ingest)
+                .map(result -> ByteString.fromString(result + "\n"));
+    }
+
+    /**
+     * Split the body into lines. The bytes of a line longer than {@code max-line-length} are dropped as they
+     * arrive and the line comes out empty, so only that line fails. The last line needs no newline.
+     */
+    private Source<Optional<String>, ?> lines(Source<ByteString, ?> body) {
+        return body
+                .concat(Source.single(newline))
+                .statefulMapConcat(() -> {
+                    ByteString[] partial = {ByteString.empty()};
+                    boolean[] tooLong = {false};
+                    return bytes -> {
+                        List<Optional<String>> lines = new ArrayList<>();
+                        ByteString rest = bytes;
+                        for (int end = rest.indexOf(newline.head()); end >= 0; end = rest.indexOf(newline.head())) {
+                            ByteString tail = rest.take(end);
+                            lines.add(tooLong[0] || partial[0].size() + tail.size() > maxLineLength
+                                    ? Optional.empty()
+                                    : Optional.of(partial[0].concat(tail).utf8String()));
+                            partial[0] = ByteString.empty();
+                            tooLong[0] = false;
+                            rest = rest.drop(end + 1);
+                        }
+                        if (tooLong[0] || partial[0].size() + rest.size() > maxLineLength) {
+                            partial[0] = ByteString.empty();
+                            tooLong[0] = true;
+                        } else {
+                            partial[0] = partial[0].concat(rest);
+                        }
+                        return lines;
+                    };
+                });
+    }
+
+    private CompletionStage<String> ingest(Pair<Optional<String>, Long> line) {
+        long lineNumber = line.second() + 1;
+        if (!line.first().isPresent()) {
+            return CompletableFuture.completedFuture(result(lineNumber, null, String.format("Line longer than %d bytes", maxLineLength)));
+        }
+        EntityMessage.EntityCommand command;
+        try {
+            command = command(line.first().get());
+        } catch (IOException | IllegalArgumentException e) {
+            return CompletableFuture.completedFuture(result(lineNumber, null, e.getMessage()));
+        }
+
+        return client.command(command, askTimeout)
+                .handle((commandAck, e) -> {
+                    Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+                    if (cause instanceof EntityClient.CommandRejectedException) {
+                        return result(lineNumber, command.id, String.format("Rejected, %s", ((EntityClient.CommandRejectedException) cause).commandRejected.reason));
+                    } else if (cause != null) {
+                        return result(lineNumber, command.id, String.format("No ack within %s", askTimeout));
+                    } else {
+                        return result(lineNumber, command.id, null);
+                    }
+                });
+    }
+
+    private static EntityMessage.EntityCommand command(String line) throws IOException {
+        String type = null;
+        String id = null;
+        BigDecimal amount = null;
+        String key = null;
+
+        try (JsonParser parser = jsonFactory.createParser(line)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IllegalArgumentException("Expected a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("type".equals(field)) {
+                    type = parser.getText();
+                } else if ("id".equals(field)) {
+                    id = parser.getText();
+                } else if ("key".equals(field)) {
+                    key = parser.getText();
+                } else if ("amount".equals(field)) {
+                    amount = value == JsonToken.VALUE_STRING ? new BigDecimal(parser.getText()) : parser.getDecimalValue();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+
+        if (id == null || id.isEmpty() || EntityMessage.isShardAgentEntityId(id)) {
+            throw new IllegalArgumentException("Missing or reserved entity id");
+        }
+        if (amount == null || amount.signum() <= 0) {
+            throw new IllegalArgumentException("Amount must be greater than zero");
+        }
+        if (key == null) {
+            key = UUID.randomUUID().toString();
+        }
+        if ("deposit".equals(type)) {
+            return new EntityMessage.DepositCommand(new Entity.Id(id), new EntityMessage.Amount(amount), key);
+        } else if ("withdrawal".equals(type)) {
+            return new EntityMessage.WithdrawalCommand(new Entity.Id(id), new EntityMessage.Amount(amount), key);
+        } else {
+            throw new IllegalArgumentException(String.format("Unknown command type '%s'", type));
+        }
+    }
+
+    private static String result(long lineNumber, Entity.Id id, String error) {
+        StringWriter json = new StringWriter();
+        try (JsonGenerator generator = jsonFactory.createGenerator(json)) {
+            generator.writeStartObject();
+            generator.writeNumberField("line", lineNumber);
+            if (id != null) {
+                generator.writeStringField("id", id.id);
+            }
+            generator.writeStringField("result", error == null ? "ok" : "error");
+            if (error != null) {
+                generator.writeStringField("error", error);
+            }
+            generator.writeEndObject();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return json.toString();
+    }
+
+    @Override
+    public void preStart() {
+        log().info("Start");
+        ActorMaterializer materializer = ActorMaterializer.create(context());
+        binding = Http.get(context().system()).bindAndHandle(
+                route().flow(context().system(), materializer),
+                ConnectHttp.toHost(config.getString("hostname"), config.getInt("port")),
+                materializer
+        );
+        Patterns.pipe(binding, context().dispatcher()).to(self());
+        GracefulShutdown.get(context().system()).register(self(), CoordinatedShutdown.PhaseServiceUnbind());
+    }
+
+    @Override
+    public void postStop() {
+        log().info("Stop");
+        GracefulShutdown.get(context().system()).unregister(self());
+        binding.thenCompose(ServerBinding::unbind);
+    }
+
+    static Props props(ActorRef commandTarget) {
+        return Props.create(EntityIngestActor.class, commandTarget);
+    }
+}
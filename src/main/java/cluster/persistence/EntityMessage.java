@@ -1,14 +1,13 @@
 package cluster.persistence;
 
 import akka.cluster.sharding.ShardRegion;
+import org.nustaq.serialization.annotations.Version;
 
 import java.io.Serializable;
 import java.math.BigDecimal;
 import java.text.DecimalFormat;
 import java.time.Instant;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.*;
 
 public class EntityMessage {
     static class Amount implements Serializable {
@@ -26,16 +25,22 @@ public class EntityMessage {
         }
     }
 
+    /**
+     * The idempotency key identifies a command across retries. An entity that has already persisted a
+     * command with the same key answers a repeat with the original ack instead of persisting it again.
+     */
     static class EntityCommand implements Serializable {
         static final long serialVersionUID = 42L;
         final long messageNanoTime;
         final Entity.Id id;
         final Amount amount;
+        final String idempotencyKey;
 
-        private EntityCommand(Entity.Id id, Amount amount) {
+        private EntityCommand(Entity.Id id, Amount amount, String idempotencyKey) {
             messageNanoTime = System.nanoTime();
             this.id = id;
             this.amount = amount;
+            this.idempotencyKey = idempotencyKey;
         }
     }
 
@@ -43,7 +48,11 @@ public class EntityMessage {
         static final long serialVersionUID = 42L;
 
         DepositCommand(Entity.Id id, Amount amount) {
-            super(id, amount);
+            this(id, amount, UUID.randomUUID().toString());
+        }
+
+        DepositCommand(Entity.Id id, Amount amount, String idempotencyKey) {
+            super(id, amount, idempotencyKey);
         }
 
         @Override
@@ -56,7 +65,11 @@ public class EntityMessage {
         static final long serialVersionUID = 42L;
 
         WithdrawalCommand(Entity.Id id, Amount amount) {
-            super(id, amount);
+            this(id, amount, UUID.randomUUID().toString());
+        }
+
+        WithdrawalCommand(Entity.Id id, Amount amount, String idempotencyKey) {
+            super(id, amount, idempotencyKey);
         }
 
         @Override
@@ -69,11 +82,20 @@ public class EntityMessage {
         static final long serialVersionUID = 42L;
         final Entity.Id id;
         final Amount amount;
-        final Instant time = Instant.now();
+        final Instant time;
+        // added after events were first persisted, null in older events
+        @Version(1)
+        final String idempotencyKey;
+
+        private EntityEvent(Entity.Id id, Amount amount, String idempotencyKey) {
+            this(id, amount, Instant.now(), idempotencyKey);
+        }
 
-        private EntityEvent(Entity.Id id, Amount amount) {
+        private EntityEvent(Entity.Id id, Amount amount, Instant time, String idempotencyKey) {
             this.id = id;
             this.amount = amount;
+            this.time = time;
+            this.idempotencyKey = idempotencyKey;
         }
     }
 
@@ -81,11 +103,15 @@ public class EntityMessage {
         static final long serialVersionUID = 42L;
 
         DepositEvent(Entity.Id id, Amount amount) {
-            super(id, amount);
+            super(id, amount, null);
         }
 
         DepositEvent(DepositCommand depositCommand) {
-            this(depositCommand.id, depositCommand.amount);
+            super(depositCommand.id, depositCommand.amount, depositCommand.idempotencyKey);
+        }
+
+        DepositEvent(Entity.Id id, Amount amount, Instant time, String idempotencyKey) {
+            super(id, amount, time, idempotencyKey);
         }
 
         @Override
@@ -98,11 +124,15 @@ public class EntityMessage {
         static final long serialVersionUID = 42L;
 
         WithdrawalEvent(Entity.Id id, Amount amount) {
-            super(id, amount);
+            super(id, amount, null);
         }
 
         WithdrawalEvent(WithdrawalCommand withdrawalCommand) {
-            this(withdrawalCommand.id, withdrawalCommand.amount);
+            super(withdrawalCommand.id, withdrawalCommand.amount, withdrawalCommand.idempotencyKey);
+        }
+
+        WithdrawalEvent(Entity.Id id, Amount amount, Instant time, String idempotencyKey) {
+            super(id, amount, time, idempotencyKey);
         }
 
         @Override
@@ -132,19 +162,106 @@ public class EntityMessage {
         }
     }
 
+    /**
+     * Reply to a command that was not accepted because the entity's node is overloaded or shutting down, or
+     * because the journal rejected its event. Nothing was persisted, the command can be sent again later. A
+     * command whose idempotency key was already used by a different command is rejected too, sending it again
+     * does not help.
+     * <p>
+     * The rejection carries the idempotency key of the command, an entity can reject a command while an
+     * earlier one is still being persisted, so the replies to one entity do not come in command order.
+     */
+    static class CommandRejected implements Serializable {
+        static final long serialVersionUID = 42L;
+        final long commandTime;
+        final Entity.Id id;
+        final String idempotencyKey;
+        final String reason;
+
+        private CommandRejected(long commandTime, Entity.Id id, String idempotencyKey, String reason) {
+            this.commandTime = commandTime;
+            this.id = id;
+            this.idempotencyKey = idempotencyKey;
+            this.reason = reason;
+        }
+
+        static CommandRejected from(EntityCommand entityCommand, String reason) {
+            return new CommandRejected(entityCommand.messageNanoTime, entityCommand.id, entityCommand.idempotencyKey, reason);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, %s, %dus]", getClass().getSimpleName(), id, reason, commandTime);
+        }
+    }
+
+    /**
+     * Commands bound for the entities of one shard, sent as one remote message and unpacked by the shard's
+     * agent entity.
+     */
+    static class CommandBatch implements Serializable {
+        static final long serialVersionUID = 42L;
+        final String shardId;
+        final long batchId;
+        final List<EntityCommand> commands;
+        final long timeoutMillis;
+
+        CommandBatch(String shardId, long batchId, List<EntityCommand> commands, long timeoutMillis) {
+            this.shardId = shardId;
+            this.batchId = batchId;
+            this.commands = commands;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[shard %s, batch %d, %d commands, %dms]", getClass().getSimpleName(), shardId, batchId, commands.size(), timeoutMillis);
+        }
+    }
+
+    /**
+     * The replies to a {@link CommandBatch} in command order, each a {@link CommandAck} or a
+     * {@link CommandRejected}. A reply is null when its command was not answered before the batch timed out.
+     */
+    static class CommandBatchAck implements Serializable {
+        static final long serialVersionUID = 42L;
+        final long batchId;
+        final List<Object> replies;
+
+        CommandBatchAck(long batchId, List<Object> replies) {
+            this.batchId = batchId;
+            this.replies = replies;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[batch %d, %d replies]", getClass().getSimpleName(), batchId, replies.size());
+        }
+    }
+
     static class Query implements Serializable {
         static final long serialVersionUID = 42L;
         final long messageNanoTime;
         final Entity.Id id;
+        final boolean waitForPendingWrites;
 
         Query(Entity.Id id) {
+            this(id, false);
+        }
+
+        /**
+         * @param waitForPendingWrites when true the query is answered after any in-flight write to the entity
+         *                             completes, otherwise it is answered from the last confirmed state
+         */
+        Query(Entity.Id id, boolean waitForPendingWrites) {
             messageNanoTime = System.nanoTime();
             this.id = id;
+            this.waitForPendingWrites = waitForPendingWrites;
         }
 
         @Override
         public String toString() {
-            return String.format("%s[%dus, %s]", getClass().getSimpleName(), messageNanoTime, id);
+            return String.format("%s[%dus, %s%s]", getClass().getSimpleName(), messageNanoTime, id, waitForPendingWrites ? ", wait" : "");
         }
     }
 
@@ -152,14 +269,16 @@ public class EntityMessage {
         static final long serialVersionUID = 42L;
         final long queryTime;
         final Entity entity;
+        final long sequenceNr;
 
-        private QueryAck(long queryTime, Entity entity) {
+        private QueryAck(long queryTime, Entity entity, long sequenceNr) {
             this.queryTime = queryTime;
             this.entity = entity;
+            this.sequenceNr = sequenceNr;
         }
 
-        static QueryAck from(Query query, Entity entity) {
-            return new QueryAck(query.messageNanoTime, entity);
+        static QueryAck from(Query query, Entity entity, long sequenceNr) {
+            return new QueryAck(query.messageNanoTime, entity, sequenceNr);
         }
 
         @Override
@@ -169,6 +288,103 @@ public class EntityMessage {
         }
     }
 
+    /**
+     * Published by an entity after each confirmed write so node-local caches can stay current.
+     */
+    static class EntityUpdated implements Serializable {
+        static final long serialVersionUID = 42L;
+        final Entity entity;
+        final long sequenceNr;
+
+        EntityUpdated(Entity entity, long sequenceNr) {
+            this.entity = entity;
+            this.sequenceNr = sequenceNr;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, %d]", getClass().getSimpleName(), entity, sequenceNr);
+        }
+    }
+
+    /**
+     * Query many entities at once. The ids are split by shard and each shard is sent one {@link ShardQuery}.
+     */
+    static class BulkQuery implements Serializable {
+        static final long serialVersionUID = 42L;
+        final List<Entity.Id> ids;
+        final long timeoutMillis;
+
+        BulkQuery(List<Entity.Id> ids, long timeoutMillis) {
+            this.ids = new ArrayList<>(ids);
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        /**
+         * Shard queries are given most of the bulk query timeout so their partial results arrive before it expires.
+         */
+        List<ShardQuery> byShard(EntityRouting entityRouting) {
+            Map<String, List<Entity.Id>> shards = new HashMap<>();
+            ids.forEach(id -> shards.computeIfAbsent(entityRouting.shardId(id), s -> new ArrayList<>()).add(id));
+
+            List<ShardQuery> shardQueries = new ArrayList<>();
+            shards.forEach((shardId, shardIds) -> shardQueries.add(new ShardQuery(shardId, shardIds, timeoutMillis * 4 / 5)));
+            return shardQueries;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%d ids, %dms]", getClass().getSimpleName(), ids.size(), timeoutMillis);
+        }
+    }
+
+    /**
+     * The ids of a bulk query that belong to one shard. It is delivered once, to the shard's agent entity,
+     * which fans it out to the entities inside the shard.
+     */
+    static class ShardQuery implements Serializable {
+        static final long serialVersionUID = 42L;
+        final String shardId;
+        final List<Entity.Id> ids;
+        final long timeoutMillis;
+
+        ShardQuery(String shardId, List<Entity.Id> ids, long timeoutMillis) {
+            this.shardId = shardId;
+            this.ids = ids;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[shard %s, %d ids, %dms]", getClass().getSimpleName(), shardId, ids.size(), timeoutMillis);
+        }
+    }
+
+    /**
+     * Merged answer to a bulk or shard query. Ids that did not answer before the deadline are listed as timed out.
+     */
+    static class BulkQueryAck implements Serializable {
+        static final long serialVersionUID = 42L;
+        final List<Entity> entities;
+        final List<Entity.Id> notFound;
+        final List<Entity.Id> timedOut;
+
+        BulkQueryAck(List<Entity> entities, List<Entity.Id> notFound, List<Entity.Id> timedOut) {
+            this.entities = entities;
+            this.notFound = notFound;
+            this.timedOut = timedOut;
+        }
+
+        boolean complete() {
+            return timedOut.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[found %d, not found %d, timed out %d]", getClass().getSimpleName(), entities.size(), notFound.size(), timedOut.size());
+        }
+    }
+
     static class QueryAckNotFound implements Serializable {
         static final long serialVersionUID = 42L;
         final long queryTime;
@@ -190,15 +406,190 @@ public class EntityMessage {
         }
     }
 
+    /**
+     * Sent to an entity that is pending a move to another shard, once its table version is at least the
+     * given version. It is answered with {@link Relocated} when the entity has no writes in flight.
+     */
+    static class Relocate implements Serializable {
+        static final long serialVersionUID = 42L;
+        final Entity.Id id;
+        final long version;
+
+        Relocate(Entity.Id id, long version) {
+            this.id = id;
+            this.version = version;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, v%d]", getClass().getSimpleName(), id, version);
+        }
+    }
+
+    static class Relocated implements Serializable {
+        static final long serialVersionUID = 42L;
+        final Entity.Id id;
+
+        Relocated(Entity.Id id) {
+            this.id = id;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s]", getClass().getSimpleName(), id);
+        }
+    }
+
+    /**
+     * Sent to the shard agent of a shard whose entities are pending a move to a new shard layout, once its
+     * table version is at least the given version. Each entity of the shard is sent a {@link Relocate} and the
+     * agent answers {@link ShardMigrated} when all have confirmed.
+     */
+    static class MigrateShard implements Serializable {
+        static final long serialVersionUID = 42L;
+        final String shardId;
+        final long version;
+        final long timeoutMillis;
+
+        MigrateShard(String shardId, long version, long timeoutMillis) {
+            this.shardId = shardId;
+            this.version = version;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[shard %s, v%d, %dms]", getClass().getSimpleName(), shardId, version, timeoutMillis);
+        }
+    }
+
+    static class ShardMigrated implements Serializable {
+        static final long serialVersionUID = 42L;
+        final String shardId;
+        final int entities;
+
+        ShardMigrated(String shardId, int entities) {
+            this.shardId = shardId;
+            this.entities = entities;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[shard %s, %d entities]", getClass().getSimpleName(), shardId, entities);
+        }
+    }
+
+    /**
+     * Stop message of the entity shard region, sent to each entity of a shard that is handed off.
+     */
+    static class HandOff implements Serializable {
+        static final long serialVersionUID = 42L;
+        static final HandOff instance = new HandOff();
+
+        private HandOff() {
+        }
+    }
+
+    /**
+     * The busiest entities of a shard that was handed off, sent to the shard agent of its new home so they are
+     * recovered before the traffic that follows the shard gets there.
+     */
+    static class PrewarmShard implements Serializable {
+        static final long serialVersionUID = 42L;
+        final String shardId;
+        final List<String> entityIds;
+
+        PrewarmShard(String shardId, List<String> entityIds) {
+            this.shardId = shardId;
+            this.entityIds = entityIds;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[shard %s, %d entities]", getClass().getSimpleName(), shardId, entityIds.size());
+        }
+    }
+
+    /**
+     * Starts an entity, it is answered with {@link Prewarmed} once the entity has recovered.
+     */
+    static class Prewarm implements Serializable {
+        static final long serialVersionUID = 42L;
+        final Entity.Id id;
+
+        Prewarm(Entity.Id id) {
+            this.id = id;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s]", getClass().getSimpleName(), id);
+        }
+    }
+
+    static class Prewarmed implements Serializable {
+        static final long serialVersionUID = 42L;
+        final Entity.Id id;
+
+        Prewarmed(Entity.Id id) {
+            this.id = id;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s]", getClass().getSimpleName(), id);
+        }
+    }
+
     static final int numberOfEventTags = 5;
 
     static Set<String> eventTag(EntityCommand entityCommand) {
-        return new HashSet<>(Collections.singletonList(String.format("%d", entityCommand.id.id.hashCode() % numberOfEventTags)));
+        return eventTag(entityCommand.id);
     }
 
+    /**
+     * The events of an entity all have the same tag.
+     */
+    static Set<String> eventTag(Entity.Id id) {
+        return new HashSet<>(Collections.singletonList(String.format("%d", id.id.hashCode() % numberOfEventTags)));
+    }
+
+    /**
+     * Shard count of a cluster that has never changed it. The current count is in the {@link EntityRouting}
+     * table and is changed with {@code entity-sharding.number-of-shards}.
+     */
     public static final int numberOfShards = 15;
 
-    static ShardRegion.MessageExtractor messageExtractor() {
+    /**
+     * The home shard of an entity in a layout of the given number of shards, messages are routed by
+     * {@link EntityRouting#shardId(Entity.Id)}, which knows the current layout and the entities isolated on a
+     * shard of their own.
+     */
+    static String shardId(Entity.Id id, int numberOfShards) {
+        return id.id.hashCode() % numberOfShards + "";
+    }
+
+    /**
+     * Each shard has one entity id reserved for receiving shard level messages, {@link ShardQuery},
+     * {@link CommandBatch} and {@link MigrateShard}.
+     */
+    static String shardAgentEntityId(String shardId) {
+        return "shard-agent-" + shardId;
+    }
+
+    static boolean isShardAgentEntityId(String entityId) {
+        return entityId.startsWith("shard-agent-");
+    }
+
+    /**
+     * The entity id of a message for one entity, null for the reserved shard agent ids so the shard region
+     * drops the message instead of delivering it to the shard's agent.
+     */
+    private static String entityId(Entity.Id id) {
+        return isShardAgentEntityId(id.id) ? null : id.id;
+    }
+
+    static ShardRegion.MessageExtractor messageExtractor(EntityRouting entityRouting) {
 
         return new ShardRegion.MessageExtractor() {
             @Override
@@ -218,11 +609,23 @@ public class EntityMessage {
 
             private String extractShardIdFromCommand(Object message) {
                 if (message instanceof DepositCommand) {
-                    return ((DepositCommand) message).id.id.hashCode() % numberOfShards + "";
+                    return entityRouting.shardId(((DepositCommand) message).id);
                 } else if (message instanceof WithdrawalCommand) {
-                    return ((WithdrawalCommand) message).id.id.hashCode() % numberOfShards + "";
+                    return entityRouting.shardId(((WithdrawalCommand) message).id);
                 } else if (message instanceof Query) {
-                    return ((Query) message).id.id.hashCode() % numberOfShards + "";
+                    return entityRouting.shardId(((Query) message).id);
+                } else if (message instanceof Relocate) {
+                    return entityRouting.shardId(((Relocate) message).id);
+                } else if (message instanceof ShardQuery) {
+                    return ((ShardQuery) message).shardId;
+                } else if (message instanceof CommandBatch) {
+                    return ((CommandBatch) message).shardId;
+                } else if (message instanceof MigrateShard) {
+                    return ((MigrateShard) message).shardId;
+                } else if (message instanceof PrewarmShard) {
+                    return ((PrewarmShard) message).shardId;
+                } else if (message instanceof Prewarm) {
+                    return entityRouting.shardId(((Prewarm) message).id);
                 } else {
                     return null;
                 }
@@ -230,11 +633,23 @@ public class EntityMessage {
 
             private String extractEntityIdFromCommand(Object message) {
                 if (message instanceof DepositCommand) {
-                    return ((DepositCommand) message).id.id;
+                    return EntityMessage.entityId(((DepositCommand) message).id);
                 } else if (message instanceof WithdrawalCommand) {
-                    return ((WithdrawalCommand) message).id.id;
+                    return EntityMessage.entityId(((WithdrawalCommand) message).id);
                 } else if (message instanceof Query) {
-                    return ((Query) message).id.id;
+                    return EntityMessage.entityId(((Query) message).id);
+                } else if (message instanceof Relocate) {
+                    return EntityMessage.entityId(((Relocate) message).id);
+                } else if (message instanceof ShardQuery) {
+                    return shardAgentEntityId(((ShardQuery) message).shardId);
+                } else if (message instanceof CommandBatch) {
+                    return shardAgentEntityId(((CommandBatch) message).shardId);
+                } else if (message instanceof MigrateShard) {
+                    return shardAgentEntityId(((MigrateShard) message).shardId);
+                } else if (message instanceof PrewarmShard) {
+                    return shardAgentEntityId(((PrewarmShard) message).shardId);
+                } else if (message instanceof Prewarm) {
+                    return EntityMessage.entityId(((Prewarm) message).id);
                 } else {
                     return null;
                 }
@@ -0,0 +1,177 @@
+package cluster.persistence;
+
+import akka.actor.AbstractLoggingActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import akka.cluster.pubsub.DistributedPubSub;
+import akka.cluster.pubsub.DistributedPubSubMediator;
+import akka.pattern.Patterns;
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Node-local cache of entity query results in front of the entity shard region.
+ * <p>
+ * Entries are filled from {@link EntityMessage.QueryAck} replies and kept fresh by the
+ * {@link EntityMessage.EntityUpdated} messages each entity publishes after a write. An entry older than
+ * {@code max-staleness} is refreshed from the entity, which bounds how stale an answer can be when an
+ * update message is lost. Queries that wait for pending writes always go to the entity.
+ */
+class EntityNearCacheActor extends AbstractLoggingActor {
+    static final String topic = "entity-updates";
+
+    private final ActorRef shardRegion;
+    private final int maxEntries;
+    private final long maxStalenessNanos;
+    private final Duration askTimeout;
+    private final Duration statsInterval;
+    private final Map<String, Cached> cache;
+    private final Stats stats = new Stats();
+    private Cancellable statsTicker;
+
+    EntityNearCacheActor(ActorRef shardRegion) {
+        this.shardRegion = shardRegion;
+        Config config = context().system().settings().config().getConfig("entity-near-cache");
+        maxEntries = config.getInt("max-entries");
+        maxStalenessNanos = config.getDuration("max-staleness").toNanos();
+        askTimeout = config.getDuration("ask-timeout");
+        statsInterval = config.getDuration("stats-interval");
+        cache = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(EntityMessage.Query.class, this::query)
+                .match(Fetched.class, this::fetched)
+                .match(EntityMessage.EntityUpdated.class, this::updated)
+                .match(DistributedPubSubMediator.SubscribeAck.class, ack -> log().debug("{}", ack))
+                .match(GetStats.class, g -> sender().tell(stats.copy(cache.size()), self()))
+                .matchEquals("stats", t -> log().info("{}", stats.copy(cache.size())))
+                .build();
+    }
+
+    private void query(EntityMessage.Query query) {
+        Cached cached = query.waitForPendingWrites ? null : cache.get(query.id.id);
+
+        if (cached == null) {
+            stats.misses++;
+            fetch(query);
+        } else if (System.nanoTime() - cached.nanoTime > maxStalenessNanos) {
+            stats.stale++;
+            fetch(query);
+        } else {
+            stats.hits++;
+            sender().tell(EntityMessage.QueryAck.from(query, cached.entity, cached.sequenceNr), self());
+        }
+    }
+
+    private void fetch(EntityMessage.Query query) {
+        ActorRef replyTo = sender();
+        Patterns.ask(shardRegion, query, askTimeout)
+                .thenAccept(response -> self().tell(new Fetched(response, replyTo), ActorRef.noSender()));
+    }
+
+    private void fetched(Fetched fetched) {
+        if (fetched.response instanceof EntityMessage.QueryAck) {
+            EntityMessage.QueryAck queryAck = (EntityMessage.QueryAck) fetched.response;
+            put(queryAck.entity, queryAck.sequenceNr);
+        }
+        fetched.replyTo.tell(fetched.response, self());
+    }
+
+    private void updated(EntityMessage.EntityUpdated entityUpdated) {
+        if (cache.containsKey(entityUpdated.entity.id.id)) {
+            stats.updates++;
+            put(entityUpdated.entity, entityUpdated.sequenceNr);
+        }
+    }
+
+    private void put(Entity entity, long sequenceNr) {
+        Cached cached = cache.get(entity.id.id);
+        if (cached == null || cached.sequenceNr <= sequenceNr) {
+            cache.put(entity.id.id, new Cached(entity, sequenceNr));
+        }
+    }
+
+    @Override
+    public void preStart() {
+        log().info("Start");
+        DistributedPubSub.get(context().system()).mediator().tell(new DistributedPubSubMediator.Subscribe(topic, self()), self());
+        statsTicker = context().system().scheduler().schedule(
+                statsInterval,
+                statsInterval,
+                self(),
+                "stats",
+                context().dispatcher(),
+                ActorRef.noSender()
+        );
+    }
+
+    @Override
+    public void postStop() {
+        log().info("Stop");
+        statsTicker.cancel();
+    }
+
+    static Props props(ActorRef shardRegion) {
+        return Props.create(EntityNearCacheActor.class, shardRegion);
+    }
+
+    private static class Cached {
+        final Entity entity;
+        final long sequenceNr;
+        final long nanoTime = System.nanoTime();
+
+        Cached(Entity entity, long sequenceNr) {
+            this.entity = entity;
+            this.sequenceNr = sequenceNr;
+        }
+    }
+
+    private static class Fetched {
+        final Object response;
+        final ActorRef replyTo;
+
+        Fetched(Object response, ActorRef replyTo) {
+            this.response = response;
+            this.replyTo = replyTo;
+        }
+    }
+
+    static class GetStats {
+    }
+
+    static class Stats {
+        long hits;
+        long misses;
+        long stale;
+        long updates;
+        int entries;
+
+        Stats copy(int entries) {
+            Stats stats = new Stats();
+            stats.hits = hits;
+            stats.misses = misses;
+            stats.stale = stale;
+            stats.updates = updates;
+            stats.entries = entries;
+            return stats;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[entries %d, hits %d, misses %d, stale %d, updates %d]",
+                    getClass().getSimpleName(), entries, hits, misses, stale, updates);
+        }
+    }
+}
@@ -1,86 +1,516 @@
 package cluster.persistence;
 
+import akka.actor.ActorRef;
+import akka.actor.Address;
+import akka.actor.Cancellable;
+import akka.actor.NotInfluenceReceiveTimeout;
 import akka.actor.PoisonPill;
 import akka.actor.Props;
 import akka.actor.ReceiveTimeout;
+import akka.cluster.Cluster;
+import akka.cluster.Member;
+import akka.cluster.MemberStatus;
+import akka.cluster.pubsub.DistributedPubSub;
+import akka.cluster.pubsub.DistributedPubSubMediator;
+import akka.cluster.sharding.ClusterSharding;
 import akka.cluster.sharding.ShardRegion;
-import akka.event.Logging;
-import akka.event.LoggingAdapter;
+import akka.japi.Pair;
+import akka.japi.Procedure;
 import akka.persistence.AbstractPersistentActor;
+import akka.persistence.DeleteMessagesFailure;
+import akka.persistence.DeleteMessagesSuccess;
+import akka.persistence.Recovery;
 import akka.persistence.RecoveryCompleted;
+import akka.persistence.SaveSnapshotFailure;
+import akka.persistence.SaveSnapshotSuccess;
+import akka.persistence.SnapshotOffer;
 import akka.persistence.journal.Tagged;
-import scala.concurrent.duration.Duration;
-import scala.concurrent.duration.FiniteDuration;
+import scala.PartialFunction;
+import scala.runtime.BoxedUnit;
 
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
 
 class EntityPersistenceActor extends AbstractPersistentActor {
-    private final LoggingAdapter log = Logging.getLogger(context().system(), this);
-    private Entity entity;
-    private final FiniteDuration receiveTimeout = Duration.create(60, TimeUnit.SECONDS);
+    private final EntitySettings settings = EntitySettings.get(context().system());
+    private final String shardName = context().parent().path().name();
+    private final long startedNanos = System.nanoTime();
+    private final CommandDedupWindow dedupWindow = new CommandDedupWindow(settings.dedupWindow);
+    private BigDecimal balance;
+    private Map<EntityMessage.EntityCommand, Long> admitted;
+    private List<Pair<Object, ActorRef>> held;
+    private Pair<EntityMessage.Relocate, ActorRef> earlyRelocate;
+    private Deque<Persisting> persisting;
+    private int pendingPersists;
+    private long replayedEvents;
+    private long durableSnapshotSequenceNr;
+    private PendingDelete pendingDelete;
 
+    private static final SharedReceive<EntityPersistenceActor> receiveRecover = SharedReceive.<EntityPersistenceActor>builder()
+            .match(EntityMessage.DepositEvent.class, EntityPersistenceActor::depositRecover)
+            .match(EntityMessage.WithdrawalEvent.class, EntityPersistenceActor::withdrawalRecover)
+            .match(SnapshotOffer.class, EntityPersistenceActor::snapshotRecover)
+            .match(RecoveryCompleted.class, (actor, completed) -> actor.recoveryCompleted())
+            .match(EntityMessage.Query.class, EntityPersistenceActor::query)
+            .build();
+
+    private static final SharedReceive<EntityPersistenceActor> receive = SharedReceive.<EntityPersistenceActor>builder()
+            .match(EntityMessage.EntityCommand.class, (actor, command) -> !actor.handleHere(command.id), EntityPersistenceActor::hold)
+            .match(EntityMessage.Query.class, (actor, query) -> !actor.handleHere(query.id), EntityPersistenceActor::hold)
+            .match(EntityMessage.Relocate.class, EntityPersistenceActor::relocate)
+            .match(EntityMessage.Prewarm.class, EntityPersistenceActor::prewarm)
+            .match(EntityMessage.HandOff.class, EntityPersistenceActor::handOff)
+            .match(EntityRouting.Changed.class, (actor, changed) -> actor.routingChanged())
+            .match(EntityMessage.DepositCommand.class, EntityPersistenceActor::deposit)
+            .match(EntityMessage.WithdrawalCommand.class, EntityPersistenceActor::withdrawal)
+            .match(EntityMessage.Query.class, EntityPersistenceActor::query)
+            .match(EntityMessage.ShardQuery.class, EntityPersistenceActor::shardQuery)
+            .match(EntityMessage.CommandBatch.class, EntityPersistenceActor::commandBatch)
+            .match(EntityMessage.MigrateShard.class, EntityPersistenceActor::migrateShard)
+            .match(EntityMessage.PrewarmShard.class, EntityPersistenceActor::prewarmShard)
+            .match(SaveSnapshotSuccess.class, EntityPersistenceActor::snapshotSaved)
+            .match(SaveSnapshotFailure.class, EntityPersistenceActor::snapshotFailed)
+            .matchEquals(PendingDelete.retry, EntityPersistenceActor::deleteEvents)
+            .match(DeleteMessagesSuccess.class, EntityPersistenceActor::eventsDeleted)
+            .match(DeleteMessagesFailure.class, EntityPersistenceActor::eventsNotDeleted)
+            .matchEquals(ReceiveTimeout.getInstance(), EntityPersistenceActor::passivate)
+            .build();
+
+    /**
+     * The receives are shared by all entities, see {@link SharedReceive}.
+     */
     @Override
     public Receive createReceiveRecover() {
-        return receiveBuilder()
-                .match(EntityMessage.DepositEvent.class, this::depositRecover)
-                .match(EntityMessage.WithdrawalEvent.class, this::withdrawalRecover)
-                .match(RecoveryCompleted.class, c -> recoveryCompleted())
-                .match(EntityMessage.Query.class, this::query)
-                .build();
+        return receiveRecover.receive(this);
     }
 
     private void depositRecover(EntityMessage.DepositEvent depositEvent) {
         update(depositEvent);
-        log.info("Recover {} {}", entity, depositEvent);
+        settings.metrics.replayed();
+        replayedEvents++;
+        settings.log.debug("Recover {} {} {}", persistenceId(), balance, depositEvent);
     }
 
     private void withdrawalRecover(EntityMessage.WithdrawalEvent withdrawalEvent) {
         update(withdrawalEvent);
-        log.info("Recover {} {}", entity, withdrawalEvent);
+        settings.metrics.replayed();
+        replayedEvents++;
+        settings.log.debug("Recover {} {} {}", persistenceId(), balance, withdrawalEvent);
+    }
+
+    /**
+     * Only a durable snapshot moves the bound that events are deleted up to. A state offered from the warm
+     * state cache carries the bound of the entity's last durable snapshot instead.
+     */
+    private void snapshotRecover(SnapshotOffer snapshotOffer) {
+        Object state = snapshotOffer.snapshot();
+        if (state instanceof WarmStateCache.Cached) {
+            durableSnapshotSequenceNr = ((WarmStateCache.Cached) state).durableSequenceNr;
+            state = ((WarmStateCache.Cached) state).state;
+        } else {
+            durableSnapshotSequenceNr = snapshotOffer.metadata().sequenceNr();
+        }
+        Snapshot snapshot = (Snapshot) state;
+        balance = snapshot.entity.balance.amount;
+        dedupWindow.addAll(snapshot.recentCommands);
+        settings.log.debug("Recover {} {} {}", persistenceId(), balance, snapshotOffer.metadata());
     }
 
     private void recoveryCompleted() {
-        log.debug("Recovery completed {}", entity);
+        long recoveryNanos = System.nanoTime() - startedNanos;
+        settings.recoveryScheduler.release(persistenceId());
+        settings.metrics.recovered();
+        ShardLatency shardLatency = settings.shardLatency.shard(shardName);
+        if (shardLatency != null) {
+            shardLatency.recovered(recoveryNanos, replayedEvents);
+        }
+        settings.flightEvents.recovered(shardName, self().path().name(), replayedEvents, recoveryNanos);
+        settings.log.debug("Recovery completed {} {} in {}ms, {} events replayed", persistenceId(), balance, TimeUnit.NANOSECONDS.toMillis(recoveryNanos), replayedEvents);
     }
 
     @Override
     public Receive createReceive() {
-        return receiveBuilder()
-                .match(EntityMessage.DepositCommand.class, this::deposit)
-                .match(EntityMessage.WithdrawalCommand.class, this::withdrawal)
-                .match(EntityMessage.Query.class, this::query)
-                .matchEquals(ReceiveTimeout.getInstance(), t -> passivate())
-                .build();
+        return receive.receive(this);
+    }
+
+    /**
+     * Commands and queries are handled only when the local routing table routes this entity to its shard and
+     * no earlier messages are held.
+     */
+    private boolean handleHere(Entity.Id id) {
+        return held == null && settings.entityRouting.route(id, shardName) == EntityRouting.Route.here;
+    }
+
+    /**
+     * Hold the message until the routing table changes. It is handled here if the entity is routed back to
+     * this shard, otherwise it is sent on to the shard region with the other held messages.
+     */
+    private void hold(Object message) {
+        if (held == null) {
+            held = new ArrayList<>();
+            settings.entityRouting.subscribe(self());
+        }
+        held.add(Pair.create(message, sender()));
+        routingChanged();
+    }
+
+    private void routingChanged() {
+        if (earlyRelocate != null && settings.entityRouting.table().version >= earlyRelocate.first().version) {
+            self().tell(earlyRelocate.first(), earlyRelocate.second());
+            earlyRelocate = null;
+        }
+        if (held == null || entityId() == null) {
+            unsubscribeIfIdle();
+            return;
+        }
+        EntityRouting.Route route = settings.entityRouting.route(entityId(), shardName);
+        if (route == EntityRouting.Route.pending) {
+            return;
+        }
+        List<Pair<Object, ActorRef>> messages = held;
+        held = null;
+        unsubscribeIfIdle();
+        if (route == EntityRouting.Route.here) {
+            messages.forEach(message -> self().tell(message.first(), message.second()));
+        } else {
+            settings.log.info("Routed {} to shard {}, forwarding {} messages", persistenceId(), settings.entityRouting.shardId(entityId()), messages.size());
+            ActorRef shardRegion = ClusterSharding.get(context().system()).shardRegion("entity");
+            messages.forEach(message -> shardRegion.tell(message.first(), message.second()));
+            passivate();
+        }
+    }
+
+    private void unsubscribeIfIdle() {
+        if (held == null && earlyRelocate == null) {
+            settings.entityRouting.unsubscribe(self());
+        }
+    }
+
+    /**
+     * Confirm that this entity, pending a move, has no writes in flight. Messages arriving from now on are
+     * held until the move completes. A relocate can arrive before this node has seen the table that marks the
+     * entity pending, it is handled once that table is here.
+     */
+    private void relocate(EntityMessage.Relocate relocate) {
+        if (settings.entityRouting.table().version < relocate.version) {
+            earlyRelocate = Pair.create(relocate, sender());
+            settings.entityRouting.subscribe(self());
+            routingChanged();
+        } else if (pendingPersists > 0) {
+            stash();
+        } else {
+            settings.log.info("{} <- {}", relocate, sender());
+            sender().tell(new EntityMessage.Relocated(relocate.id), self());
+        }
+    }
+
+    /**
+     * A prewarm is handled once recovery has completed, so the reply tells that the entity is ready.
+     */
+    private void prewarm(EntityMessage.Prewarm prewarm) {
+        sender().tell(new EntityMessage.Prewarmed(prewarm.id), self());
+    }
+
+    /**
+     * Stop when the shard is handed off, after the write in flight. The first entity of the shard to stop sends
+     * the busiest entities of the shard to the shard region of another member, which holds the message until the
+     * shard has its new home and delivers it to the shard agent there. The local region is not used, a node that
+     * is leaving would wait for the message to be delivered before it completes its shutdown.
+     */
+    private void handOff(EntityMessage.HandOff handOff) {
+        if (pendingPersists > 0) {
+            stash();
+            return;
+        }
+        List<String> entityIds = settings.prewarmEntities > 0 ? settings.shardLoadMeter.handOff(shardName, settings.prewarmEntities) : Collections.emptyList();
+        if (!entityIds.isEmpty()) {
+            Cluster cluster = Cluster.get(context().system());
+            List<Address> others = StreamSupport.stream(cluster.state().getMembers().spliterator(), false)
+                    .filter(member -> member.status().equals(MemberStatus.up()) && !member.address().equals(cluster.selfAddress()))
+                    .map(Member::address)
+                    .collect(Collectors.toList());
+            if (!others.isEmpty()) {
+                Address address = others.get(ThreadLocalRandom.current().nextInt(others.size()));
+                context().actorSelection(address + "/system/sharding/entity").tell(new EntityMessage.PrewarmShard(shardName, entityIds), self());
+            }
+        }
+        context().stop(self());
+    }
+
+    private Entity.Id entityId() {
+        return EntityMessage.isShardAgentEntityId(self().path().name()) ? null : new Entity.Id(self().path().name());
     }
 
     private void deposit(EntityMessage.DepositCommand depositCommand) {
-        log.info("{} <- {}", depositCommand, sender());
-        persist(tagCommand(depositCommand), taggedEvent -> handleDeposit(depositCommand, taggedEvent));
+        if (!admit(depositCommand)) {
+            return;
+        }
+        if (pendingPersists > 0) {
+            stash();
+        } else if (!acknowledgedDuplicate(depositCommand)) {
+            settings.log.info("{} <- {}", depositCommand, sender());
+            persistCommand(depositCommand, tagCommand(depositCommand), taggedEvent -> handleDeposit(depositCommand, taggedEvent));
+        }
     }
 
     private void handleDeposit(EntityMessage.DepositCommand depositCommand, Tagged taggedEvent) {
-        log.info("Deposit with tags {}", taggedEvent.tags());
+        settings.log.info("Deposit {} with tags {}", persistenceId(), taggedEvent.tags());
         if (taggedEvent.payload() instanceof EntityMessage.DepositEvent) {
             EntityMessage.DepositEvent depositEvent = (EntityMessage.DepositEvent) taggedEvent.payload();
             update(depositEvent);
-            log.info("{} {} {} -> {}", depositCommand, depositEvent, entity, sender());
-            sender().tell(EntityMessage.CommandAck.from(depositCommand, depositEvent), self());
+            settings.log.info("{} {} balance {} -> {}", depositCommand, depositEvent, balance, sender());
+            ack(depositCommand, depositEvent);
+            publishUpdate();
+            snapshotIfDue();
         }
+        persisted(depositCommand, taggedEvent);
     }
 
     private void withdrawal(EntityMessage.WithdrawalCommand withdrawalCommand) {
-        log.info("{} <- {}", withdrawalCommand, sender());
-        persist(tagCommand(withdrawalCommand), taggedEvent -> handleWithdrawal(withdrawalCommand, taggedEvent));
+        if (!admit(withdrawalCommand)) {
+            return;
+        }
+        if (pendingPersists > 0) {
+            stash();
+        } else if (!acknowledgedDuplicate(withdrawalCommand)) {
+            settings.log.info("{} <- {}", withdrawalCommand, sender());
+            persistCommand(withdrawalCommand, tagCommand(withdrawalCommand), taggedEvent -> handleWithdrawal(withdrawalCommand, taggedEvent));
+        }
     }
 
     private void handleWithdrawal(EntityMessage.WithdrawalCommand withdrawalCommand, Tagged taggedEvent) {
-        log.info("Withdrawal with tags {}", taggedEvent.tags());
+        settings.log.info("Withdrawal {} with tags {}", persistenceId(), taggedEvent.tags());
         if (taggedEvent.payload() instanceof EntityMessage.WithdrawalEvent) {
             EntityMessage.WithdrawalEvent withdrawalEvent = (EntityMessage.WithdrawalEvent) taggedEvent.payload();
             update(withdrawalEvent);
-            log.info("{} {} {} -> {}", withdrawalCommand, withdrawalEvent, entity, sender());
-            sender().tell(EntityMessage.CommandAck.from(withdrawalCommand, withdrawalEvent), self());
+            settings.log.info("{} {} balance {} -> {}", withdrawalCommand, withdrawalEvent, balance, sender());
+            ack(withdrawalCommand, withdrawalEvent);
+            publishUpdate();
+            snapshotIfDue();
+        }
+        persisted(withdrawalCommand, taggedEvent);
+    }
+
+    /**
+     * A command takes a node admission slot when it first arrives and keeps it while stashed until it is
+     * persisted, so the slots bound what waits in this node's entities. Without a free slot the command is
+     * rejected.
+     */
+    private boolean admit(EntityMessage.EntityCommand command) {
+        if (admitted != null && admitted.containsKey(command)) {
+            return true;
+        }
+        if (settings.admissionControl.tryAcquire()) {
+            if (admitted == null) {
+                admitted = new IdentityHashMap<>(4);
+            }
+            admitted.put(command, System.nanoTime());
+            settings.flightEvents.commandReceived(shardName, self().path().name(), command.getClass().getSimpleName());
+            return true;
+        }
+        settings.log.debug("Overloaded, reject {} <- {}", command, sender());
+        sender().tell(EntityMessage.CommandRejected.from(command, "overloaded"), self());
+        return false;
+    }
+
+    /**
+     * A command with the idempotency key of a command that was already persisted is a retry, it gets the
+     * original ack and nothing is written. A command that reuses a key for a different kind of command or a
+     * different amount is rejected. Commands are stashed while a write is pending, so a retry that arrives
+     * before its original completes is checked after the original is in the window.
+     */
+    private boolean acknowledgedDuplicate(EntityMessage.EntityCommand command) {
+        EntityMessage.EntityEvent event = dedupWindow.get(command);
+        if (event == null) {
+            return false;
+        }
+        if (repeats(command, event)) {
+            settings.log.info("Duplicate {} <- {}", command, sender());
+            ack(command, event);
+        } else {
+            settings.log.warning("Idempotency key reused, reject {} <- {}", command, sender());
+            sender().tell(EntityMessage.CommandRejected.from(command, "idempotency key reused"), self());
         }
+        if (admitted(command) != null) {
+            settings.admissionControl.release();
+        }
+        return true;
+    }
+
+    private static boolean repeats(EntityMessage.EntityCommand command, EntityMessage.EntityEvent event) {
+        boolean sameKind = command instanceof EntityMessage.WithdrawalCommand == event instanceof EntityMessage.WithdrawalEvent;
+        return sameKind && command.amount.amount.compareTo(event.amount.amount) == 0;
+    }
+
+    /**
+     * Remove a command from the admitted commands and return when it was admitted, or null. Most entities are
+     * idle with nothing admitted, so the map only exists while a command is.
+     */
+    private Long admitted(EntityMessage.EntityCommand command) {
+        if (admitted == null) {
+            return null;
+        }
+        Long admittedNanos = admitted.remove(command);
+        if (admitted.isEmpty()) {
+            admitted = null;
+        }
+        return admittedNanos;
+    }
+
+    /**
+     * With queries-during-persist on, commands are written with persistAsync so queries are answered from the
+     * last confirmed state while a write is in flight. Commands are still handled one at a time by stashing
+     * them until the pending write completes, as persist would. The commands being written are kept in write
+     * order, which is the order the journal completes them in, with the time each write started.
+     */
+    private void persistCommand(EntityMessage.EntityCommand command, Tagged taggedEvent, Procedure<Tagged> handler) {
+        settings.shardLoadMeter.record(shardName, persistenceId());
+        settings.flightEvents.persistStarted(shardName, self().path().name(), taggedEvent);
+        pendingPersists++;
+        if (persisting == null) {
+            persisting = new ArrayDeque<>(2);
+        }
+        persisting.add(new Persisting(command, System.nanoTime()));
+        if (settings.queriesDuringPersist) {
+            persistAsync(taggedEvent, handler);
+        } else {
+            persist(taggedEvent, handler);
+        }
+    }
+
+    private void publishUpdate() {
+        if (settings.publishUpdates) {
+            DistributedPubSub.get(context().system()).mediator().tell(
+                    new DistributedPubSubMediator.Publish(EntityNearCacheActor.topic, new EntityMessage.EntityUpdated(entity(new Entity.Id(persistenceId())), lastSequenceNr())),
+                    self());
+        }
+    }
+
+    private void ack(EntityMessage.EntityCommand command, EntityMessage.EntityEvent event) {
+        sender().tell(EntityMessage.CommandAck.from(command, event), self());
+        Long admittedNanos = admitted == null ? null : admitted.get(command);
+        if (admittedNanos != null) {
+            settings.flightEvents.commandAcked(shardName, self().path().name(), command.getClass().getSimpleName(), System.nanoTime() - admittedNanos);
+        }
+    }
+
+    private void persisted(EntityMessage.EntityCommand command, Tagged taggedEvent) {
+        long persistNanos = System.nanoTime() - persisting.peek().startedNanos;
+        settings.metrics.persisted();
+        ShardLatency shardLatency = settings.shardLatency.shard(shardName);
+        if (shardLatency != null) {
+            shardLatency.persisted(persistNanos);
+        }
+        settings.flightEvents.persisted(shardName, self().path().name(), taggedEvent, lastSequenceNr(), persistNanos);
+        Long admittedNanos = admitted(command);
+        if (admittedNanos != null) {
+            settings.admissionControl.release(System.nanoTime() - admittedNanos);
+        }
+        writeCompleted();
+    }
+
+    /**
+     * The journal rejected the event of the oldest command being written, for example because it could not be
+     * serialized. Its handler does not run, so the command is rejected here and the entity goes on with the
+     * commands stashed behind it.
+     */
+    @Override
+    public void onPersistRejected(Throwable cause, Object event, long seqNr) {
+        settings.log.warning("Persist rejected {} seqNr {}, {}", persistenceId(), seqNr, cause.getMessage());
+        EntityMessage.EntityCommand command = persisting == null ? null : persisting.peek().command;
+        if (command != null) {
+            sender().tell(EntityMessage.CommandRejected.from(command, "persist rejected"), self());
+            if (admitted(command) != null) {
+                settings.admissionControl.release();
+            }
+        }
+        writeCompleted();
+    }
+
+    private void writeCompleted() {
+        if (persisting != null) {
+            persisting.poll();
+            if (persisting.isEmpty()) {
+                persisting = null;
+            }
+        }
+        if (--pendingPersists == 0) {
+            unstashAll();
+        }
+    }
+
+    private void snapshotIfDue() {
+        if (settings.snapshotEvery > 0 && lastSequenceNr() % settings.snapshotEvery == 0) {
+            saveSnapshot(snapshot());
+        }
+    }
+
+    private Snapshot snapshot() {
+        return new Snapshot(entity(new Entity.Id(persistenceId())), dedupWindow.entries());
+    }
+
+    /**
+     * Events are deleted up to the previous snapshot, not the one just saved, so a recovery that cannot load
+     * the latest snapshot falls back to the previous one and still finds the events after it.
+     */
+    private void snapshotSaved(SaveSnapshotSuccess saveSnapshotSuccess) {
+        settings.log.debug("Snapshot saved {}", saveSnapshotSuccess.metadata());
+        long previousSnapshotSequenceNr = durableSnapshotSequenceNr;
+        durableSnapshotSequenceNr = saveSnapshotSuccess.metadata().sequenceNr();
+        if (settings.journalRetention.enabled() && previousSnapshotSequenceNr > 0) {
+            cancelPendingDelete();
+            pendingDelete = new PendingDelete(previousSnapshotSequenceNr, System.currentTimeMillis());
+            deleteEvents();
+        }
+    }
+
+    /**
+     * Delete the events covered by the previous snapshot once the read side has processed them and the node
+     * permits a delete, see {@link JournalRetention}. Tried again while the entity runs, a delete still pending
+     * when it stops is covered by the delete of its next snapshot.
+     */
+    private void deleteEvents() {
+        if (pendingDelete == null) {
+            return;
+        }
+        if (settings.journalRetention.processed(EntityMessage.eventTag(entityId()), pendingDelete.snapshotMillis)
+                && settings.journalRetention.tryAcquire()) {
+            settings.log.debug("Delete events {} to {}", persistenceId(), pendingDelete.toSequenceNr);
+            deleteMessages(pendingDelete.toSequenceNr);
+            pendingDelete = null;
+        } else {
+            pendingDelete.retryScheduled = context().system().scheduler().scheduleOnce(
+                    settings.journalRetention.retryInterval(), self(), PendingDelete.retry, context().dispatcher(), ActorRef.noSender());
+        }
+    }
+
+    private void cancelPendingDelete() {
+        if (pendingDelete != null && pendingDelete.retryScheduled != null) {
+            pendingDelete.retryScheduled.cancel();
+        }
+    }
+
+    private void eventsDeleted(DeleteMessagesSuccess deleteMessagesSuccess) {
+        settings.log.debug("Events deleted {} to {}", persistenceId(), deleteMessagesSuccess.toSequenceNr());
+    }
+
+    private void eventsNotDeleted(DeleteMessagesFailure deleteMessagesFailure) {
+        settings.log.warning("Delete events {} to {} failed, {}", persistenceId(), deleteMessagesFailure.toSequenceNr(), deleteMessagesFailure.cause().getMessage());
+    }
+
+    private void snapshotFailed(SaveSnapshotFailure saveSnapshotFailure) {
+        settings.log.warning("Snapshot failed {}, {}", saveSnapshotFailure.metadata(), saveSnapshotFailure.cause().getMessage());
     }
 
     private static Tagged tagCommand(EntityMessage.DepositCommand depositCommand) {
@@ -92,48 +522,183 @@ class EntityPersistenceActor extends AbstractPersistentActor {
     }
 
     private void update(EntityMessage.DepositEvent depositEvent) {
-        entity = entity == null
-                ? Entity.deposit(depositEvent.id.id, depositEvent.amount.amount)
-                : Entity.deposit(entity, depositEvent.amount.amount);
+        dedupWindow.add(depositEvent);
+        balance = balance == null
+                ? depositEvent.amount.amount
+                : balance.add(depositEvent.amount.amount);
     }
 
     private void update(EntityMessage.WithdrawalEvent withdrawalEvent) {
-        entity = entity == null
-                ? Entity.withdrawal(withdrawalEvent.id.id, withdrawalEvent.amount.amount)
-                : Entity.withdrawal(entity, withdrawalEvent.amount.amount);
+        dedupWindow.add(withdrawalEvent);
+        balance = balance == null
+                ? BigDecimal.ZERO.subtract(withdrawalEvent.amount.amount)
+                : balance.subtract(withdrawalEvent.amount.amount);
+    }
+
+    /**
+     * The entity is kept as just its balance, its id is the name of this actor. The entity is created when it
+     * is sent or saved, or null before its first event.
+     */
+    private Entity entity(Entity.Id id) {
+        return balance == null ? null : Entity.of(id, balance);
     }
 
     private void query(EntityMessage.Query query) {
-        if (entity == null) {
+        if (query.waitForPendingWrites && pendingPersists > 0) {
+            stash();
+        } else if (balance == null) {
+            settings.shardLoadMeter.record(shardName, query.id.id);
             sender().tell(EntityMessage.QueryAckNotFound.from(query), self());
         } else {
-            sender().tell(EntityMessage.QueryAck.from(query, entity), self());
+            settings.shardLoadMeter.record(shardName, query.id.id);
+            sender().tell(EntityMessage.QueryAck.from(query, entity(query.id), lastSequenceNr() - pendingPersists), self());
         }
     }
 
+    /**
+     * Fan a shard query out to the entities of this shard through the parent shard, so each entity is
+     * reached locally. Ids that do not belong to this shard are left unanswered.
+     */
+    private void shardQuery(EntityMessage.ShardQuery shardQuery) {
+        List<EntityMessage.Query> queries = shardQuery.ids.stream()
+                .filter(id -> settings.entityRouting.shardId(id).equals(shardQuery.shardId))
+                .map(EntityMessage.Query::new)
+                .collect(Collectors.toList());
+        context().actorOf(BulkQueryActor.props(context().parent(), queries, shardQuery.timeoutMillis, sender()));
+    }
+
+    /**
+     * Unpack a command batch into the parent shard, the acks are gathered and returned as one batch.
+     */
+    private void commandBatch(EntityMessage.CommandBatch commandBatch) {
+        context().actorOf(CommandBatchActor.props(context().parent(), commandBatch, sender()));
+    }
+
+    /**
+     * Move the entities of this shard to the new shard layout, the migration reports back when they have all
+     * confirmed.
+     */
+    private void migrateShard(EntityMessage.MigrateShard migrateShard) {
+        context().actorOf(ShardMigrationActor.props(context().parent(), migrateShard, sender()));
+    }
+
+    /**
+     * Recover the busiest entities of a shard that has just moved here, a few at a time through the parent shard.
+     */
+    private void prewarmShard(EntityMessage.PrewarmShard prewarmShard) {
+        context().actorOf(EntityPrewarmActor.props(context().parent(), prewarmShard));
+    }
+
     private void passivate() {
         context().parent().tell(new ShardRegion.Passivate(PoisonPill.getInstance()), self());
     }
 
     @Override
     public String persistenceId() {
-        return entity == null ? self().path().name() : entity.id.id;
+        return self().path().name();
+    }
+
+    @Override
+    public Recovery recovery() {
+        return EntityMessage.isShardAgentEntityId(self().path().name()) ? Recovery.none() : super.recovery();
+    }
+
+    @Override
+    public String snapshotPluginId() {
+        return settings.warmStateCache.enabled() || settings.recoveryScheduler.enabled() ? "warm-state-snapshot-store" : super.snapshotPluginId();
+    }
+
+    /**
+     * Messages that arrive while recovering are stashed by akka-persistence before they reach the receive, so a
+     * command is seen here to move the recovery ahead of entities without one.
+     */
+    @Override
+    public void aroundReceive(PartialFunction<Object, BoxedUnit> receive, Object message) {
+        if (message instanceof EntityMessage.EntityCommand && !recoveryFinished()) {
+            settings.recoveryScheduler.commandPending(persistenceId());
+        }
+        super.aroundReceive(receive, message);
     }
 
     @Override
     public void preStart() {
-        log.info("Start");
-        context().setReceiveTimeout(receiveTimeout);
+        settings.log.info("Start {}", self().path().name());
+        context().setReceiveTimeout(settings.receiveTimeout);
     }
 
     @Override
     public void postStop() {
-        log.info("Stop passivate {}", entity == null
+        cancelPendingDelete();
+        settings.entityRouting.unsubscribe(self());
+        settings.recoveryScheduler.release(persistenceId());
+        if (held != null) {
+            ActorRef shardRegion = ClusterSharding.get(context().system()).shardRegion("entity");
+            held.forEach(message -> shardRegion.tell(message.first(), message.second()));
+        }
+        if (admitted != null) {
+            admitted.keySet().forEach(command -> settings.admissionControl.release());
+        }
+        if (balance != null && recoveryFinished() && pendingPersists == 0) {
+            settings.warmStateCache.put(persistenceId(), lastSequenceNr(), durableSnapshotSequenceNr, snapshot());
+        }
+        settings.log.info("Stop passivate {}", balance == null
                 ? String.format("(entity %s not initialized)", self().path().name())
-                : entity.id);
+                : entityId());
     }
 
     static Props props() {
         return Props.create(EntityPersistenceActor.class);
     }
+
+    /**
+     * A command whose event is being written and when the write started.
+     */
+    private static class Persisting {
+        final EntityMessage.EntityCommand command;
+        final long startedNanos;
+
+        Persisting(EntityMessage.EntityCommand command, long startedNanos) {
+            this.command = command;
+            this.startedNanos = startedNanos;
+        }
+    }
+
+    /**
+     * Events up to the snapshot before the latest that are not deleted yet. The retry message is sent to the entity itself and
+     * does not hold off its passivation.
+     */
+    private static class PendingDelete {
+        static final Object retry = new Retry();
+
+        final long toSequenceNr;
+        final long snapshotMillis;
+        Cancellable retryScheduled;
+
+        PendingDelete(long toSequenceNr, long snapshotMillis) {
+            this.toSequenceNr = toSequenceNr;
+            this.snapshotMillis = snapshotMillis;
+        }
+
+        private static class Retry implements NotInfluenceReceiveTimeout {
+        }
+    }
+
+    /**
+     * Snapshot state, the entity and the entries of its dedup window.
+     */
+    static class Snapshot implements Serializable {
+        static final long serialVersionUID = 42L;
+        final Entity entity;
+        final CommandDedupWindow.Entries recentCommands;
+
+        Snapshot(Entity entity, CommandDedupWindow.Entries recentCommands) {
+            this.entity = entity;
+            this.recentCommands = recentCommands;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, %d recent commands]", getClass().getSimpleName(), entity, recentCommands.keys.length);
+        }
+    }
 }
@@ -0,0 +1,98 @@
+package cluster.persistence;
+
+import akka.actor.AbstractLoggingActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import com.typesafe.config.Config;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Recovers the busiest entities of a shard that was handed off to this node for a {@link EntityMessage.PrewarmShard},
+ * then stops.
+ * <p>
+ * Each entity is sent a {@link EntityMessage.Prewarm} through the shard, at most {@code entity-prewarm.parallelism}
+ * at a time, and the next is sent when one answers. The recoveries are not commands, so entities with commands
+ * waiting still recover first, see {@link RecoveryScheduler}. Entities that have not answered by
+ * {@code entity-prewarm.timeout} are left to start on their next message.
+ */
+class EntityPrewarmActor extends AbstractLoggingActor {
+    private final ActorRef shard;
+    private final EntityMessage.PrewarmShard prewarmShard;
+    private final int parallelism;
+    private final FiniteDuration timeout;
+    private final Deque<Entity.Id> waiting;
+    private final Set<String> recovering = new HashSet<>();
+    private final long started = System.nanoTime();
+    private int prewarmed;
+    private Cancellable deadline;
+
+    EntityPrewarmActor(ActorRef shard, EntityMessage.PrewarmShard prewarmShard) {
+        Config config = context().system().settings().config().getConfig("entity-prewarm");
+        EntityRouting entityRouting = EntityRouting.get(context().system());
+        this.shard = shard;
+        this.prewarmShard = prewarmShard;
+        parallelism = config.getInt("parallelism");
+        timeout = FiniteDuration.create(config.getDuration("timeout").toMillis(), TimeUnit.MILLISECONDS);
+        waiting = prewarmShard.entityIds.stream()
+                .map(Entity.Id::new)
+                .filter(id -> entityRouting.shardId(id).equals(prewarmShard.shardId))
+                .collect(Collectors.toCollection(ArrayDeque::new));
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(EntityMessage.Prewarmed.class, this::prewarmed)
+                .matchEquals("deadline", d -> {
+                    log().warning("{} timed out with {} of {} entities recovered", prewarmShard, prewarmed, prewarmShard.entityIds.size());
+                    context().stop(self());
+                })
+                .build();
+    }
+
+    private void prewarmed(EntityMessage.Prewarmed prewarmed) {
+        if (recovering.remove(prewarmed.id.id)) {
+            this.prewarmed++;
+        }
+        prewarmNext();
+    }
+
+    private void prewarmNext() {
+        while (recovering.size() < parallelism && !waiting.isEmpty()) {
+            Entity.Id id = waiting.poll();
+            recovering.add(id.id);
+            shard.tell(new EntityMessage.Prewarm(id), self());
+        }
+        if (recovering.isEmpty()) {
+            log().info("Prewarmed {} of {} entities of shard {} in {}ms", prewarmed, prewarmShard.entityIds.size(),
+                    prewarmShard.shardId, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+            context().stop(self());
+        }
+    }
+
+    @Override
+    public void preStart() {
+        deadline = context().system().scheduler().scheduleOnce(
+                timeout,
+                self(),
+                "deadline",
+                context().dispatcher(),
+                ActorRef.noSender()
+        );
+        prewarmNext();
+    }
+
+    @Override
+    public void postStop() {
+        deadline.cancel();
+    }
+
+    static Props props(ActorRef shard, EntityMessage.PrewarmShard prewarmShard) {
+        return Props.create(EntityPrewarmActor.class, shard, prewarmShard);
+    }
+}
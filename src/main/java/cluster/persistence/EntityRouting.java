@@ -0,0 +1,355 @@
+package cluster.persistence;
+
+import akka.actor.*;
+import akka.cluster.Cluster;
+import akka.cluster.ddata.DistributedData;
+import akka.cluster.ddata.Key;
+import akka.cluster.ddata.LWWMap;
+import akka.cluster.ddata.LWWMapKey;
+import akka.cluster.ddata.LWWRegister;
+import akka.cluster.ddata.LWWRegisterKey;
+import akka.cluster.ddata.Replicator;
+import akka.pattern.Patterns;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Entity to shard routing, replicated to every node with Distributed Data.
+ * <p>
+ * Entities are routed to their home shard in the current layout of {@link Table#numberOfShards} shards, unless
+ * the {@link Table} lists them as isolated on a shard of their own. Every node routes by its local copy of the
+ * table, so for a while after a change nodes can disagree. Entities therefore only handle messages when the
+ * local table routes them to their own shard, see {@link #route(Entity.Id, String)}, which keeps an entity from
+ * running in two shards at once. Until a node has read the table from the other nodes it routes nothing here.
+ * <p>
+ * An entity is moved in two steps. First it is marked pending, an entity that is pending handles nothing and
+ * holds on to its messages. Once the entity in the old shard has finished its writes the move is completed and
+ * the held messages are sent on to the new shard. A change of the shard count moves the entities of one old
+ * shard at a time the same way, entities of old shards that are not migrated yet keep their old shard.
+ * <p>
+ * Every node also records its {@code entity-sharding.number-of-shards}, see {@link #shardCountVotesKey}. The
+ * layout is changed once all nodes ask for the same count, so a rolling restart with a new count changes it
+ * after the last node has restarted.
+ */
+class EntityRouting implements Extension {
+    static final Id id = new Id();
+    static final Key<LWWRegister<Table>> key = LWWRegisterKey.create("entity-routing");
+    static final Key<LWWMap<String, Integer>> shardCountVotesKey = LWWMapKey.create("entity-shard-count-votes");
+
+    private final ActorSystem actorSystem;
+    private final Set<ActorRef> subscribers = ConcurrentHashMap.newKeySet();
+    private final Duration writeTimeout;
+    private final int configuredNumberOfShards;
+    private volatile Table table = Table.initial;
+    private volatile boolean ready;
+
+    private EntityRouting(ExtendedActorSystem actorSystem) {
+        this.actorSystem = actorSystem;
+        writeTimeout = actorSystem.settings().config().getDuration("entity-routing.write-timeout");
+        configuredNumberOfShards = actorSystem.settings().config().getInt("entity-sharding.number-of-shards");
+        actorSystem.systemActorOf(Props.create(TableSubscriber.class, this), "entityRouting");
+    }
+
+    static EntityRouting get(ActorSystem actorSystem) {
+        return id.get(actorSystem);
+    }
+
+    Table table() {
+        return table;
+    }
+
+    String shardId(Entity.Id id) {
+        return table.shardId(id);
+    }
+
+    /**
+     * Whether an entity running in the shard with the given actor name should handle its messages now.
+     */
+    Route route(Entity.Id id, String shardActorName) {
+        Table current = table;
+        if (!ready || current.pending(id)) {
+            return Route.pending;
+        }
+        return isShard(current.shardId(id), shardActorName) ? Route.here : Route.elsewhere;
+    }
+
+    static boolean isShard(String shardId, String shardActorName) {
+        try {
+            return URLEncoder.encode(shardId, "utf-8").equals(shardActorName);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Send {@link Changed} to the actor each time the local table changes, until it unsubscribes or stops.
+     */
+    void subscribe(ActorRef actor) {
+        subscribers.add(actor);
+    }
+
+    void unsubscribe(ActorRef actor) {
+        subscribers.remove(actor);
+    }
+
+    /**
+     * Replace the table with the given change of the latest table this node has, the change must increase the
+     * version. Completes with the new table when all reachable nodes have it or after the write timeout, the
+     * table still spreads to the other nodes after a timeout.
+     * <p>
+     * The change is applied by the local replicator, so changes made on the same node do not overwrite each
+     * other.
+     */
+    CompletionStage<Table> update(UnaryOperator<Table> change) {
+        AtomicReference<Table> updated = new AtomicReference<>();
+        Replicator.Update<LWWRegister<Table>> update = new Replicator.Update<>(
+                key,
+                LWWRegister.create(DistributedData.get(actorSystem).selfUniqueAddress(), Table.initial),
+                new Replicator.WriteAll(FiniteDuration.create(writeTimeout.toMillis(), TimeUnit.MILLISECONDS)),
+                register -> {
+                    updated.set(change.apply(register.getValue()));
+                    return register.withValue(DistributedData.get(actorSystem).selfUniqueAddress(), updated.get(), (current, value) -> value.version);
+                }
+        );
+        return Patterns.ask(DistributedData.get(actorSystem).replicator(), update, writeTimeout.plusSeconds(1))
+                .thenApply(response -> {
+                    changed(updated.get());
+                    return updated.get();
+                });
+    }
+
+    private void changed(Table newTable) {
+        synchronized (this) {
+            if (newTable.version <= table.version) {
+                return;
+            }
+            table = newTable;
+        }
+        notifySubscribers();
+    }
+
+    private void ready(Table readTable) {
+        synchronized (this) {
+            if (readTable.version > table.version) {
+                table = readTable;
+            }
+            ready = true;
+        }
+        actorSystem.log().info("Entity routing ready {}", table);
+        notifySubscribers();
+    }
+
+    private void notifySubscribers() {
+        Changed changed = new Changed(table.version);
+        subscribers.forEach(subscriber -> subscriber.tell(changed, ActorRef.noSender()));
+    }
+
+    enum Route {
+        here, pending, elsewhere
+    }
+
+    static class Changed {
+        final long version;
+
+        Changed(long version) {
+            this.version = version;
+        }
+    }
+
+    /**
+     * Immutable routing table, each change makes a new table with the next version.
+     * <p>
+     * While the shard count changes to {@link #nextNumberOfShards} the entities of each old shard move to their
+     * home shard in the new layout once the old shard is in {@link #migrated}. The entities of old shards in
+     * {@link #migrating} are pending. When every old shard has migrated the new layout becomes the current one.
+     */
+    static class Table implements Serializable {
+        static final long serialVersionUID = 42L;
+        static final Table initial = new Table(0, EntityMessage.numberOfShards, 0, new HashMap<>(), new HashMap<>(), new HashSet<>(), new HashSet<>());
+
+        final long version;
+        final int numberOfShards;
+        final int nextNumberOfShards;
+        final Map<String, String> isolated;
+        final Map<String, String> pending;
+        final Set<String> migrating;
+        final Set<String> migrated;
+
+        Table(long version, int numberOfShards, int nextNumberOfShards, Map<String, String> isolated, Map<String, String> pending,
+              Set<String> migrating, Set<String> migrated) {
+            this.version = version;
+            this.numberOfShards = numberOfShards;
+            this.nextNumberOfShards = nextNumberOfShards;
+            this.isolated = isolated;
+            this.pending = pending;
+            this.migrating = migrating;
+            this.migrated = migrated;
+        }
+
+        String shardId(Entity.Id id) {
+            String shardId = isolated.get(id.id);
+            if (shardId != null) {
+                return shardId;
+            }
+            String oldShardId = EntityMessage.shardId(id, numberOfShards);
+            return migrated.contains(oldShardId) ? EntityMessage.shardId(id, nextNumberOfShards) : oldShardId;
+        }
+
+        /**
+         * The shard of an entity in the current layout, ignoring isolation and the layout being migrated to.
+         */
+        String layoutShardId(Entity.Id id) {
+            return EntityMessage.shardId(id, numberOfShards);
+        }
+
+        boolean pending(Entity.Id id) {
+            return pending.containsKey(id.id) || !isolated.containsKey(id.id) && migrating.contains(layoutShardId(id));
+        }
+
+        boolean resharding() {
+            return nextNumberOfShards > 0;
+        }
+
+        /**
+         * The shard ids of the current layout. Ids come from the sign of the id hash code too, so a layout of
+         * n shards has the ids -(n - 1) to n - 1.
+         */
+        List<String> layoutShardIds() {
+            return IntStream.range(1 - numberOfShards, numberOfShards).mapToObj(String::valueOf).collect(Collectors.toList());
+        }
+
+        Table withPending(String entityId, String shardId) {
+            Map<String, String> pending = new HashMap<>(this.pending);
+            pending.put(entityId, shardId);
+            return new Table(version + 1, numberOfShards, nextNumberOfShards, isolated, pending, migrating, migrated);
+        }
+
+        Table withoutPending(String entityId) {
+            Map<String, String> pending = new HashMap<>(this.pending);
+            pending.remove(entityId);
+            return new Table(version + 1, numberOfShards, nextNumberOfShards, isolated, pending, migrating, migrated);
+        }
+
+        /**
+         * Complete the move of a pending entity to its new shard.
+         */
+        Table withMoved(String entityId) {
+            Map<String, String> pending = new HashMap<>(this.pending);
+            Map<String, String> isolated = new HashMap<>(this.isolated);
+            isolated.put(entityId, pending.remove(entityId));
+            return new Table(version + 1, numberOfShards, nextNumberOfShards, isolated, pending, migrating, migrated);
+        }
+
+        Table withNextNumberOfShards(int nextNumberOfShards) {
+            return new Table(version + 1, numberOfShards, nextNumberOfShards, isolated, pending, new HashSet<>(), new HashSet<>());
+        }
+
+        Table withMigrating(String shardId) {
+            Set<String> migrating = new HashSet<>(this.migrating);
+            migrating.add(shardId);
+            return new Table(version + 1, numberOfShards, nextNumberOfShards, isolated, pending, migrating, migrated);
+        }
+
+        Table withoutMigrating(String shardId) {
+            Set<String> migrating = new HashSet<>(this.migrating);
+            migrating.remove(shardId);
+            return new Table(version + 1, numberOfShards, nextNumberOfShards, isolated, pending, migrating, migrated);
+        }
+
+        /**
+         * Complete the migration of an old shard, after the last one the new layout becomes the current one.
+         */
+        Table withMigrated(String shardId) {
+            Set<String> migrating = new HashSet<>(this.migrating);
+            Set<String> migrated = new HashSet<>(this.migrated);
+            migrating.remove(shardId);
+            migrated.add(shardId);
+            if (migrated.containsAll(layoutShardIds())) {
+                return new Table(version + 1, nextNumberOfShards, 0, isolated, pending, new HashSet<>(), new HashSet<>());
+            }
+            return new Table(version + 1, numberOfShards, nextNumberOfShards, isolated, pending, migrating, migrated);
+        }
+
+        @Override
+        public String toString() {
+            return resharding()
+                    ? String.format("%s[v%d, %d -> %d shards, migrated %d, migrating %s, isolated %s, pending %s]", getClass().getSimpleName(), version,
+                    numberOfShards, nextNumberOfShards, migrated.size(), migrating, isolated, pending)
+                    : String.format("%s[v%d, %d shards, isolated %s, pending %s]", getClass().getSimpleName(), version, numberOfShards, isolated, pending);
+        }
+    }
+
+    /**
+     * Keeps the local table up to date. Once this node is up it reads the table from a majority of the nodes,
+     * which makes the routing ready, and records the shard count this node is configured with.
+     */
+    static class TableSubscriber extends AbstractLoggingActor {
+        private final EntityRouting entityRouting;
+        private final FiniteDuration readTimeout;
+
+        TableSubscriber(EntityRouting entityRouting) {
+            this.entityRouting = entityRouting;
+            readTimeout = FiniteDuration.create(entityRouting.writeTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Receive createReceive() {
+            return receiveBuilder()
+                    .match(Replicator.Changed.class, changed -> {
+                        Table table = ((Replicator.Changed<LWWRegister<Table>>) changed).get(key).getValue();
+                        log().info("Entity routing {}", table);
+                        entityRouting.changed(table);
+                    })
+                    .matchEquals("read", r -> read())
+                    .match(Replicator.GetSuccess.class, getSuccess -> entityRouting.ready(((Replicator.GetSuccess<LWWRegister<Table>>) getSuccess).get(key).getValue()))
+                    .match(Replicator.NotFound.class, notFound -> entityRouting.ready(Table.initial))
+                    .match(Replicator.GetFailure.class, getFailure -> {
+                        log().warning("Entity routing not read from a majority within {}, retrying", readTimeout);
+                        read();
+                    })
+                    .match(Replicator.UpdateResponse.class, updateResponse -> log().debug("{}", updateResponse))
+                    .build();
+        }
+
+        private void read() {
+            DistributedData.get(context().system()).replicator().tell(new Replicator.Get<>(key, new Replicator.ReadMajority(readTimeout)), self());
+        }
+
+        @Override
+        public void preStart() {
+            DistributedData distributedData = DistributedData.get(context().system());
+            Cluster cluster = Cluster.get(context().system());
+            ActorRef self = self();
+            distributedData.replicator().tell(new Replicator.Subscribe<>(key, self), self);
+            cluster.registerOnMemberUp(() -> {
+                self.tell("read", ActorRef.noSender());
+                distributedData.replicator().tell(new Replicator.Update<>(
+                        shardCountVotesKey,
+                        LWWMap.create(),
+                        Replicator.writeLocal(),
+                        votes -> votes.put(distributedData.selfUniqueAddress(), cluster.selfAddress().toString(), entityRouting.configuredNumberOfShards)
+                ), self);
+            });
+        }
+    }
+
+    static class Id extends AbstractExtensionId<EntityRouting> {
+        @Override
+        public EntityRouting createExtension(ExtendedActorSystem system) {
+            return new EntityRouting(system);
+        }
+    }
+}
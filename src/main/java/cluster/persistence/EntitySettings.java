@@ -0,0 +1,72 @@
+package cluster.persistence;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import com.typesafe.config.Config;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Settings, node extensions and the logger of the entities of a node.
+ * <p>
+ * A node can run a million entities, so they share one instance of everything that is the same for all of them
+ * and each entity keeps just a reference to it. The logger is shared too, its source is the entity class rather
+ * than the entity's path, so each log line names its entity in the message, by persistence id or by the
+ * command or snapshot metadata it logs.
+ */
+class EntitySettings implements Extension {
+    static final Id id = new Id();
+
+    final LoggingAdapter log;
+    final FiniteDuration receiveTimeout;
+    final int snapshotEvery;
+    final boolean queriesDuringPersist;
+    final boolean publishUpdates;
+    final int dedupWindow;
+    final int prewarmEntities;
+    final WarmStateCache warmStateCache;
+    final AdmissionControl admissionControl;
+    final EntityRouting entityRouting;
+    final ShardLoadMeter shardLoadMeter;
+    final NodeMetricsRecorder metrics;
+    final ShardLatencyHistograms shardLatency;
+    final FlightEvents flightEvents;
+    final RecoveryScheduler recoveryScheduler;
+    final JournalRetention journalRetention;
+
+    private EntitySettings(ExtendedActorSystem actorSystem) {
+        Config config = actorSystem.settings().config();
+        log = Logging.getLogger(actorSystem, EntityPersistenceActor.class);
+        receiveTimeout = FiniteDuration.create(config.getDuration("entity-persistence.receive-timeout").toMillis(), TimeUnit.MILLISECONDS);
+        snapshotEvery = config.getInt("entity-persistence.snapshot-every");
+        queriesDuringPersist = config.getBoolean("entity-persistence.queries-during-persist");
+        publishUpdates = config.getBoolean("entity-near-cache.enabled");
+        dedupWindow = config.getInt("entity-persistence.dedup-window");
+        prewarmEntities = config.getBoolean("entity-prewarm.enabled") ? config.getInt("entity-prewarm.top-entities") : 0;
+        warmStateCache = WarmStateCache.get(actorSystem);
+        admissionControl = AdmissionControl.get(actorSystem);
+        entityRouting = EntityRouting.get(actorSystem);
+        shardLoadMeter = ShardLoadMeter.get(actorSystem);
+        metrics = NodeMetricsRecorder.get(actorSystem);
+        shardLatency = ShardLatencyHistograms.get(actorSystem);
+        flightEvents = FlightEvents.get(actorSystem);
+        recoveryScheduler = RecoveryScheduler.get(actorSystem);
+        journalRetention = JournalRetention.get(actorSystem);
+    }
+
+    static EntitySettings get(ActorSystem actorSystem) {
+        return id.get(actorSystem);
+    }
+
+    static class Id extends AbstractExtensionId<EntitySettings> {
+        @Override
+        public EntitySettings createExtension(ExtendedActorSystem system) {
+            return new EntitySettings(system);
+        }
+    }
+}
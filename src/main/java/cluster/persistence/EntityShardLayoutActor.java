@@ -0,0 +1,219 @@
+package cluster.persistence;
+
+import akka.actor.AbstractLoggingActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import akka.actor.Status;
+import akka.cluster.Cluster;
+import akka.cluster.Member;
+import akka.cluster.MemberStatus;
+import akka.cluster.ddata.DistributedData;
+import akka.cluster.ddata.LWWMap;
+import akka.cluster.ddata.Replicator;
+import akka.pattern.Patterns;
+import com.typesafe.config.Config;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.StreamSupport;
+
+/**
+ * Cluster singleton that changes the entity shard count online.
+ * <p>
+ * Once every up node is configured with the same {@code entity-sharding.number-of-shards} and it differs from
+ * the layout in the {@link EntityRouting} table, the old shards are migrated to the new layout, up to
+ * {@code migration-parallelism} at a time. A shard is migrated by marking it migrating in the table, which
+ * makes its entities hold their messages, and sending its shard agent a {@link EntityMessage.MigrateShard}.
+ * When all of its entities have confirmed they have no writes in flight the shard is marked migrated and its
+ * entities stop and continue in their shard of the new layout. A shard not confirmed within
+ * {@code migrate-shard-timeout} is released and tried again. Persistence ids do not depend on the shard, so
+ * no events move. The time from the start of the change until the new layout is current is logged.
+ */
+class EntityShardLayoutActor extends AbstractLoggingActor {
+    private final ActorRef shardRegion;
+    private final EntityRouting entityRouting = EntityRouting.get(context().system());
+    private final Map<String, Cancellable> migrations = new HashMap<>();
+    private final FiniteDuration checkInterval;
+    private final FiniteDuration migrateShardTimeout;
+    private final int migrationParallelism;
+    private Map<String, Integer> votes = new HashMap<>();
+    private Cancellable check;
+    private boolean starting;
+    private long started;
+
+    EntityShardLayoutActor(ActorRef shardRegion) {
+        this.shardRegion = shardRegion;
+        Config config = context().system().settings().config().getConfig("entity-sharding");
+        checkInterval = FiniteDuration.create(config.getDuration("check-interval").toNanos(), TimeUnit.NANOSECONDS);
+        migrateShardTimeout = FiniteDuration.create(config.getDuration("migrate-shard-timeout").toNanos(), TimeUnit.NANOSECONDS);
+        migrationParallelism = config.getInt("migration-parallelism");
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(Replicator.Changed.class, changed -> votes = ((Replicator.Changed<LWWMap<String, Integer>>) changed).get(EntityRouting.shardCountVotesKey).getEntries())
+                .matchEquals("check", c -> check())
+                .match(LayoutStarted.class, this::layoutStarted)
+                .match(MigratingWritten.class, this::migratingWritten)
+                .match(EntityMessage.ShardMigrated.class, this::shardMigrated)
+                .match(MigratedWritten.class, this::migratedWritten)
+                .match(MigrateTimeout.class, this::migrateTimeout)
+                .match(Status.Failure.class, this::tableWriteFailed)
+                .build();
+    }
+
+    private void check() {
+        EntityRouting.Table table = entityRouting.table();
+        if (!table.resharding()) {
+            Integer agreed = agreedNumberOfShards();
+            if (!starting && agreed != null && agreed != table.numberOfShards) {
+                starting = true;
+                started = System.nanoTime();
+                log().info("All nodes ask for {} shards, changing from {}", agreed, table.numberOfShards);
+                Patterns.pipe(entityRouting.update(current -> current.resharding() ? current : current.withNextNumberOfShards(agreed))
+                        .thenApply(LayoutStarted::new), context().dispatcher()).to(self());
+            }
+            return;
+        }
+        table.migrating.stream()
+                .filter(shardId -> !migrations.containsKey(shardId))
+                .forEach(shardId -> {
+                    log().info("Resuming migration of shard {}", shardId);
+                    migratingWritten(new MigratingWritten(shardId, table.version));
+                });
+        Iterator<String> next = table.layoutShardIds().stream()
+                .filter(shardId -> !table.migrated.contains(shardId) && !migrations.containsKey(shardId))
+                .iterator();
+        while (migrations.size() < migrationParallelism && next.hasNext()) {
+            String shardId = next.next();
+            migrations.put(shardId, null);
+            Patterns.pipe(entityRouting.update(current -> current.withMigrating(shardId))
+                    .thenApply(current -> new MigratingWritten(shardId, current.version)), context().dispatcher()).to(self());
+        }
+    }
+
+    /**
+     * The shard count every up node is configured with, null while they differ.
+     */
+    private Integer agreedNumberOfShards() {
+        Set<Integer> asked = new HashSet<>();
+        StreamSupport.stream(Cluster.get(context().system()).state().getMembers().spliterator(), false)
+                .filter(member -> member.status().equals(MemberStatus.up()))
+                .map(Member::address)
+                .forEach(address -> asked.add(votes.get(address.toString())));
+        return asked.size() == 1 ? asked.iterator().next() : null;
+    }
+
+    private void layoutStarted(LayoutStarted layoutStarted) {
+        starting = false;
+        log().info("Shard layout change started {}", layoutStarted.table);
+        check();
+    }
+
+    private void migratingWritten(MigratingWritten migratingWritten) {
+        shardRegion.tell(new EntityMessage.MigrateShard(migratingWritten.shardId, migratingWritten.version, migrateShardTimeout.toMillis()), self());
+        migrations.put(migratingWritten.shardId, context().system().scheduler().scheduleOnce(
+                migrateShardTimeout.plus(checkInterval),
+                self(),
+                new MigrateTimeout(migratingWritten.shardId),
+                context().dispatcher(),
+                ActorRef.noSender()
+        ));
+    }
+
+    private void shardMigrated(EntityMessage.ShardMigrated shardMigrated) {
+        Cancellable timeout = migrations.get(shardMigrated.shardId);
+        if (timeout != null) {
+            timeout.cancel();
+            String shardId = shardMigrated.shardId;
+            Patterns.pipe(entityRouting.update(current -> current.migrating.contains(shardId) ? current.withMigrated(shardId) : current)
+                    .thenApply(current -> new MigratedWritten(shardMigrated, current)), context().dispatcher()).to(self());
+        }
+    }
+
+    private void migratedWritten(MigratedWritten migratedWritten) {
+        migrations.remove(migratedWritten.shardMigrated.shardId);
+        log().debug("Migrated {}", migratedWritten.shardMigrated);
+        if (migratedWritten.table.resharding()) {
+            check();
+        } else if (started > 0) {
+            log().info("Shard layout of {} shards is current after {}ms, {}", migratedWritten.table.numberOfShards,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started), migratedWritten.table);
+            started = 0;
+        }
+    }
+
+    private void migrateTimeout(MigrateTimeout migrateTimeout) {
+        if (migrations.remove(migrateTimeout.shardId) != null) {
+            log().warning("Shard {} did not migrate in {}, releasing it to try again", migrateTimeout.shardId, migrateShardTimeout);
+            entityRouting.update(current -> current.withoutMigrating(migrateTimeout.shardId));
+        }
+    }
+
+    /**
+     * A table write that got no answer from the replicator, the next check starts over from the local table.
+     */
+    private void tableWriteFailed(Status.Failure failure) {
+        log().warning("Routing table write failed, {}", failure.cause().getMessage());
+        starting = false;
+        migrations.values().removeIf(Objects::isNull);
+    }
+
+    @Override
+    public void preStart() {
+        log().info("Start");
+        DistributedData.get(context().system()).replicator().tell(new Replicator.Subscribe<>(EntityRouting.shardCountVotesKey, self()), self());
+        check = context().system().scheduler().schedule(checkInterval, checkInterval, self(), "check", context().dispatcher(), ActorRef.noSender());
+    }
+
+    @Override
+    public void postStop() {
+        log().info("Stop");
+        check.cancel();
+        migrations.values().stream().filter(Objects::nonNull).forEach(Cancellable::cancel);
+    }
+
+    static Props props(ActorRef shardRegion) {
+        return Props.create(EntityShardLayoutActor.class, shardRegion);
+    }
+
+    private static class LayoutStarted {
+        final EntityRouting.Table table;
+
+        LayoutStarted(EntityRouting.Table table) {
+            this.table = table;
+        }
+    }
+
+    private static class MigratingWritten {
+        final String shardId;
+        final long version;
+
+        MigratingWritten(String shardId, long version) {
+            this.shardId = shardId;
+            this.version = version;
+        }
+    }
+
+    private static class MigratedWritten {
+        final EntityMessage.ShardMigrated shardMigrated;
+        final EntityRouting.Table table;
+
+        MigratedWritten(EntityMessage.ShardMigrated shardMigrated, EntityRouting.Table table) {
+            this.shardMigrated = shardMigrated;
+            this.table = table;
+        }
+    }
+
+    private static class MigrateTimeout {
+        final String shardId;
+
+        MigrateTimeout(String shardId) {
+            this.shardId = shardId;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package cluster.persistence;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.persistence.journal.Tagged;
+
+/**
+ * Java Flight Recorder events of the command, persist and projection stages.
+ * <p>
+ * This class does nothing, it is what the entities and tag processors call when {@code flight-events.enabled}
+ * is off or the events are not available. The events themselves are in {@code JfrFlightEvents}, which is in
+ * {@code src/main/java-jfr} and is only compiled by the {@code jfr} profile, active when building with JDK 11 or
+ * later as the rest of the build targets Java 8. When enabled and present it is loaded in place of this class
+ * and each event is only created and committed when a recording has it enabled.
+ */
+class FlightEvents implements Extension {
+    static final Id id = new Id();
+    private static final String implementation = "cluster.persistence.JfrFlightEvents";
+
+    FlightEvents() {
+    }
+
+    static FlightEvents get(ActorSystem actorSystem) {
+        return id.get(actorSystem);
+    }
+
+    void commandReceived(String shardId, String entityId, String command) {
+    }
+
+    void persistStarted(String shardId, String entityId, Tagged taggedEvent) {
+    }
+
+    void persisted(String shardId, String entityId, Tagged taggedEvent, long sequenceNr, long persistNanos) {
+    }
+
+    void commandAcked(String shardId, String entityId, String command, long commandNanos) {
+    }
+
+    void recovered(String shardId, String entityId, long replayedEvents, long recoveryNanos) {
+    }
+
+    void projected(String tag, String shardId, String persistenceId, long sequenceNr, long lagMillis, long handleNanos) {
+    }
+
+    void offsetCommitted(String tag, String shardId, long commitNanos) {
+    }
+
+    static class Id extends AbstractExtensionId<FlightEvents> {
+        @Override
+        public FlightEvents createExtension(ExtendedActorSystem system) {
+            if (system.settings().config().getBoolean("flight-events.enabled")) {
+                try {
+                    FlightEvents flightEvents = (FlightEvents) Class.forName(implementation).getDeclaredConstructor().newInstance();
+                    system.log().info("Flight recorder events enabled");
+                    return flightEvents;
+                } catch (ReflectiveOperationException | LinkageError e) {
+                    system.log().info("Flight recorder events not available, {}", e.toString());
+                }
+            }
+            return new FlightEvents();
+        }
+    }
+}
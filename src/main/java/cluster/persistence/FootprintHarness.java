@@ -0,0 +1,151 @@
+package cluster.persistence;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.CoordinatedShutdown;
+import akka.cluster.Cluster;
+import akka.cluster.sharding.ShardRegion;
+import akka.pattern.Patterns;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Starts one cluster node on top of {@link LocalJournal}, activates a large number of entities with
+ * {@code commands-per-entity} deposits each, and reports the heap retained per running entity as JSON.
+ * <p>
+ * Every deposit has its own idempotency key, so by default each entity ends with a full dedup window, the
+ * state a busy entity keeps for as long as it runs.
+ * <p>
+ * The heap is measured after a full collection with all the entities running and again after the node has shut
+ * down. The journal is in static memory and keeps its events either way, so the difference divided by the number
+ * of entities is the footprint of one running entity, with the node's own fixed overhead spread over them.
+ * <p>
+ * Settings are in {@code footprint.conf} and can be overridden with system properties. The heap has to hold the
+ * entities and the journal, which keeps every deposit, for example
+ * {@code MAVEN_OPTS=-Xmx4g mvn -P footprint compile exec:java -Dfootprint.entities=10000}.
+ */
+public class FootprintHarness {
+    private final Config config;
+    private final Config settings;
+    private final LongAdder ok = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    private FootprintHarness(Config config) {
+        this.config = config;
+        settings = config.getConfig("footprint");
+    }
+
+    public static void main(String[] args) throws Exception {
+        Config config = ConfigFactory.load(ConfigFactory.parseResources("footprint.conf")
+                .withFallback(ConfigFactory.parseResources("application.conf")));
+        new FootprintHarness(config).run();
+    }
+
+    private void run() throws Exception {
+        LocalSnapshotStore.deleteAll(Paths.get(config.getString("local-snapshot-store.dir")));
+        ActorSystem node = ActorSystem.create("persistence", Runner.setupClusterNodeConfig("2551", config));
+        ActorRef shardRegion = Runner.setupWriteSideClusterSharding(node);
+        CompletableFuture<Void> up = new CompletableFuture<>();
+        Cluster.get(node).registerOnMemberUp(() -> up.complete(null));
+        up.get(60, TimeUnit.SECONDS);
+
+        int entities = settings.getInt("entities");
+        long start = System.nanoTime();
+        activate(shardRegion, entities);
+        long activationNanos = System.nanoTime() - start;
+        int running = runningEntities(shardRegion);
+        long heapRunning = usedHeapAfterGc();
+
+        CoordinatedShutdown.get(node).runAll(CoordinatedShutdown.unknownReason());
+        node.getWhenTerminated().toCompletableFuture().get(10, TimeUnit.MINUTES);
+        long heapStopped = usedHeapAfterGc();
+
+        report(entities, running, activationNanos, heapRunning, heapStopped);
+    }
+
+    /**
+     * Send each entity its deposits, one round over all the entities per deposit, with at most {@code parallelism}
+     * unanswered, and wait for the last answer.
+     */
+    private void activate(ActorRef shardRegion, int entities) throws InterruptedException {
+        int commandsPerEntity = settings.getInt("commands-per-entity");
+        int parallelism = settings.getInt("parallelism");
+        Duration timeout = settings.getDuration("request-timeout");
+        Semaphore inFlight = new Semaphore(parallelism);
+        for (int round = 1; round <= commandsPerEntity; round++) {
+            for (int i = 1; i <= entities; i++) {
+                inFlight.acquire();
+                deposit(shardRegion, new EntityMessage.DepositCommand(new Entity.Id(String.valueOf(i)),
+                        new EntityMessage.Amount(BigDecimal.valueOf(i % 10000, 2)), String.format("%d-%d", i, round)), timeout, inFlight);
+            }
+        }
+        inFlight.acquire(parallelism);
+    }
+
+    private void deposit(ActorRef shardRegion, EntityMessage.DepositCommand deposit, Duration timeout, Semaphore inFlight) {
+        Patterns.ask(shardRegion, deposit, timeout)
+                .whenComplete((response, error) -> {
+                    if (error == null && response instanceof EntityMessage.CommandRejected) {
+                        rejected.increment();
+                    } else if (error == null) {
+                        ok.increment();
+                    } else {
+                        failed.increment();
+                    }
+                    inFlight.release();
+                });
+    }
+
+    private int runningEntities(ActorRef shardRegion) throws Exception {
+        ShardRegion.CurrentShardRegionState state = (ShardRegion.CurrentShardRegionState) Patterns.ask(
+                shardRegion, ShardRegion.getShardRegionStateInstance(), Duration.ofMinutes(1)).toCompletableFuture().get();
+        return state.getShards().stream()
+                .flatMap(shardState -> shardState.getEntityIds().stream())
+                .mapToInt(entityId -> EntityMessage.isShardAgentEntityId(entityId) ? 0 : 1)
+                .sum();
+    }
+
+    private static long usedHeapAfterGc() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(200);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private void report(int entities, int running, long activationNanos, long heapRunning, long heapStopped) throws IOException {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append(String.format(Locale.ROOT, "  \"entities\": %d,%n", entities));
+        json.append(String.format(Locale.ROOT, "  \"depositsPerEntity\": %d,%n", settings.getInt("commands-per-entity")));
+        json.append(String.format(Locale.ROOT, "  \"deposits\": {\"ok\": %d, \"failed\": %d, \"rejected\": %d},%n", ok.sum(), failed.sum(), rejected.sum()));
+        json.append(String.format(Locale.ROOT, "  \"running\": %d,%n", running));
+        json.append(String.format(Locale.ROOT, "  \"activationSeconds\": %.3f,%n", activationNanos / 1e9));
+        json.append(String.format(Locale.ROOT, "  \"heapRunningBytes\": %d,%n", heapRunning));
+        json.append(String.format(Locale.ROOT, "  \"heapStoppedBytes\": %d,%n", heapStopped));
+        json.append(String.format(Locale.ROOT, "  \"bytesPerEntity\": %d%n", running == 0 ? 0 : (heapRunning - heapStopped) / running));
+        json.append("}\n");
+
+        Path output = Paths.get(settings.getString("output"));
+        if (output.getParent() != null) {
+            Files.createDirectories(output.getParent());
+        }
+        Files.write(output, json.toString().getBytes(StandardCharsets.UTF_8));
+        System.out.print(json);
+    }
+}
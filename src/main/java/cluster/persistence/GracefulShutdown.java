@@ -0,0 +1,143 @@
+package cluster.persistence;
+
+import akka.Done;
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.CoordinatedShutdown;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.pattern.Patterns;
+import scala.collection.JavaConverters;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Drain sequence run by coordinated shutdown, so a node leaves without losing in-flight work.
+ * <ol>
+ * <li>service-unbind: the node stops taking new commands, actors registered for this phase close their
+ * entry points, flush what they buffered and wait for it to be answered</li>
+ * <li>service-requests-done: wait until the commands already accepted by this node's entities are persisted</li>
+ * <li>cluster-sharding-shutdown-region: Akka hands off this node's shards, the read-side tag processors
+ * flush their final offset as part of their hand-off</li>
+ * </ol>
+ * The tag processors share the node's {@link Cassandra} session, which is closed when the actor system
+ * terminates, after the actor-system-terminate phase.
+ * Actors take part by registering for a phase in preStart, they are sent {@link #drain} when the phase
+ * starts and answer {@link Done} when they are drained. Each phase is bounded by its coordinated
+ * shutdown timeout. The time spent in every phase is logged when the actor system terminates and is
+ * available from {@link #phaseMillis()}.
+ */
+class GracefulShutdown implements Extension {
+    static final Id id = new Id();
+    static final Drain drain = new Drain();
+
+    private final ActorSystem actorSystem;
+    private final CoordinatedShutdown coordinatedShutdown;
+    private final Map<ActorRef, String> participants = new ConcurrentHashMap<>();
+    private final Map<String, Long> phaseStarts = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    private GracefulShutdown(ExtendedActorSystem actorSystem) {
+        this.actorSystem = actorSystem;
+        coordinatedShutdown = CoordinatedShutdown.get(actorSystem);
+
+        JavaConverters.seqAsJavaListConverter(coordinatedShutdown.orderedPhases()).asJava().forEach(phase ->
+                coordinatedShutdown.addTask(phase, "phase-timing", () -> {
+                    phaseStarts.put(phase, System.nanoTime());
+                    if (phase.equals(CoordinatedShutdown.PhaseActorSystemTerminate())) {
+                        actorSystem.log().info("Coordinated shutdown phase durations {}", phaseMillis());
+                    }
+                    return CompletableFuture.completedFuture(Done.getInstance());
+                }));
+
+        drainTask(CoordinatedShutdown.PhaseServiceUnbind());
+        coordinatedShutdown.addTask(CoordinatedShutdown.PhaseServiceRequestsDone(), "await-pending-persists", () -> awaitPendingPersists());
+    }
+
+    static GracefulShutdown get(ActorSystem actorSystem) {
+        return id.get(actorSystem);
+    }
+
+    /**
+     * Send {@link #drain} to the actor when the given coordinated shutdown phase starts.
+     */
+    void register(ActorRef actor, String phase) {
+        participants.put(actor, phase);
+    }
+
+    void unregister(ActorRef actor) {
+        participants.remove(actor);
+    }
+
+    /**
+     * Milliseconds spent in each phase that has completed so far, in phase order.
+     */
+    Map<String, Long> phaseMillis() {
+        Map<String, Long> phaseMillis = new LinkedHashMap<>();
+        synchronized (phaseStarts) {
+            String previous = null;
+            for (Map.Entry<String, Long> phaseStart : phaseStarts.entrySet()) {
+                if (previous != null) {
+                    phaseMillis.put(previous, (phaseStart.getValue() - phaseStarts.get(previous)) / 1000000);
+                }
+                previous = phaseStart.getKey();
+            }
+        }
+        return phaseMillis;
+    }
+
+    private void drainTask(String phase) {
+        coordinatedShutdown.addTask(phase, "drain", () -> {
+            Duration timeout = Duration.ofMillis(coordinatedShutdown.timeout(phase).toMillis() - 100);
+            CompletableFuture<?>[] drained = participants.entrySet().stream()
+                    .filter(participant -> participant.getValue().equals(phase))
+                    .map(participant -> Patterns.ask(participant.getKey(), drain, timeout)
+                            .exceptionally(e -> {
+                                actorSystem.log().warning("Drain of {} in {} failed, {}", participant.getKey(), phase, e.getMessage());
+                                return Done.getInstance();
+                            })
+                            .toCompletableFuture())
+                    .toArray(CompletableFuture[]::new);
+            return CompletableFuture.allOf(drained).thenApply(v -> Done.getInstance());
+        });
+    }
+
+    private CompletionStage<Done> awaitPendingPersists() {
+        AdmissionControl admissionControl = AdmissionControl.get(actorSystem);
+        long deadline = System.nanoTime() + coordinatedShutdown.timeout(CoordinatedShutdown.PhaseServiceRequestsDone()).toNanos();
+        return awaitPendingPersists(admissionControl, deadline);
+    }
+
+    private CompletionStage<Done> awaitPendingPersists(AdmissionControl admissionControl, long deadline) {
+        int inFlight = admissionControl.getInFlight();
+        if (inFlight <= 0) {
+            return CompletableFuture.completedFuture(Done.getInstance());
+        } else if (System.nanoTime() > deadline) {
+            actorSystem.log().warning("Shutdown with {} commands not yet persisted", inFlight);
+            return CompletableFuture.completedFuture(Done.getInstance());
+        }
+        return Patterns.after(Duration.ofMillis(10), actorSystem.scheduler(), actorSystem.dispatcher(),
+                () -> awaitPendingPersists(admissionControl, deadline));
+    }
+
+    static class Drain {
+        private Drain() {
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName();
+        }
+    }
+
+    static class Id extends AbstractExtensionId<GracefulShutdown> {
+        @Override
+        public GracefulShutdown createExtension(ExtendedActorSystem system) {
+            return new GracefulShutdown(system);
+        }
+    }
+}
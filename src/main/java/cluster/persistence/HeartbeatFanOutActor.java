@@ -0,0 +1,83 @@
+package cluster.persistence;
+
+import akka.actor.AbstractLoggingActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends a single tag heartbeat for each tag of a shard {@link ReadSideProcessorActor.Heartbeat} but the first
+ * to the local shard, gathers the acks and replies with one {@link ReadSideProcessorActor.HeartbeatAck} for the
+ * whole shard, then stops. Tags that do not answer before the heartbeat times out are left out of the ack.
+ */
+class HeartbeatFanOutActor extends AbstractLoggingActor {
+    private final ActorRef shard;
+    private final ReadSideProcessorActor.Heartbeat heartbeat;
+    private final ActorRef replyTo;
+    private final List<ReadSideProcessorActor.Tag> running;
+    private final List<ReadSideProcessorActor.Tag> started;
+    private final Set<ReadSideProcessorActor.Tag> pending;
+    private Cancellable deadline;
+
+    HeartbeatFanOutActor(ActorRef shard, ReadSideProcessorActor.Heartbeat heartbeat, ReadSideProcessorActor.HeartbeatAck firstTagAck, ActorRef replyTo) {
+        this.shard = shard;
+        this.heartbeat = heartbeat;
+        this.replyTo = replyTo;
+        running = new ArrayList<>(firstTagAck.running);
+        started = new ArrayList<>(firstTagAck.started);
+        pending = new HashSet<>(heartbeat.tags.subList(1, heartbeat.tags.size()));
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(ReadSideProcessorActor.HeartbeatAck.class, this::heartbeatAck)
+                .matchEquals("deadline", d -> reply())
+                .build();
+    }
+
+    private void heartbeatAck(ReadSideProcessorActor.HeartbeatAck heartbeatAck) {
+        heartbeatAck.running.stream().filter(pending::remove).forEach(running::add);
+        heartbeatAck.started.stream().filter(pending::remove).forEach(started::add);
+        if (pending.isEmpty()) {
+            reply();
+        }
+    }
+
+    private void reply() {
+        if (!pending.isEmpty()) {
+            log().warning("{} timed out, no answer from {}", heartbeat, pending);
+        }
+        replyTo.tell(new ReadSideProcessorActor.HeartbeatAck(heartbeat.shardId, heartbeat.round, running, started), context().parent());
+        context().stop(self());
+    }
+
+    @Override
+    public void preStart() {
+        heartbeat.tags.subList(1, heartbeat.tags.size()).forEach(tag ->
+                shard.tell(new ReadSideProcessorActor.Heartbeat(heartbeat.shardId, Collections.singletonList(tag), heartbeat.round, heartbeat.timeoutMillis), self()));
+
+        deadline = context().system().scheduler().scheduleOnce(
+                FiniteDuration.create(heartbeat.timeoutMillis, TimeUnit.MILLISECONDS),
+                self(),
+                "deadline",
+                context().dispatcher(),
+                ActorRef.noSender()
+        );
+    }
+
+    @Override
+    public void postStop() {
+        if (deadline != null) {
+            deadline.cancel();
+        }
+    }
+
+    static Props props(ActorRef shard, ReadSideProcessorActor.Heartbeat heartbeat, ReadSideProcessorActor.HeartbeatAck firstTagAck, ActorRef replyTo) {
+        return Props.create(HeartbeatFanOutActor.class, shard, heartbeat, firstTagAck, replyTo);
+    }
+}
@@ -0,0 +1,232 @@
+package cluster.persistence;
+
+import akka.actor.AbstractLoggingActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import akka.actor.Status;
+import akka.pattern.Patterns;
+import com.typesafe.config.Config;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cluster singleton that finds hot entity shards and isolates their busiest entities on shards of their own.
+ * <p>
+ * Every node reports the message rates of its shards and of the busiest entities in each. A shard handling
+ * more than {@code max-shard-rate} messages per second is hot. When one entity takes at least
+ * {@code min-entity-share} of a hot shard's rate it is moved to its own shard, {@code hot-<entity id>}, which
+ * the coordinator places on the node with the fewest shards. One entity is moved at a time and at most
+ * {@code max-isolated} entities are isolated, an isolated entity stays on its own shard.
+ * <p>
+ * A move marks the entity pending in the {@link EntityRouting} table, waits for the entity in its current shard
+ * to confirm it has no writes in flight and then routes it to the new shard. A move that is not confirmed
+ * within {@code relocate-timeout} of its start, or whose pending entry cannot be written, is abandoned. Moves left pending by a previous singleton are finished when
+ * the singleton starts.
+ */
+class HotShardDetectorActor extends AbstractLoggingActor {
+    static final String isolatedShardPrefix = "hot-";
+
+    private final ActorRef shardRegion;
+    private final EntityRouting entityRouting = EntityRouting.get(context().system());
+    private final Map<String, ShardLoadReport> reports = new HashMap<>();
+    private final Map<String, Long> reportTimes = new HashMap<>();
+    private final FiniteDuration reportInterval;
+    private final FiniteDuration relocateTimeout;
+    private final double maxShardRate;
+    private final double minEntityShare;
+    private final int maxIsolated;
+    private Cancellable evaluate;
+    private Relocation relocation;
+
+    HotShardDetectorActor(ActorRef shardRegion) {
+        this.shardRegion = shardRegion;
+        Config config = context().system().settings().config().getConfig("hot-shards");
+        reportInterval = FiniteDuration.create(config.getDuration("report-interval").toNanos(), TimeUnit.NANOSECONDS);
+        relocateTimeout = FiniteDuration.create(config.getDuration("relocate-timeout").toNanos(), TimeUnit.NANOSECONDS);
+        maxShardRate = config.getDouble("max-shard-rate");
+        minEntityShare = config.getDouble("min-entity-share");
+        maxIsolated = config.getInt("max-isolated");
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(ShardLoadReport.class, this::shardLoadReport)
+                .matchEquals("evaluate", e -> evaluate())
+                .match(PendingWritten.class, this::pendingWritten)
+                .match(EntityMessage.Relocated.class, this::relocated)
+                .match(RelocateTimeout.class, this::relocateTimeout)
+                .match(Status.Failure.class, this::tableWriteFailed)
+                .build();
+    }
+
+    private void shardLoadReport(ShardLoadReport shardLoadReport) {
+        reports.put(shardLoadReport.node, shardLoadReport);
+        reportTimes.put(shardLoadReport.node, System.nanoTime());
+    }
+
+    private void evaluate() {
+        long staleBefore = System.nanoTime() - reportInterval.toNanos() * 3;
+        reportTimes.values().removeIf(reportTime -> reportTime < staleBefore);
+        reports.keySet().retainAll(reportTimes.keySet());
+        if (relocation != null) {
+            return;
+        }
+
+        Map<String, Double> shardRates = new HashMap<>();
+        Map<String, Map<String, Double>> entityRates = new HashMap<>();
+        reports.values().forEach(report -> {
+            report.shardRates.forEach((shardId, rate) -> shardRates.merge(shardId, rate, Double::sum));
+            report.entityRates.forEach((shardId, rates) -> rates.forEach((entityId, rate) ->
+                    entityRates.computeIfAbsent(shardId, s -> new HashMap<>()).merge(entityId, rate, Double::sum)));
+        });
+
+        EntityRouting.Table table = entityRouting.table();
+        if (table.isolated.size() >= maxIsolated || table.resharding()) {
+            return;
+        }
+        shardRates.entrySet().stream()
+                .filter(shardRate -> shardRate.getValue() > maxShardRate && !shardRate.getKey().startsWith(isolatedShardPrefix))
+                .max(Map.Entry.comparingByValue())
+                .ifPresent(hot -> entityRates.getOrDefault(hot.getKey(), Collections.emptyMap()).entrySet().stream()
+                        .filter(entityRate -> entityRate.getValue() >= minEntityShare * hot.getValue())
+                        .filter(entityRate -> !table.isolated.containsKey(entityRate.getKey()))
+                        .max(Map.Entry.comparingByValue())
+                        .ifPresent(entityRate -> {
+                            log().info("Shard {} is hot at {}/s, isolating entity {} at {}/s", hot.getKey(), hot.getValue(), entityRate.getKey(), entityRate.getValue());
+                            relocate(entityRate.getKey());
+                        }));
+    }
+
+    private void relocate(String entityId) {
+        startRelocation(entityId);
+        Patterns.pipe(entityRouting.update(table -> table.withPending(entityId, isolatedShardPrefix + entityId))
+                .thenApply(table -> new PendingWritten(entityId, table.version)), context().dispatcher()).to(self());
+    }
+
+    private void pendingWritten(PendingWritten pendingWritten) {
+        if (relocation != null && relocation.entityId.equals(pendingWritten.entityId)) {
+            shardRegion.tell(new EntityMessage.Relocate(new Entity.Id(pendingWritten.entityId), pendingWritten.version), self());
+        }
+    }
+
+    /**
+     * The timeout covers the whole move, from the write of the pending entry to the entity's confirmation.
+     */
+    private void startRelocation(String entityId) {
+        relocation = new Relocation(entityId);
+        relocation.timeout = context().system().scheduler().scheduleOnce(
+                relocateTimeout,
+                self(),
+                new RelocateTimeout(entityId),
+                context().dispatcher(),
+                ActorRef.noSender()
+        );
+    }
+
+    private void relocated(EntityMessage.Relocated relocated) {
+        if (relocation != null && relocation.entityId.equals(relocated.id.id)) {
+            relocation.timeout.cancel();
+            relocation = null;
+            String entityId = relocated.id.id;
+            entityRouting.update(table -> table.pending.containsKey(entityId) ? table.withMoved(entityId) : table)
+                    .thenAccept(table -> log().info("Entity {} moved to shard {}", entityId, table.shardId(relocated.id)));
+        }
+    }
+
+    private void relocateTimeout(RelocateTimeout relocateTimeout) {
+        if (relocation != null && relocation.entityId.equals(relocateTimeout.entityId)) {
+            log().warning("Entity {} did not confirm its move in {}, staying in its shard", relocateTimeout.entityId, this.relocateTimeout);
+            relocation = null;
+            entityRouting.update(table -> table.withoutPending(relocateTimeout.entityId));
+        }
+    }
+
+    private void tableWriteFailed(Status.Failure failure) {
+        log().warning("Routing table write failed, {}", failure.cause().getMessage());
+        if (relocation != null) {
+            String entityId = relocation.entityId;
+            relocation.timeout.cancel();
+            relocation = null;
+            entityRouting.update(table -> table.withoutPending(entityId));
+        }
+    }
+
+    @Override
+    public void preStart() {
+        log().info("Start");
+        evaluate = context().system().scheduler().schedule(reportInterval, reportInterval, self(), "evaluate", context().dispatcher(), ActorRef.noSender());
+        EntityRouting.Table table = entityRouting.table();
+        table.pending.keySet().stream().findFirst().ifPresent(entityId -> {
+            log().info("Finishing move of entity {}", entityId);
+            startRelocation(entityId);
+            self().tell(new PendingWritten(entityId, table.version), self());
+        });
+    }
+
+    @Override
+    public void postStop() {
+        log().info("Stop");
+        evaluate.cancel();
+        if (relocation != null) {
+            relocation.timeout.cancel();
+        }
+    }
+
+    static Props props(ActorRef shardRegion) {
+        return Props.create(HotShardDetectorActor.class, shardRegion);
+    }
+
+    /**
+     * Message rates of the shards on one node since its previous report, per shard and for the busiest
+     * entities of each shard.
+     */
+    static class ShardLoadReport implements Serializable {
+        static final long serialVersionUID = 42L;
+        final String node;
+        final Map<String, Double> shardRates;
+        final Map<String, Map<String, Double>> entityRates;
+
+        ShardLoadReport(String node, Map<String, Double> shardRates, Map<String, Map<String, Double>> entityRates) {
+            this.node = node;
+            this.shardRates = shardRates;
+            this.entityRates = entityRates;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, %s]", getClass().getSimpleName(), node, shardRates);
+        }
+    }
+
+    private static class Relocation {
+        final String entityId;
+        Cancellable timeout;
+
+        Relocation(String entityId) {
+            this.entityId = entityId;
+        }
+    }
+
+    private static class PendingWritten {
+        final String entityId;
+        final long version;
+
+        PendingWritten(String entityId, long version) {
+            this.entityId = entityId;
+            this.version = version;
+        }
+    }
+
+    private static class RelocateTimeout {
+        final String entityId;
+
+        RelocateTimeout(String entityId) {
+            this.entityId = entityId;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package cluster.persistence;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import akka.stream.ActorMaterializer;
+import akka.stream.alpakka.cassandra.javadsl.CassandraSource;
+import akka.stream.javadsl.Sink;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.SimpleStatement;
+import com.typesafe.config.Config;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-node policy for deleting the journal events of entities that are covered by a snapshot.
+ * <p>
+ * Deleted events can only be recovered from snapshots, so retention only runs with the Cassandra journal
+ * and with Cassandra as the snapshot store, directly or behind the {@link WarmStateSnapshotStore}. With a
+ * node-local store such as {@link LocalSnapshotStore} an entity that moves to another node would find neither
+ * its snapshot nor its events. Otherwise it stays off and a warning is logged when it is enabled.
+ * <p>
+ * Events may only be deleted once the read side has processed them. Every {@code refresh-interval} the
+ * committed offset of each tag is read from {@code tag_read_progress}, and events of a tag are deletable when
+ * they were written at least {@code clock-margin} before its offset. The margin covers the clock difference
+ * between the node that wrote the events and the one that generated the offset. A tag without an offset,
+ * or any tag before the first read, holds its events.
+ * <p>
+ * Deletes go to the same journal as the entity writes, so they are limited to {@code deletes-per-second}
+ * and held back while more than {@code max-commands-in-flight} commands of this node wait to be persisted,
+ * see {@link AdmissionControl}. A delete that is not permitted is tried again later by the entity.
+ * <p>
+ * The committed offsets are read with the node's shared {@link Cassandra} session, which is connected by the
+ * first read and not when this extension is created by an entity.
+ */
+class JournalRetention implements Extension {
+    static final Id id = new Id();
+
+    private final boolean enabled;
+    private final long clockMarginMillis;
+    private final long permitIntervalNanos;
+    private final long burstNanos;
+    private final int maxCommandsInFlight;
+    private final FiniteDuration retryInterval;
+    private final AdmissionControl admissionControl;
+    private final AtomicLong nextPermitNanos = new AtomicLong(System.nanoTime());
+    private volatile Map<String, Long> committedMillis = new HashMap<>();
+
+    private static final String keyspaceName = "akka"; // same keyspace as ReadSideProcessorEventTagActor
+    private static final String sharedJournal = "cassandra-journal";
+    private static final String sharedSnapshotStore = "cassandra-snapshot-store";
+
+    private JournalRetention(ExtendedActorSystem actorSystem) {
+        Config systemConfig = actorSystem.settings().config();
+        Config config = systemConfig.getConfig("journal-retention");
+        LoggingAdapter log = Logging.getLogger(actorSystem, this);
+        String journal = systemConfig.getString("akka.persistence.journal.plugin");
+        String snapshotStore = systemConfig.getString("akka.persistence.snapshot-store.plugin");
+        String warmStateDelegate = WarmStateSnapshotStore.delegatePluginId(systemConfig.getConfig("warm-state-snapshot-store"), systemConfig);
+        boolean shared = sharedJournal.equals(journal) && sharedSnapshotStore.equals(snapshotStore) && sharedSnapshotStore.equals(warmStateDelegate);
+        if (config.getBoolean("enabled") && !shared) {
+            log.warning("Journal retention is off, it needs " + sharedJournal + " and " + sharedSnapshotStore
+                    + ", this node uses {} and {}, warm state delegate {}", journal, snapshotStore, warmStateDelegate);
+        }
+        enabled = config.getBoolean("enabled") && shared;
+        clockMarginMillis = config.getDuration("clock-margin").toMillis();
+        permitIntervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, config.getInt("deletes-per-second"));
+        burstNanos = TimeUnit.SECONDS.toNanos(1);
+        maxCommandsInFlight = config.getInt("max-commands-in-flight");
+        retryInterval = FiniteDuration.create(config.getDuration("retry-interval").toMillis(), TimeUnit.MILLISECONDS);
+        admissionControl = AdmissionControl.get(actorSystem);
+
+        if (enabled) {
+            FiniteDuration refresh = FiniteDuration.create(config.getDuration("refresh-interval").toMillis(), TimeUnit.MILLISECONDS);
+            Cassandra cassandra = Cassandra.get(actorSystem);
+            ActorMaterializer materializer = ActorMaterializer.create(actorSystem);
+            actorSystem.scheduler().schedule(FiniteDuration.Zero(), refresh, () -> refresh(cassandra, materializer, log), actorSystem.dispatcher());
+        }
+    }
+
+    static JournalRetention get(ActorSystem actorSystem) {
+        return id.get(actorSystem);
+    }
+
+    boolean enabled() {
+        return enabled;
+    }
+
+    FiniteDuration retryInterval() {
+        return retryInterval;
+    }
+
+    /**
+     * True when every tag has been processed past events written at the given time.
+     */
+    boolean processed(Set<String> tags, long writtenMillis) {
+        Map<String, Long> committed = committedMillis;
+        for (String tag : tags) {
+            Long offsetMillis = committed.get(tag);
+            if (offsetMillis == null || offsetMillis < writtenMillis + clockMarginMillis) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Take a permit to delete, when the node's writes leave room for it and the delete rate allows.
+     */
+    boolean tryAcquire() {
+        if (admissionControl.getInFlight() > maxCommandsInFlight) {
+            return false;
+        }
+        long now = System.nanoTime();
+        while (true) {
+            long next = nextPermitNanos.get();
+            long permit = Math.max(next, now - burstNanos);
+            if (permit > now) {
+                return false;
+            }
+            if (nextPermitNanos.compareAndSet(next, permit + permitIntervalNanos)) {
+                return true;
+            }
+        }
+    }
+
+    private void refresh(Cassandra cassandra, ActorMaterializer materializer, LoggingAdapter log) {
+        SimpleStatement statement = new SimpleStatement(String.format("SELECT tag, offset FROM %s.tag_read_progress", keyspaceName));
+        cassandra.session()
+                .thenCompose(session -> CassandraSource.create(statement, session).runWith(Sink.seq(), materializer))
+                .thenAccept(this::committed)
+                .exceptionally(t -> {
+                    log.warning("Read of tag_read_progress failed, {}", t.getMessage());
+                    return null;
+                });
+    }
+
+    private void committed(List<Row> rows) {
+        Map<String, Long> committed = new HashMap<>();
+        for (Row row : rows) {
+            UUID offset = row.getUUID("offset");
+            if (offset != null) {
+                committed.put(row.getString("tag"), ReadSideProcessorEventTagActor.offsetMillis(offset));
+            }
+        }
+        committedMillis = committed;
+    }
+
+    static class Id extends AbstractExtensionId<JournalRetention> {
+        @Override
+        public JournalRetention createExtension(ExtendedActorSystem system) {
+            return new JournalRetention(system);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package cluster.persistence;
+
+import akka.NotUsed;
+import akka.dispatch.Futures;
+import akka.pattern.Patterns;
+import akka.persistence.AtomicWrite;
+import akka.persistence.PersistentRepr;
+import akka.persistence.journal.Tagged;
+import akka.persistence.journal.japi.AsyncWriteJournal;
+import akka.persistence.query.EventEnvelope;
+import akka.persistence.query.Offset;
+import akka.stream.javadsl.Source;
+import com.typesafe.config.Config;
+import scala.collection.JavaConverters;
+import scala.concurrent.Future;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Journal plugin that keeps events in memory, shared by every actor system in the JVM.
+ * <p>
+ * Unlike the Akka in-memory journal, which is private to one actor system, this one lets a
+ * multi-node cluster started in a single JVM recover entities on whichever node they move to.
+ * Tagged events are unwrapped and also indexed by tag so {@link #eventsByTag} can stand in for
+ * the Cassandra read journal. Acknowledgements can be delayed by {@code write-latency} and replays by
+ * {@code replay-latency} to approximate a remote journal.
+ */
+public class LocalJournal extends AsyncWriteJournal {
+    private static final Map<String, ConcurrentNavigableMap<Long, PersistentRepr>> events = new ConcurrentHashMap<>();
+    private static final Map<String, Long> highestSequenceNrs = new ConcurrentHashMap<>();
+    private static final Map<String, List<EventEnvelope>> tags = new ConcurrentHashMap<>();
+
+    private final FiniteDuration writeLatency;
+    private final FiniteDuration replayLatency;
+
+    public LocalJournal(Config config) {
+        writeLatency = FiniteDuration.create(config.getDuration("write-latency").toNanos(), TimeUnit.NANOSECONDS);
+        replayLatency = FiniteDuration.create(config.getDuration("replay-latency").toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public Future<Iterable<Optional<Exception>>> doAsyncWriteMessages(Iterable<AtomicWrite> messages) {
+        List<Optional<Exception>> results = new ArrayList<>();
+
+        for (AtomicWrite atomicWrite : messages) {
+            for (PersistentRepr persistentRepr : JavaConverters.seqAsJavaListConverter(atomicWrite.payload()).asJava()) {
+                write(persistentRepr);
+            }
+            results.add(Optional.empty());
+        }
+        return writeLatency.length() == 0
+                ? Futures.successful(results)
+                : Patterns.after(writeLatency, context().system().scheduler(), context().dispatcher(), () -> Futures.successful(results));
+    }
+
+    private static void write(PersistentRepr persistentRepr) {
+        PersistentRepr event = persistentRepr;
+
+        if (persistentRepr.payload() instanceof Tagged) {
+            Tagged tagged = (Tagged) persistentRepr.payload();
+            event = persistentRepr.withPayload(tagged.payload());
+            for (String tag : JavaConverters.setAsJavaSetConverter(tagged.tags()).asJava()) {
+                List<EventEnvelope> envelopes = tags.computeIfAbsent(tag, t -> new ArrayList<>());
+                synchronized (envelopes) {
+                    envelopes.add(new EventEnvelope(Offset.sequence(envelopes.size() + 1), event.persistenceId(), event.sequenceNr(), event.payload()));
+                }
+            }
+        }
+
+        events.computeIfAbsent(event.persistenceId(), id -> new ConcurrentSkipListMap<>()).put(event.sequenceNr(), event);
+        highestSequenceNrs.merge(event.persistenceId(), event.sequenceNr(), Math::max);
+    }
+
+    @Override
+    public Future<Void> doAsyncDeleteMessagesTo(String persistenceId, long toSequenceNr) {
+        ConcurrentNavigableMap<Long, PersistentRepr> entityEvents = events.get(persistenceId);
+        if (entityEvents != null) {
+            entityEvents.headMap(toSequenceNr, true).clear();
+        }
+        return Futures.successful(null);
+    }
+
+    @Override
+    public Future<Void> doAsyncReplayMessages(String persistenceId, long fromSequenceNr, long toSequenceNr, long max, Consumer<PersistentRepr> replayCallback) {
+        ConcurrentNavigableMap<Long, PersistentRepr> entityEvents = events.get(persistenceId);
+        if (entityEvents != null && fromSequenceNr <= toSequenceNr) {
+            entityEvents.subMap(fromSequenceNr, true, toSequenceNr, true).values().stream()
+                    .limit(max)
+                    .forEach(replayCallback);
+        }
+        return replayLatency.length() == 0
+                ? Futures.successful(null)
+                : Patterns.after(replayLatency, context().system().scheduler(), context().dispatcher(), () -> Futures.<Void>successful(null));
+    }
+
+    @Override
+    public Future<Long> doAsyncReadHighestSequenceNr(String persistenceId, long fromSequenceNr) {
+        return Futures.successful(highestSequenceNrs.getOrDefault(persistenceId, 0L));
+    }
+
+    /**
+     * Number of events written with the given tag so far.
+     */
+    static long tagCount(String tag) {
+        List<EventEnvelope> envelopes = tags.getOrDefault(tag, Collections.emptyList());
+        synchronized (envelopes) {
+            return envelopes.size();
+        }
+    }
+
+    /**
+     * Live stream of tagged events after the given sequence offset, polling the journal at the given interval.
+     */
+    static Source<EventEnvelope, NotUsed> eventsByTag(String tag, long afterOffset, Duration pollInterval) {
+        return Source.tick(Duration.ZERO, pollInterval, NotUsed.getInstance())
+                .statefulMapConcat(() -> {
+                    long[] offset = {afterOffset};
+                    return tick -> {
+                        List<EventEnvelope> next = events(tag, offset[0]);
+                        offset[0] += next.size();
+                        return next;
+                    };
+                })
+                .mapMaterializedValue(cancellable -> NotUsed.getInstance());
+    }
+
+    private static List<EventEnvelope> events(String tag, long afterOffset) {
+        List<EventEnvelope> envelopes = tags.getOrDefault(tag, Collections.emptyList());
+        synchronized (envelopes) {
+            return afterOffset < envelopes.size()
+                    ? new ArrayList<>(envelopes.subList((int) afterOffset, envelopes.size()))
+                    : Collections.emptyList();
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package cluster.persistence;
+
+import akka.actor.Cancellable;
+import akka.dispatch.Futures;
+import akka.persistence.SelectedSnapshot;
+import akka.persistence.SnapshotMetadata;
+import akka.persistence.SnapshotSelectionCriteria;
+import akka.persistence.snapshot.japi.SnapshotStore;
+import akka.serialization.Serialization;
+import akka.serialization.SerializationExtension;
+import akka.serialization.Serializer;
+import akka.serialization.Serializers;
+import com.typesafe.config.Config;
+import scala.concurrent.ExecutionContext;
+import scala.concurrent.Future;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Snapshot store plugin that keeps snapshots on the node's local disk.
+ * <p>
+ * Each snapshot is one file, {@code <dir>/<persistenceId>/<sequenceNr>-<timestamp>.snap}, with a compact binary layout:
+ * magic, sequence number, timestamp, serializer id, manifest, payload and a trailing CRC32 of everything before it.
+ * Files are written to a temporary file and atomically moved into place, and read back through a memory mapping.
+ * Snapshots with a bad checksum are skipped and the next older one is used instead.
+ */
+public class LocalSnapshotStore extends SnapshotStore {
+    private static final int magic = 0x534e4150; // "SNAP"
+    private static final String suffix = ".snap";
+
+    private final Path dir;
+    private final int keepSnapshots;
+    private final FiniteDuration pruneInterval;
+    private final String ioDispatcher;
+    private final Serialization serialization = SerializationExtension.get(context().system());
+    private ExecutionContext io;
+    private Cancellable pruner;
+
+    public LocalSnapshotStore(Config config) {
+        dir = Paths.get(config.getString("dir"));
+        keepSnapshots = config.getInt("keep-n-snapshots");
+        pruneInterval = FiniteDuration.create(config.getDuration("prune-interval").toNanos(), TimeUnit.NANOSECONDS);
+        ioDispatcher = config.getString("io-dispatcher");
+    }
+
+    @Override
+    public void preStart() throws Exception {
+        super.preStart();
+        Files.createDirectories(dir);
+        io = context().system().dispatchers().lookup(ioDispatcher);
+        pruner = context().system().scheduler().schedule(pruneInterval, pruneInterval, (Runnable) this::prune, io);
+        log().info("Local snapshots in {}, keep {} per entity", dir.toAbsolutePath(), keepSnapshots);
+    }
+
+    @Override
+    public void postStop() throws Exception {
+        if (pruner != null) {
+            pruner.cancel();
+        }
+        super.postStop();
+    }
+
+    @Override
+    public Future<Optional<SelectedSnapshot>> doLoadAsync(String persistenceId, SnapshotSelectionCriteria criteria) {
+        return Futures.future(() -> load(persistenceId, criteria), io);
+    }
+
+    @Override
+    public Future<Void> doSaveAsync(SnapshotMetadata metadata, Object snapshot) {
+        return Futures.future(() -> {
+            save(metadata, snapshot);
+            return null;
+        }, io);
+    }
+
+    /**
+     * {@code deleteSnapshot(sequenceNr)} leaves the timestamp 0, then every snapshot of that sequence number is
+     * deleted whatever its timestamp.
+     */
+    @Override
+    public Future<Void> doDeleteAsync(SnapshotMetadata metadata) {
+        return Futures.future(() -> {
+            if (metadata.timestamp() == 0) {
+                for (SnapshotMetadata snapshot : snapshots(metadata.persistenceId())) {
+                    if (snapshot.sequenceNr() == metadata.sequenceNr()) {
+                        Files.deleteIfExists(snapshotFile(snapshot));
+                    }
+                }
+            } else {
+                Files.deleteIfExists(snapshotFile(metadata));
+            }
+            return null;
+        }, io);
+    }
+
+    @Override
+    public Future<Void> doDeleteAsync(String persistenceId, SnapshotSelectionCriteria criteria) {
+        return Futures.future(() -> {
+            for (SnapshotMetadata metadata : snapshots(persistenceId)) {
+                if (criteria.matches(metadata)) {
+                    Files.deleteIfExists(snapshotFile(metadata));
+                }
+            }
+            return null;
+        }, io);
+    }
+
+    private Optional<SelectedSnapshot> load(String persistenceId, SnapshotSelectionCriteria criteria) throws IOException {
+        for (SnapshotMetadata metadata : snapshots(persistenceId)) {
+            if (criteria.matches(metadata)) {
+                try {
+                    return Optional.of(SelectedSnapshot.create(metadata, read(snapshotFile(metadata))));
+                } catch (IOException | RuntimeException e) {
+                    log().warning("Skip unreadable snapshot {}, {}", metadata, e.getMessage());
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    private Object read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            int end = buffer.limit() - Long.BYTES;
+            if (end < 0) {
+                throw new IOException(String.format("Truncated snapshot file %s", file));
+            }
+            CRC32 crc = new CRC32();
+            ByteBuffer content = buffer.duplicate();
+            content.limit(end);
+            crc.update(content);
+            if (buffer.getLong(end) != crc.getValue() || buffer.getInt() != magic) {
+                throw new IOException(String.format("Corrupt snapshot file %s", file));
+            }
+
+            buffer.getLong(); // sequenceNr, already known from the file name
+            buffer.getLong(); // timestamp
+            int serializerId = buffer.getInt();
+            byte[] manifest = new byte[buffer.getShort()];
+            buffer.get(manifest);
+            int length = buffer.getInt();
+            ByteBuffer payload = buffer.slice();
+            payload.limit(length);
+
+            return serialization.deserializeByteBuffer(payload, serializerId, new String(manifest, StandardCharsets.UTF_8));
+        }
+    }
+
+    private void save(SnapshotMetadata metadata, Object snapshot) throws IOException {
+        Serializer serializer = serialization.findSerializerFor(snapshot);
+        byte[] manifest = Serializers.manifestFor(serializer, snapshot).getBytes(StandardCharsets.UTF_8);
+        byte[] payload = serializer.toBinary(snapshot);
+
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 8 + 8 + 4 + 2 + manifest.length + 4 + payload.length + 8);
+        buffer.putInt(magic)
+                .putLong(metadata.sequenceNr())
+                .putLong(metadata.timestamp())
+                .putInt(serializer.identifier())
+                .putShort((short) manifest.length)
+                .put(manifest)
+                .putInt(payload.length)
+                .put(payload);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putLong(crc.getValue());
+        buffer.flip();
+
+        Path file = snapshotFile(metadata);
+        Files.createDirectories(file.getParent());
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void prune() {
+        try (Stream<Path> entities = Files.list(dir)) {
+            entities.filter(Files::isDirectory).forEach(this::prune);
+        } catch (IOException | UncheckedIOException e) {
+            log().warning("Prune snapshots in {} failed, {}", dir, e.getMessage());
+        }
+    }
+
+    private void prune(Path entityDir) {
+        try (Stream<Path> files = Files.list(entityDir)) {
+            List<Path> snapshots = files
+                    .filter(file -> file.getFileName().toString().endsWith(suffix))
+                    .sorted(Comparator.comparing(LocalSnapshotStore::sequenceNr).reversed())
+                    .collect(Collectors.toList());
+
+            for (Path file : snapshots.subList(Math.min(keepSnapshots, snapshots.size()), snapshots.size())) {
+                Files.deleteIfExists(file);
+                log().debug("Pruned snapshot {}", file);
+            }
+        } catch (IOException | UncheckedIOException e) {
+            log().warning("Prune snapshots in {} failed, {}", entityDir, e.getMessage());
+        }
+    }
+
+    /**
+     * Snapshots of one entity, newest first.
+     */
+    private List<SnapshotMetadata> snapshots(String persistenceId) throws IOException {
+        Path entityDir = dir.resolve(encode(persistenceId));
+        List<SnapshotMetadata> snapshots = new ArrayList<>();
+
+        if (Files.isDirectory(entityDir)) {
+            try (Stream<Path> files = Files.list(entityDir)) {
+                files.map(file -> file.getFileName().toString())
+                        .filter(name -> name.endsWith(suffix))
+                        .forEach(name -> {
+                            String[] parts = name.substring(0, name.length() - suffix.length()).split("-");
+                            snapshots.add(SnapshotMetadata.apply(persistenceId, Long.parseLong(parts[0]), Long.parseLong(parts[1])));
+                        });
+            }
+        }
+        snapshots.sort(SnapshotMetadata.ordering().reverse());
+        return snapshots;
+    }
+
+    private Path snapshotFile(SnapshotMetadata metadata) {
+        return dir.resolve(encode(metadata.persistenceId()))
+                .resolve(String.format("%d-%d%s", metadata.sequenceNr(), metadata.timestamp(), suffix));
+    }
+
+    /**
+     * Delete the directory and every snapshot in it. {@link LocalJournal} starts empty in every JVM, so the
+     * harnesses that run on it start without the snapshots of earlier runs.
+     */
+    static void deleteAll(Path dir) throws IOException {
+        if (Files.exists(dir)) {
+            try (Stream<Path> paths = Files.walk(dir)) {
+                for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+
+    private static long sequenceNr(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.indexOf('-')));
+    }
+
+    private static String encode(String persistenceId) {
+        try {
+            return URLEncoder.encode(persistenceId, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
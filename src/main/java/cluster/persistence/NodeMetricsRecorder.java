@@ -0,0 +1,111 @@
+package cluster.persistence;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the events this node's entities persist and recover and the events its tag processors project.
+ * <p>
+ * The counts are taken and reset by {@link #take}, which turns them into rates. Projection lag is the time
+ * since the last event whose offset a tag processor of this node committed was written. It is reported for
+ * every tag processor running here on each take, so a tag that has stopped making progress shows a growing
+ * lag instead of disappearing from the report. An idle tag shows the time since its last event.
+ */
+class NodeMetricsRecorder implements Extension {
+    static final Id id = new Id();
+
+    private final LongAdder persisted = new LongAdder();
+    private final LongAdder recoveries = new LongAdder();
+    private final LongAdder replayed = new LongAdder();
+    private final LongAdder projected = new LongAdder();
+    private final Map<String, Long> committedOffsetMillis = new ConcurrentHashMap<>();
+    private long since = System.nanoTime();
+
+    private NodeMetricsRecorder(ExtendedActorSystem actorSystem) {
+    }
+
+    static NodeMetricsRecorder get(ActorSystem actorSystem) {
+        return id.get(actorSystem);
+    }
+
+    void persisted() {
+        persisted.increment();
+    }
+
+    void recovered() {
+        recoveries.increment();
+    }
+
+    void replayed() {
+        replayed.increment();
+    }
+
+    void projected() {
+        projected.increment();
+    }
+
+    /**
+     * A tag processor has started on this node from an offset of events written at the given time, or from
+     * now when the tag has no committed offset.
+     */
+    void started(String tag, long offsetMillis) {
+        committedOffsetMillis.put(tag, offsetMillis);
+    }
+
+    void committed(String tag, long offsetMillis) {
+        committedOffsetMillis.computeIfPresent(tag, (t, committed) -> Math.max(committed, offsetMillis));
+    }
+
+    void stopped(String tag) {
+        committedOffsetMillis.remove(tag);
+    }
+
+    /**
+     * Rates per second since the last take and the projection lag of each tag processor running on this node.
+     */
+    synchronized Rates take() {
+        long nowMillis = System.currentTimeMillis();
+        Map<String, Long> lags = new HashMap<>();
+        committedOffsetMillis.forEach((tag, offsetMillis) -> lags.put(tag, Math.max(0, nowMillis - offsetMillis)));
+        long now = System.nanoTime();
+        double seconds = Math.max(1, now - since) / 1e9;
+        since = now;
+        return new Rates(
+                persisted.sumThenReset() / seconds,
+                recoveries.sumThenReset() / seconds,
+                replayed.sumThenReset() / seconds,
+                projected.sumThenReset() / seconds,
+                lags
+        );
+    }
+
+    static class Rates {
+        final double persistedPerSecond;
+        final double recoveriesPerSecond;
+        final double replayedPerSecond;
+        final double projectedPerSecond;
+        final Map<String, Long> projectionLagMillis;
+
+        Rates(double persistedPerSecond, double recoveriesPerSecond, double replayedPerSecond, double projectedPerSecond, Map<String, Long> projectionLagMillis) {
+            this.persistedPerSecond = persistedPerSecond;
+            this.recoveriesPerSecond = recoveriesPerSecond;
+            this.replayedPerSecond = replayedPerSecond;
+            this.projectedPerSecond = projectedPerSecond;
+            this.projectionLagMillis = projectionLagMillis;
+        }
+    }
+
+    static class Id extends AbstractExtensionId<NodeMetricsRecorder> {
+        @Override
+        public NodeMetricsRecorder createExtension(ExtendedActorSystem system) {
+            return new NodeMetricsRecorder(system);
+        }
+    }
+}
@@ -0,0 +1,531 @@
+package cluster.persistence;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Address;
+import akka.actor.CoordinatedShutdown;
+import akka.cluster.Cluster;
+import akka.cluster.MemberStatus;
+import akka.cluster.sharding.ClusterSharding;
+import akka.cluster.sharding.ShardRegion;
+import akka.pattern.Patterns;
+import akka.stream.ActorMaterializer;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Starts a multi-node cluster in one JVM on top of {@link LocalJournal}, drives write and query load
+ * at it, kills and restarts one node mid-run, and reports throughput, latency, rebalance and tag stream
+ * catch-up times as JSON.
+ * <p>
+ * The read-side processors write to Cassandra and are not started. The harness instead runs one
+ * {@code eventsByTag} stream per tag on the local journal, the query the processors consume, and reports how
+ * long after the load stops those streams take to deliver every tagged event. That is the delivery lag of the
+ * tag query at {@code tag-stream-poll-interval}, not the catch-up of the read side.
+ * <p>
+ * Settings are in {@code harness.conf} and can be overridden with system properties, for example
+ * {@code mvn -P harness compile exec:java -Dperformance-harness.nodes=5}.
+ */
+public class PerformanceHarness {
+    private static final long tickMillis = 10;
+
+    private final Config config;
+    private final Config settings;
+    private final List<String> ports = new ArrayList<>();
+    private final AtomicReferenceArray<ActorSystem> nodes;
+    private final ActorSystem harness;
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(3);
+    private final java.util.Random random = new java.util.Random();
+
+    private final Latencies writes = new Latencies();
+    private final Latencies queries = new Latencies();
+    private final Latencies rebalanceWrites = new Latencies();
+    private final Latencies rebalanceQueries = new Latencies();
+    private volatile long rebalanceStart = Long.MAX_VALUE;
+    private volatile long rebalanceEnd = Long.MAX_VALUE;
+    private final LongAdder tagStreamEvents = new LongAdder();
+    private final AtomicLong outstanding = new AtomicLong();
+    private final Map<String, Object> failover = new LinkedHashMap<>();
+    private final Map<String, Object> reshard = new LinkedHashMap<>();
+    private final Map<ActorSystem, ActorRef> commandTargets = new ConcurrentHashMap<>();
+    private final Map<ActorSystem, ActorRef> queryTargets = new ConcurrentHashMap<>();
+
+    private PerformanceHarness(Config config) {
+        this.config = config;
+        settings = config.getConfig("performance-harness");
+        nodes = new AtomicReferenceArray<>(settings.getInt("nodes"));
+        IntStream.range(0, nodes.length()).forEach(i -> ports.add(String.valueOf(2551 + i)));
+        harness = ActorSystem.create("harness", ConfigFactory.parseString("akka.actor.provider = local\nakka.extensions = []").withFallback(config));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Config config = ConfigFactory.load(ConfigFactory.parseResources(System.getProperty("performance-harness.config", "harness.conf"))
+                .withFallback(ConfigFactory.parseResources("application.conf")));
+        new PerformanceHarness(config).run();
+    }
+
+    private void run() throws Exception {
+        LocalSnapshotStore.deleteAll(Paths.get(config.getString("local-snapshot-store.dir")));
+        for (int i = 0; i < nodes.length(); i++) {
+            nodes.set(i, startNode(ports.get(i)));
+        }
+        awaitMembersUp(nodes.length(), Duration.ofSeconds(60));
+        startTagStreams();
+        warmUp(settings.getDuration("warm-up"));
+
+        Duration duration = settings.getDuration("duration");
+        long start = System.nanoTime();
+        ScheduledFuture<?> load = scheduler.scheduleAtFixedRate(new Load(), 0, tickMillis, TimeUnit.MILLISECONDS);
+        if (!settings.getString("failover.mode").equals("none")) {
+            scheduler.schedule(this::failover, settings.getDuration("failover.kill-after").toMillis(), TimeUnit.MILLISECONDS);
+        }
+        ScheduledFuture<?> resharding = settings.getInt("reshard.number-of-shards") > 0
+                ? scheduler.schedule(this::reshard, settings.getDuration("reshard.start-after").toMillis(), TimeUnit.MILLISECONDS)
+                : null;
+
+        Thread.sleep(duration.toMillis());
+        load.cancel(false);
+        long loadNanos = System.nanoTime() - start;
+        awaitOutstanding(settings.getDuration("request-timeout").multipliedBy(2));
+        if (resharding != null) {
+            resharding.get(5, TimeUnit.MINUTES);
+        }
+
+        long catchUpMillis = awaitTagStreamCatchUp(Duration.ofSeconds(120));
+        report(loadNanos, catchUpMillis);
+        shutdown();
+    }
+
+    /**
+     * Run the load for a while and discard the results, so shard allocation and JIT compilation are
+     * not counted in the measured run.
+     */
+    private void warmUp(Duration warmUp) throws InterruptedException {
+        ScheduledFuture<?> load = scheduler.scheduleAtFixedRate(new Load(), 0, tickMillis, TimeUnit.MILLISECONDS);
+        Thread.sleep(warmUp.toMillis());
+        load.cancel(false);
+        awaitOutstanding(settings.getDuration("request-timeout").multipliedBy(2));
+        writes.reset();
+        queries.reset();
+    }
+
+    private ActorSystem startNode(String port) {
+        return startNode(port, config);
+    }
+
+    private ActorSystem startNode(String port, Config config) {
+        ActorSystem actorSystem = ActorSystem.create("persistence", Runner.setupClusterNodeConfig(port, config));
+        GracefulShutdown.get(actorSystem);
+        Runner.WriteSide writeSide = Runner.setupWriteSide(actorSystem);
+        commandTargets.put(actorSystem, writeSide.commandTarget);
+        queryTargets.put(actorSystem, writeSide.queryTarget);
+        return actorSystem;
+    }
+
+    private void awaitMembersUp(int count, Duration timeout) throws InterruptedException, TimeoutException {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        while (System.nanoTime() < deadline) {
+            ActorSystem node = anyNode();
+            long up = StreamSupport.stream(Cluster.get(node).state().getMembers().spliterator(), false)
+                    .filter(member -> member.status().equals(MemberStatus.up()))
+                    .count();
+            if (up == count) {
+                return;
+            }
+            Thread.sleep(100);
+        }
+        throw new TimeoutException(String.format("Cluster did not reach %d members up within %s", count, timeout));
+    }
+
+    private void startTagStreams() {
+        ActorMaterializer materializer = ActorMaterializer.create(harness);
+        Duration pollInterval = settings.getDuration("tag-stream-poll-interval");
+
+        ReadSideProcessorActor.Tag.tags().forEach(tag ->
+                LocalJournal.eventsByTag(tag.value, 0, pollInterval)
+                        .runForeach(eventEnvelope -> tagStreamEvents.increment(), materializer));
+    }
+
+    private class Load implements Runnable {
+        private final double writesPerTick = settings.getDouble("write-rate") * tickMillis / 1000.0;
+        private final double queriesPerTick = settings.getDouble("query-rate") * tickMillis / 1000.0;
+        private double writeCredit;
+        private double queryCredit;
+
+        @Override
+        public void run() {
+            for (writeCredit += writesPerTick; writeCredit >= 1; writeCredit--) {
+                send(commandTargets.get(anyNode()), command(), writes, rebalanceWrites);
+            }
+            for (queryCredit += queriesPerTick; queryCredit >= 1; queryCredit--) {
+                send(queryTargets.get(anyNode()), new EntityMessage.Query(entityId()), queries, rebalanceQueries);
+            }
+        }
+    }
+
+    /**
+     * Send a request and record its outcome, requests sent in the rebalance window after the failover are also
+     * recorded in the rebalance latencies.
+     */
+    private void send(ActorRef target, Object message, Latencies latencies, Latencies rebalanceLatencies) {
+        long start = System.nanoTime();
+        outstanding.incrementAndGet();
+        boolean rebalancing = start >= rebalanceStart && start < rebalanceEnd;
+        Patterns.ask(target, message, settings.getDuration("request-timeout"))
+                .whenComplete((response, error) -> {
+                    record(latencies, start, response, error);
+                    if (rebalancing) {
+                        record(rebalanceLatencies, start, response, error);
+                    }
+                    outstanding.decrementAndGet();
+                });
+    }
+
+    private static void record(Latencies latencies, long start, Object response, Throwable error) {
+        if (error == null && response instanceof EntityMessage.CommandRejected) {
+            latencies.rejected.increment();
+        } else if (error == null) {
+            latencies.record(System.nanoTime() - start);
+        } else {
+            latencies.failed.increment();
+        }
+    }
+
+    private EntityMessage.EntityCommand command() {
+        BigDecimal amount = Random.amount(1, 10000);
+        return random.nextBoolean()
+                ? new EntityMessage.DepositCommand(entityId(), new EntityMessage.Amount(amount))
+                : new EntityMessage.WithdrawalCommand(entityId(), new EntityMessage.Amount(amount));
+    }
+
+    /**
+     * With {@code hot-entities} set, {@code hot-share} of the requests go to the first ids and the rest are spread
+     * over all of them.
+     */
+    private Entity.Id entityId() {
+        int hotEntities = settings.getInt("hot-entities");
+        return hotEntities > 0 && ThreadLocalRandom.current().nextDouble() < settings.getDouble("hot-share")
+                ? Random.entityId(1, hotEntities)
+                : Random.entityId(1, settings.getInt("entities"));
+    }
+
+    private void failover() {
+        int index = settings.getInt("failover.node");
+        String mode = settings.getString("failover.mode");
+        ActorSystem node = nodes.getAndSet(index, null);
+        Address address = Cluster.get(node).selfAddress();
+
+        AtomicLong lastRecoveryWaiting = new AtomicLong();
+        ScheduledFuture<?> sample = scheduler.scheduleAtFixedRate(() -> {
+            if (anyRecoveryWaiting()) {
+                lastRecoveryWaiting.set(System.nanoTime());
+            }
+        }, 0, 1, TimeUnit.MILLISECONDS);
+        try {
+            long killed = System.nanoTime();
+            rebalanceEnd = killed + settings.getDuration("failover.rebalance-window").toNanos();
+            rebalanceStart = killed;
+            if (mode.equals("leave")) {
+                CoordinatedShutdown.get(node).runAll(CoordinatedShutdown.unknownReason());
+            } else {
+                node.terminate();
+                Cluster.get(anyNode()).down(address);
+            }
+            node.getWhenTerminated().toCompletableFuture().get(60, TimeUnit.SECONDS);
+            failover.put("mode", mode);
+            failover.put("node", address.toString());
+            failover.put("downMillis", millis(System.nanoTime() - killed));
+            if (mode.equals("leave")) {
+                GracefulShutdown.get(node).phaseMillis().forEach((phase, millis) -> failover.put("shutdown." + phase, millis));
+            }
+            failover.put("rebalanceMillis", millis(awaitAllShardsServing(Duration.ofSeconds(120)) - killed));
+            sample.cancel(false);
+            failover.put("recoveriesQueuedMillis", lastRecoveryWaiting.get() < killed ? 0 : millis(lastRecoveryWaiting.get() - killed));
+            recoveryStats().forEach((name, value) -> failover.put("recovery." + name, value));
+
+            long restartAt = killed + settings.getDuration("failover.restart-after").toNanos();
+            Thread.sleep(Math.max(0, TimeUnit.NANOSECONDS.toMillis(restartAt - System.nanoTime())));
+
+            long restarted = System.nanoTime();
+            ActorSystem restartedNode = startNode(ports.get(index));
+            CompletableFuture<Long> up = new CompletableFuture<>();
+            Cluster.get(restartedNode).registerOnMemberUp(() -> up.complete(System.nanoTime()));
+            failover.put("rejoinMillis", millis(up.get(60, TimeUnit.SECONDS) - restarted));
+            nodes.set(index, restartedNode);
+        } catch (Exception e) {
+            failover.put("error", e.toString());
+        } finally {
+            sample.cancel(false);
+        }
+    }
+
+    private boolean anyRecoveryWaiting() {
+        for (int i = 0; i < nodes.length(); i++) {
+            ActorSystem node = nodes.get(i);
+            if (node != null && RecoveryScheduler.get(node).stats().get("waiting") > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Recovery scheduler counts of the live nodes since they started, the peak and longest wait of the worst
+     * node and the sums of the rest.
+     */
+    private Map<String, Long> recoveryStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        for (int i = 0; i < nodes.length(); i++) {
+            ActorSystem node = nodes.get(i);
+            if (node != null) {
+                RecoveryScheduler.get(node).stats().forEach((name, value) -> stats.merge(name, value,
+                        name.equals("peakWaiting") || name.equals("longestWaitMillis") ? Math::max : Long::sum));
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Restart the nodes one at a time with a new entity shard count, the last seed node last, then wait until
+     * every node routes by the new layout. The layout change starts as soon as all up nodes ask for the new
+     * count, which can be while the last node is restarting, so its start is sampled from the routing tables.
+     */
+    private void reshard() {
+        int numberOfShards = settings.getInt("reshard.number-of-shards");
+        Config reshardConfig = ConfigFactory.parseString("entity-sharding.number-of-shards = " + numberOfShards).withFallback(config);
+        try {
+            reshard.put("from", EntityRouting.get(anyNode()).table().numberOfShards);
+            reshard.put("to", numberOfShards);
+            long start = System.nanoTime();
+            AtomicLong changeStarted = new AtomicLong();
+            ScheduledFuture<?> sample = scheduler.scheduleAtFixedRate(() -> {
+                if (changeStarted.get() == 0 && anyNodeResharding()) {
+                    changeStarted.set(System.nanoTime());
+                }
+            }, 0, 1, TimeUnit.MILLISECONDS);
+            for (int i = nodes.length() - 1; i >= 0; i--) {
+                ActorSystem node = nodes.getAndSet(i, null);
+                CoordinatedShutdown.get(node).runAll(CoordinatedShutdown.unknownReason());
+                node.getWhenTerminated().toCompletableFuture().get(60, TimeUnit.SECONDS);
+                ActorSystem restartedNode = startNode(ports.get(i), reshardConfig);
+                CompletableFuture<Long> up = new CompletableFuture<>();
+                Cluster.get(restartedNode).registerOnMemberUp(() -> up.complete(System.nanoTime()));
+                up.get(60, TimeUnit.SECONDS);
+                nodes.set(i, restartedNode);
+            }
+            long restarted = System.nanoTime();
+            reshard.put("rollingRestartMillis", millis(restarted - start));
+
+            long deadline = restarted + TimeUnit.SECONDS.toNanos(120);
+            while (!allNodesRouteBy(numberOfShards)) {
+                if (System.nanoTime() > deadline) {
+                    throw new TimeoutException(String.format("Layout of %d shards not current within 120s", numberOfShards));
+                }
+                Thread.sleep(10);
+            }
+            long converged = System.nanoTime();
+            sample.cancel(false);
+            long changeStart = changeStarted.get() == 0 ? converged : changeStarted.get();
+            reshard.put("changeStartMillis", millis(changeStart - start));
+            reshard.put("convergeMillis", millis(converged - changeStart));
+            reshard.put("servingMillis", millis(awaitAllShardsServing(Duration.ofSeconds(120)) - changeStart));
+        } catch (Exception e) {
+            reshard.put("error", e.toString());
+        }
+    }
+
+    private boolean anyNodeResharding() {
+        for (int i = 0; i < nodes.length(); i++) {
+            ActorSystem node = nodes.get(i);
+            if (node != null && EntityRouting.get(node).table().resharding()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean allNodesRouteBy(int numberOfShards) {
+        for (int i = 0; i < nodes.length(); i++) {
+            EntityRouting.Table table = EntityRouting.get(nodes.get(i)).table();
+            if (table.numberOfShards != numberOfShards || table.resharding()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Probe one entity of every shard until each has answered, returns the nanoTime of the last answer.
+     */
+    private long awaitAllShardsServing(Duration timeout) throws InterruptedException, TimeoutException {
+        ShardRegion.MessageExtractor messageExtractor = EntityMessage.messageExtractor(EntityRouting.get(anyNode()));
+        Map<String, EntityMessage.Query> probes = new HashMap<>();
+        for (int i = 1; i <= settings.getInt("entities"); i++) {
+            EntityMessage.Query query = new EntityMessage.Query(new Entity.Id(String.valueOf(i)));
+            probes.putIfAbsent(messageExtractor.shardId(query), query);
+        }
+
+        long deadline = System.nanoTime() + timeout.toNanos();
+        long last = System.nanoTime();
+        while (!probes.isEmpty()) {
+            if (System.nanoTime() > deadline) {
+                throw new TimeoutException(String.format("Shards %s not serving within %s", probes.keySet(), timeout));
+            }
+            Iterator<EntityMessage.Query> iterator = probes.values().iterator();
+            while (iterator.hasNext()) {
+                try {
+                    Patterns.ask(shardRegion(anyNode()), iterator.next(), Duration.ofSeconds(1)).toCompletableFuture().get();
+                    iterator.remove();
+                    last = System.nanoTime();
+                } catch (ExecutionException e) {
+                    // not serving yet, probe again
+                }
+            }
+        }
+        return last;
+    }
+
+    private void awaitOutstanding(Duration timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        while (outstanding.get() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private long awaitTagStreamCatchUp(Duration timeout) throws InterruptedException {
+        long start = System.nanoTime();
+        long journaled = ReadSideProcessorActor.Tag.tags().stream().mapToLong(tag -> LocalJournal.tagCount(tag.value)).sum();
+        while (tagStreamEvents.sum() < journaled && System.nanoTime() - start < timeout.toNanos()) {
+            Thread.sleep(1);
+        }
+        return tagStreamEvents.sum() < journaled ? -1 : millis(System.nanoTime() - start);
+    }
+
+    private void report(long loadNanos, long catchUpMillis) throws IOException {
+        double seconds = loadNanos / 1e9;
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append(String.format(Locale.ROOT, "  \"nodes\": %d,%n", nodes.length()));
+        json.append(String.format(Locale.ROOT, "  \"entities\": %d,%n", settings.getInt("entities")));
+        json.append(String.format(Locale.ROOT, "  \"durationSeconds\": %.3f,%n", seconds));
+        json.append(String.format(Locale.ROOT, "  \"writes\": %s,%n", writes.toJson(seconds)));
+        json.append(String.format(Locale.ROOT, "  \"queries\": %s,%n", queries.toJson(seconds)));
+        json.append(String.format(Locale.ROOT, "  \"failover\": %s,%n", toJson(failover)));
+        json.append(String.format(Locale.ROOT, "  \"rebalance\": {\"writes\": %s, \"queries\": %s},%n",
+                rebalanceWrites.toJson(settings.getDuration("failover.rebalance-window").toMillis() / 1000.0),
+                rebalanceQueries.toJson(settings.getDuration("failover.rebalance-window").toMillis() / 1000.0)));
+        json.append(String.format(Locale.ROOT, "  \"reshard\": %s,%n", toJson(reshard)));
+        json.append(String.format(Locale.ROOT, "  \"admissionLimits\": %s,%n", admissionLimits()));
+        json.append(String.format(Locale.ROOT, "  \"tagStreams\": {\"events\": %d, \"catchUpMillis\": %d}%n", tagStreamEvents.sum(), catchUpMillis));
+        json.append("}\n");
+
+        Path output = Paths.get(settings.getString("output"));
+        if (output.getParent() != null) {
+            Files.createDirectories(output.getParent());
+        }
+        Files.write(output, json.toString().getBytes(StandardCharsets.UTF_8));
+        System.out.print(json);
+    }
+
+    private String admissionLimits() {
+        StringJoiner limits = new StringJoiner(", ", "[", "]");
+        for (int i = 0; i < nodes.length(); i++) {
+            if (nodes.get(i) != null) {
+                limits.add(String.valueOf(AdmissionControl.get(nodes.get(i)).getLimit()));
+            }
+        }
+        return limits.toString();
+    }
+
+    private void shutdown() throws Exception {
+        scheduler.shutdownNow();
+        for (int i = 0; i < nodes.length(); i++) {
+            ActorSystem node = nodes.get(i);
+            if (node != null) {
+                CoordinatedShutdown.get(node).runAll(CoordinatedShutdown.unknownReason());
+                node.getWhenTerminated().toCompletableFuture().get(30, TimeUnit.SECONDS);
+            }
+        }
+        harness.terminate();
+    }
+
+    private ActorSystem anyNode() {
+        List<ActorSystem> live = new ArrayList<>();
+        for (int i = 0; i < nodes.length(); i++) {
+            if (nodes.get(i) != null) {
+                live.add(nodes.get(i));
+            }
+        }
+        return live.get(ThreadLocalRandom.current().nextInt(live.size()));
+    }
+
+    private static ActorRef shardRegion(ActorSystem actorSystem) {
+        return ClusterSharding.get(actorSystem).shardRegion("entity");
+    }
+
+    private static long millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    private static String toJson(Map<String, Object> values) {
+        StringJoiner json = new StringJoiner(", ", "{", "}");
+        values.forEach((key, value) -> json.add(value instanceof Number
+                ? String.format("\"%s\": %s", key, value)
+                : String.format("\"%s\": \"%s\"", key, value.toString().replace("\"", "'"))));
+        return json.toString();
+    }
+
+    /**
+     * Response times of successful requests plus counts of failed and rejected ones.
+     */
+    static class Latencies {
+        private long[] nanos = new long[1024];
+        private int count;
+        final LongAdder failed = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+
+        synchronized void record(long latencyNanos) {
+            if (count == nanos.length) {
+                nanos = Arrays.copyOf(nanos, count * 2);
+            }
+            nanos[count++] = latencyNanos;
+        }
+
+        synchronized void reset() {
+            count = 0;
+            failed.reset();
+            rejected.reset();
+        }
+
+        synchronized String toJson(double seconds) {
+            long[] sorted = Arrays.copyOf(nanos, count);
+            Arrays.sort(sorted);
+            return String.format(Locale.ROOT,
+                    "{\"ok\": %d, \"failed\": %d, \"rejected\": %d, \"throughput\": %.1f, \"latencyMillis\": {\"p50\": %.3f, \"p90\": %.3f, \"p99\": %.3f, \"p999\": %.3f, \"max\": %.3f}}",
+                    count, failed.sum(), rejected.sum(), count / seconds,
+                    percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99), percentile(sorted, 0.999),
+                    percentile(sorted, 1.0));
+        }
+
+        private static double percentile(long[] sorted, double percentile) {
+            return sorted.length == 0
+                    ? 0
+                    : sorted[(int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1)] / 1e6;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package cluster.persistence;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.PoisonPill;
+import akka.actor.ReceiveTimeout;
+import akka.actor.Props;
+import akka.dispatch.Envelope;
+import akka.dispatch.MailboxType;
+import akka.dispatch.MessageQueue;
+import akka.dispatch.ProducesMessageQueue;
+import akka.dispatch.UnboundedDequeBasedMessageQueueSemantics;
+import akka.persistence.JournalProtocol;
+import akka.persistence.SaveSnapshotFailure;
+import akka.persistence.SaveSnapshotSuccess;
+import akka.persistence.SnapshotProtocol;
+import com.typesafe.config.Config;
+import scala.Option;
+
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Mailbox with three FIFO lanes, a message is taken from the first lane that is not empty.
+ * <ol>
+ * <li>control: read-side heartbeats, journal and snapshot store responses, receive timeouts</li>
+ * <li>read: queries, acks and everything not listed in the other lanes</li>
+ * <li>write: entity commands, command batches, queries that wait for pending writes, the shutdown drain and
+ * the PoisonPill and HandOff stop messages</li>
+ * </ol>
+ * A flood of commands therefore does not delay queries or the completion of the writes already in flight.
+ * Messages keep their order within a lane. The other write lane messages are there so they do not overtake
+ * commands delivered before them: a query that waits for pending writes must see the writes sent before it,
+ * a drain must come after the commands it drains, and the passivation and hand-off stops of a shard must not
+ * drop commands.
+ * <p>
+ * The lanes are deques so persistent actors can stash, unstashed messages go back to the front of their lane.
+ */
+public class PriorityLaneMailbox implements MailboxType, ProducesMessageQueue<PriorityLaneMailbox.LaneQueue> {
+    public PriorityLaneMailbox(ActorSystem.Settings settings, Config config) {
+    }
+
+    @Override
+    public MessageQueue create(Option<ActorRef> owner, Option<ActorSystem> system) {
+        return new LaneQueue();
+    }
+
+    /**
+     * Apply the priority lane mailbox and the given dispatcher to the props when {@code priority-lanes.enabled} is on.
+     */
+    static Props props(ActorSystem actorSystem, Props props, String dispatcher) {
+        return actorSystem.settings().config().getBoolean("priority-lanes.enabled")
+                ? props.withDispatcher(dispatcher).withMailbox("priority-lanes.mailbox")
+                : props;
+    }
+
+    /**
+     * Apply just the priority lane mailbox to the props when {@code priority-lanes.enabled} is on.
+     */
+    static Props props(ActorSystem actorSystem, Props props) {
+        return actorSystem.settings().config().getBoolean("priority-lanes.enabled")
+                ? props.withMailbox("priority-lanes.mailbox")
+                : props;
+    }
+
+    static int lane(Object message) {
+        if (message instanceof ReadSideProcessorActor.Tag
+                || message instanceof ReadSideProcessorActor.Heartbeat
+                || message instanceof ReadSideProcessorActor.HeartbeatAck
+                || message instanceof JournalProtocol.Response
+                || message instanceof SnapshotProtocol.Response
+                || message instanceof SaveSnapshotSuccess
+                || message instanceof SaveSnapshotFailure
+                || message instanceof ReceiveTimeout) {
+            return 0;
+        } else if (message instanceof EntityMessage.EntityCommand
+                || message instanceof EntityMessage.CommandBatch
+                || message instanceof EntityMessage.Query && ((EntityMessage.Query) message).waitForPendingWrites
+                || message instanceof GracefulShutdown.Drain
+                || message instanceof PoisonPill
+                || message instanceof EntityMessage.HandOff) {
+            return 2;
+        } else {
+            return 1;
+        }
+    }
+
+    static class LaneQueue implements MessageQueue, UnboundedDequeBasedMessageQueueSemantics {
+        private final List<Deque<Envelope>> lanes = Arrays.asList(new ConcurrentLinkedDeque<>(), new ConcurrentLinkedDeque<>(), new ConcurrentLinkedDeque<>());
+        private final AtomicInteger size = new AtomicInteger();
+
+        @Override
+        public void enqueue(ActorRef receiver, Envelope handle) {
+            lanes.get(lane(handle.message())).addLast(handle);
+            size.incrementAndGet();
+        }
+
+        @Override
+        public void enqueueFirst(ActorRef receiver, Envelope handle) {
+            lanes.get(lane(handle.message())).addFirst(handle);
+            size.incrementAndGet();
+        }
+
+        @Override
+        public Envelope dequeue() {
+            for (Deque<Envelope> lane : lanes) {
+                Envelope envelope = lane.pollFirst();
+                if (envelope != null) {
+                    size.decrementAndGet();
+                    return envelope;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public int numberOfMessages() {
+            return size.get();
+        }
+
+        @Override
+        public boolean hasMessages() {
+            return size.get() > 0;
+        }
+
+        @Override
+        public void cleanUp(ActorRef owner, MessageQueue deadLetters) {
+            for (Envelope envelope = dequeue(); envelope != null; envelope = dequeue()) {
+                deadLetters.enqueue(owner, envelope);
+            }
+        }
+    }
+}
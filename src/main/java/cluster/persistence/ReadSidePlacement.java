@@ -0,0 +1,283 @@
+package cluster.persistence;
+
+import akka.actor.*;
+import akka.cluster.Cluster;
+import akka.cluster.metrics.ClusterMetricsChanged;
+import akka.cluster.metrics.ClusterMetricsExtension;
+import akka.cluster.metrics.NodeMetrics;
+import akka.cluster.metrics.StandardMetrics;
+import akka.cluster.pubsub.DistributedPubSub;
+import akka.cluster.pubsub.DistributedPubSubMediator;
+import akka.cluster.sharding.ShardCoordinator;
+import akka.dispatch.Futures;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import com.typesafe.config.Config;
+import scala.collection.JavaConverters;
+import scala.collection.immutable.IndexedSeq;
+import scala.concurrent.Future;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Load of the read side as seen from this node, for placing tag processors.
+ * <p>
+ * Tag processors publish their event rate every {@code report-interval} and akka-cluster-metrics reports the
+ * CPU and heap use of every node. The {@link AllocationStrategy} of the read-side shard region combines both
+ * into a pressure per node: its share of the total event rate plus {@code cpu-weight} times its CPU load plus
+ * {@code heap-weight} times its heap use. A new shard goes to the node with the lowest pressure.
+ * <p>
+ * A rebalance moves at most one shard at a time, from the node with the highest pressure to the one with the
+ * lowest. The move is made only when the drop in the peak event rate kept up over {@code gain-horizon} is
+ * larger than the events the shard falls behind by during a hand-off of {@code hand-off-cost}, so small
+ * differences do not make tags move back and forth.
+ */
+class ReadSidePlacement implements Extension {
+    static final Id id = new Id();
+    static final String topic = "read-side-load";
+
+    private final ActorSystem actorSystem;
+    private final Config config;
+    private final long staleNanos;
+    private final Map<String, TagLoad> tagLoads = new ConcurrentHashMap<>();
+    private final Map<String, Long> tagLoadTimes = new ConcurrentHashMap<>();
+    private final Map<Address, double[]> nodeLoads = new ConcurrentHashMap<>();
+    private final Map<String, List<ReadSideProcessorActor.Tag>> tagsByShard = ReadSideProcessorActor.Tag.tagsByShard();
+
+    private ReadSidePlacement(ExtendedActorSystem actorSystem) {
+        this.actorSystem = actorSystem;
+        config = actorSystem.settings().config().getConfig("read-side-placement");
+        staleNanos = config.getDuration("report-interval").toNanos() * 3;
+        actorSystem.systemActorOf(Props.create(LoadListener.class, this), "readSidePlacement");
+    }
+
+    static ReadSidePlacement get(ActorSystem actorSystem) {
+        return id.get(actorSystem);
+    }
+
+    boolean enabled() {
+        return config.getBoolean("enabled");
+    }
+
+    ShardCoordinator.ShardAllocationStrategy allocationStrategy() {
+        return new AllocationStrategy(this);
+    }
+
+    /**
+     * Events per second of the tags of a shard, null when none of its tags has reported recently.
+     */
+    Double shardRate(String shardId) {
+        long now = System.nanoTime();
+        Double rate = null;
+        for (ReadSideProcessorActor.Tag tag : tagsByShard.getOrDefault(shardId, Collections.emptyList())) {
+            TagLoad tagLoad = tagLoads.get(tag.value);
+            if (tagLoad != null && now - tagLoadTimes.get(tag.value) < staleNanos) {
+                rate = (rate == null ? 0 : rate) + tagLoad.eventsPerSecond;
+            }
+        }
+        return rate;
+    }
+
+    /**
+     * CPU and heap use of a node, each from 0 to 1, zero when not known.
+     */
+    double[] nodeLoad(Address address) {
+        return nodeLoads.getOrDefault(address, new double[]{0, 0});
+    }
+
+    private void tagLoad(TagLoad tagLoad) {
+        tagLoadTimes.put(tagLoad.tag, System.nanoTime());
+        tagLoads.put(tagLoad.tag, tagLoad);
+    }
+
+    private void clusterMetrics(ClusterMetricsChanged clusterMetricsChanged) {
+        for (NodeMetrics nodeMetrics : clusterMetricsChanged.getNodeMetrics()) {
+            double cpu = 0;
+            double heap = 0;
+            StandardMetrics.Cpu cpuMetrics = StandardMetrics.extractCpu(nodeMetrics);
+            if (cpuMetrics != null && cpuMetrics.cpuCombined().isDefined()) {
+                cpu = (Double) cpuMetrics.cpuCombined().get();
+            }
+            StandardMetrics.HeapMemory heapMetrics = StandardMetrics.extractHeapMemory(nodeMetrics);
+            if (heapMetrics != null && heapMetrics.max().isDefined()) {
+                heap = (double) heapMetrics.used() / (Long) heapMetrics.max().get();
+            }
+            nodeLoads.put(nodeMetrics.address(), new double[]{cpu, heap});
+        }
+    }
+
+    /**
+     * Event rate of one tag, published by its tag processor.
+     */
+    static class TagLoad implements Serializable {
+        static final long serialVersionUID = 42L;
+        final String tag;
+        final double eventsPerSecond;
+
+        TagLoad(String tag, double eventsPerSecond) {
+            this.tag = tag;
+            this.eventsPerSecond = eventsPerSecond;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, %.1f/s]", getClass().getSimpleName(), tag, eventsPerSecond);
+        }
+    }
+
+    static class LoadListener extends AbstractLoggingActor {
+        private final ReadSidePlacement readSidePlacement;
+
+        LoadListener(ReadSidePlacement readSidePlacement) {
+            this.readSidePlacement = readSidePlacement;
+        }
+
+        @Override
+        public Receive createReceive() {
+            return receiveBuilder()
+                    .match(TagLoad.class, readSidePlacement::tagLoad)
+                    .match(ClusterMetricsChanged.class, readSidePlacement::clusterMetrics)
+                    .match(DistributedPubSubMediator.SubscribeAck.class, ack -> log().debug("{}", ack))
+                    .build();
+        }
+
+        @Override
+        public void preStart() {
+            DistributedPubSub.get(context().system()).mediator().tell(new DistributedPubSubMediator.Subscribe(topic, self()), self());
+            ClusterMetricsExtension.get(context().system()).subscribe(self());
+        }
+
+        @Override
+        public void postStop() {
+            ClusterMetricsExtension.get(context().system()).unsubscribe(self());
+        }
+    }
+
+    static class AllocationStrategy extends ShardCoordinator.AbstractShardAllocationStrategy {
+        private final ReadSidePlacement readSidePlacement;
+        private final Address selfAddress;
+        private final LoggingAdapter log;
+        private final double cpuWeight;
+        private final double heapWeight;
+        private final double gainHorizonSeconds;
+        private final double handOffCostSeconds;
+
+        AllocationStrategy(ReadSidePlacement readSidePlacement) {
+            this.readSidePlacement = readSidePlacement;
+            selfAddress = Cluster.get(readSidePlacement.actorSystem).selfAddress();
+            log = Logging.getLogger(readSidePlacement.actorSystem, this);
+            Config config = readSidePlacement.config;
+            cpuWeight = config.getDouble("cpu-weight");
+            heapWeight = config.getDouble("heap-weight");
+            gainHorizonSeconds = config.getDuration("gain-horizon").toMillis() / 1000.0;
+            handOffCostSeconds = config.getDuration("hand-off-cost").toMillis() / 1000.0;
+        }
+
+        @Override
+        public Future<ActorRef> allocateShard(ActorRef requester, String shardId, Map<ActorRef, IndexedSeq<String>> currentShardAllocations) {
+            Loads loads = new Loads(currentShardAllocations);
+            double shardRate = loads.rate(shardId);
+            ActorRef region = currentShardAllocations.keySet().stream()
+                    .min(Comparator.<ActorRef>comparingDouble(r -> loads.pressure(r, shardRate))
+                            .thenComparingInt(r -> currentShardAllocations.get(r).size()))
+                    .orElse(requester);
+            log.debug("Allocate read-side shard {} at {}/s to {}", shardId, shardRate, region);
+            return Futures.successful(region);
+        }
+
+        @Override
+        public Future<Set<String>> rebalance(Map<ActorRef, IndexedSeq<String>> currentShardAllocations, Set<String> rebalanceInProgress) {
+            if (!rebalanceInProgress.isEmpty() || currentShardAllocations.size() < 2) {
+                return Futures.successful(Collections.emptySet());
+            }
+            Loads loads = new Loads(currentShardAllocations);
+            Comparator<ActorRef> byPressure = Comparator.comparingDouble(r -> loads.pressure(r, 0));
+            ActorRef hottest = Collections.max(currentShardAllocations.keySet(), byPressure);
+            ActorRef coolest = Collections.min(currentShardAllocations.keySet(), byPressure);
+            double peak = Math.max(loads.pressure(hottest, 0), loads.pressure(coolest, 0));
+
+            String move = null;
+            double bestNet = 0;
+            for (String shardId : JavaConverters.seqAsJavaListConverter(currentShardAllocations.get(hottest)).asJava()) {
+                double shardRate = loads.rate(shardId);
+                double newPeak = Math.max(loads.pressure(hottest, -shardRate), loads.pressure(coolest, shardRate));
+                // pressure from the event rate is a share of the total rate, scale back to events per second
+                double gain = (peak - newPeak) * loads.totalRate * gainHorizonSeconds;
+                double cost = shardRate * handOffCostSeconds;
+                if (gain - cost > bestNet) {
+                    bestNet = gain - cost;
+                    move = shardId;
+                }
+            }
+            if (move == null) {
+                return Futures.successful(Collections.emptySet());
+            }
+            log.info("Rebalance read-side shard {} at {}/s from {} to {}", move, loads.rate(move), hottest, coolest);
+            return Futures.successful(Collections.singleton(move));
+        }
+
+        private Address address(ActorRef region) {
+            Address address = region.path().address();
+            return address.hasGlobalScope() ? address : selfAddress;
+        }
+
+        /**
+         * Event rates of the allocated shards. When no tag has reported yet every shard counts as one event
+         * per second, which places and balances by the number of shards.
+         */
+        private class Loads {
+            final Map<String, Double> shardRates = new HashMap<>();
+            final Map<ActorRef, Double> regionRates = new HashMap<>();
+            final boolean measured;
+            final double totalRate;
+
+            Loads(Map<ActorRef, IndexedSeq<String>> currentShardAllocations) {
+                boolean anyMeasured = false;
+                for (IndexedSeq<String> shards : currentShardAllocations.values()) {
+                    for (String shardId : JavaConverters.seqAsJavaListConverter(shards).asJava()) {
+                        Double rate = readSidePlacement.shardRate(shardId);
+                        anyMeasured |= rate != null;
+                        shardRates.put(shardId, rate);
+                    }
+                }
+                measured = anyMeasured;
+                double total = 0;
+                for (Map.Entry<ActorRef, IndexedSeq<String>> allocation : currentShardAllocations.entrySet()) {
+                    double regionRate = 0;
+                    for (String shardId : JavaConverters.seqAsJavaListConverter(allocation.getValue()).asJava()) {
+                        regionRate += rate(shardId);
+                    }
+                    regionRates.put(allocation.getKey(), regionRate);
+                    total += regionRate;
+                }
+                totalRate = total;
+            }
+
+            double rate(String shardId) {
+                if (!measured) {
+                    return 1;
+                }
+                Double rate = shardRates.containsKey(shardId) ? shardRates.get(shardId) : readSidePlacement.shardRate(shardId);
+                return rate == null ? 0 : rate;
+            }
+
+            /**
+             * Pressure on a region with its event rate changed by the given delta.
+             */
+            double pressure(ActorRef region, double rateDelta) {
+                double[] nodeLoad = readSidePlacement.nodeLoad(address(region));
+                double rateShare = totalRate > 0 ? (regionRates.getOrDefault(region, 0.0) + rateDelta) / totalRate : 0;
+                return rateShare + cpuWeight * nodeLoad[0] + heapWeight * nodeLoad[1];
+            }
+        }
+    }
+
+    static class Id extends AbstractExtensionId<ReadSidePlacement> {
+        @Override
+        public ReadSidePlacement createExtension(ExtendedActorSystem system) {
+            return new ReadSidePlacement(system);
+        }
+    }
+}
@@ -1,8 +1,12 @@
 package cluster.persistence;
 
+import akka.Done;
 import akka.actor.AbstractLoggingActor;
 import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.PoisonPill;
 import akka.actor.Props;
+import akka.actor.Terminated;
 import akka.cluster.sharding.ShardRegion;
 import akka.pattern.BackoffOpts;
 import akka.pattern.BackoffSupervisor;
@@ -10,70 +14,235 @@ import akka.routing.MurmurHash;
 import scala.concurrent.duration.FiniteDuration;
 
 import java.io.Serializable;
-import java.util.Collection;
-import java.util.Objects;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.*;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
+/**
+ * Sharded entity that owns the event stream of one tag.
+ * <p>
+ * The tag stream runs in a child, so it lives and dies with this entity and only the node that hosts the
+ * entity streams the tag. When the entity's shard is handed off it receives {@link HandOff}, has the stream
+ * flush its last offset to {@code tag_read_progress} and stops once the stream is gone, so the shard is not
+ * started elsewhere before the offset is written. The region remembers its entities, the new home of the
+ * shard starts them straight away and they resume from the flushed offset without waiting for a heartbeat.
+ * <p>
+ * The child is a backoff supervisor. The tag actor fails when its stream cannot be started or ends before
+ * it is drained, and the supervisor restarts it from the last committed offset. A tag is reported running
+ * while its supervisor lives, which includes the backoff before such a restart.
+ */
 class ReadSideProcessorActor extends AbstractLoggingActor {
+    /**
+     * Tags are spread over this many shards by tag number. One tag per shard lets placement move each tag on
+     * its own, fewer shards put more tags in each heartbeat message.
+     */
+    static final int numberOfShards = EntityMessage.numberOfEventTags;
+
+    private final Tag tag = new Tag(self().path().name());
     private ActorRef readSideProcessorEventTag;
+    private Cancellable handOffTimeout;
 
     @Override
     public Receive createReceive() {
         return receiveBuilder()
                 .match(Tag.class, this::heartbeat)
+                .match(Heartbeat.class, this::heartbeat)
+                .match(HandOff.class, h -> handOff())
+                .match(Terminated.class, this::terminated)
+                .match(Done.class, done -> log().debug("Drained {}", tag))
                 .build();
     }
 
     private void heartbeat(Tag tag) {
-        log().info("Heartbeat {}", tag);
+        log().debug("Heartbeat {}", tag);
+        startEventTag();
+    }
 
-        if (readSideProcessorEventTag == null) {
-            // todo figure out which supervisor to use
-            BackoffSupervisor.props(BackoffOpts.onFailure(
-                    ReadSideProcessorEventTagActor.props(tag),
+    /**
+     * This entity is the first tag of the heartbeat, the other tags of the shard are passed on by a
+     * {@link HeartbeatFanOutActor} that answers for all of them.
+     */
+    private void heartbeat(Heartbeat heartbeat) {
+        log().debug("Heartbeat {}", heartbeat);
+        boolean started = startEventTag();
+        HeartbeatAck heartbeatAck = new HeartbeatAck(heartbeat.shardId, heartbeat.round,
+                readSideProcessorEventTag != null && !started ? Collections.singletonList(tag) : Collections.emptyList(),
+                started ? Collections.singletonList(tag) : Collections.emptyList());
+
+        if (heartbeat.tags.size() == 1) {
+            sender().tell(heartbeatAck, self());
+        } else {
+            context().actorOf(HeartbeatFanOutActor.props(context().parent(), heartbeat, heartbeatAck, sender()));
+        }
+    }
+
+    /**
+     * @return true when the tag stream was not running and has been started
+     */
+    private boolean startEventTag() {
+        if (readSideProcessorEventTag == null && handOffTimeout == null && inOwnShard()) {
+            Props props = BackoffSupervisor.props(BackoffOpts.onFailure(
+                    PriorityLaneMailbox.props(context().system(), ReadSideProcessorEventTagActor.props(tag), "read-side-dispatcher"),
                     String.format("tag-%s", tag.value),
                     FiniteDuration.create(1, TimeUnit.SECONDS),
                     FiniteDuration.create(39, TimeUnit.SECONDS),
                     0.2
             ));
-            Props props = BackoffSupervisor.props(
-                    ReadSideProcessorEventTagActor.props(tag),
-                    String.format("tag-%s", tag.value),
-                    FiniteDuration.create(1, TimeUnit.SECONDS),
-                    FiniteDuration.create(39, TimeUnit.SECONDS),
-                    0.2
+            readSideProcessorEventTag = context().actorOf(props, String.format("supervisor-%s", tag.value));
+            context().watch(readSideProcessorEventTag);
+            return true;
+        }
+        return false;
+    }
+
+    private void handOff() {
+        if (readSideProcessorEventTag == null) {
+            context().stop(self());
+        } else if (handOffTimeout == null) {
+            log().info("Hand off {}", tag);
+            // the supervisor forwards the drain to the tag actor, which stops after writing its offset
+            readSideProcessorEventTag.tell(GracefulShutdown.drain, self());
+            handOffTimeout = context().system().scheduler().scheduleOnce(
+                    handOffTimeout(),
+                    readSideProcessorEventTag,
+                    PoisonPill.getInstance(),
+                    context().dispatcher(),
+                    self()
             );
-            readSideProcessorEventTag = context().system().actorOf(props, String.format("supervisor-%s", tag.value));
         }
     }
 
+    private void terminated(Terminated terminated) {
+        if (terminated.actor().equals(readSideProcessorEventTag)) {
+            readSideProcessorEventTag = null;
+            if (handOffTimeout != null) {
+                context().stop(self());
+            }
+        }
+    }
+
+    private FiniteDuration handOffTimeout() {
+        java.time.Duration timeout = context().system().settings().config().getDuration("read-side-processor.hand-off-timeout");
+        return FiniteDuration.create(timeout.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
     @Override
     public void preStart() {
         log().info("Start");
+        if (inOwnShard()) {
+            startEventTag();
+        } else {
+            // remembered in a shard of an earlier tag to shard mapping, the tag's own shard runs its stream
+            log().warning("{} is not in shard {}, passivating", tag, tag.shardId());
+            context().parent().tell(new ShardRegion.Passivate(PoisonPill.getInstance()), self());
+        }
+    }
+
+    private boolean inOwnShard() {
+        try {
+            return context().parent().path().name().equals(URLEncoder.encode(tag.shardId(), "utf-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
     }
 
     @Override
     public void postStop() {
         log().info("Stop");
+        if (handOffTimeout != null) {
+            handOffTimeout.cancel();
+        }
     }
 
     static Props props() {
         return Props.create(ReadSideProcessorActor.class);
     }
 
+    /**
+     * Stop message of the read-side shard region, sent to each entity of a shard that is handed off.
+     */
+    static class HandOff implements Serializable {
+        static final long serialVersionUID = 42L;
+        static final HandOff instance = new HandOff();
+
+        private HandOff() {
+        }
+    }
+
+    /**
+     * Heartbeat for all the tags of one shard, delivered to the entity of the first tag.
+     */
+    static class Heartbeat implements Serializable {
+        static final long serialVersionUID = 42L;
+        final String shardId;
+        final List<Tag> tags;
+        final long round;
+        final long timeoutMillis;
+
+        Heartbeat(String shardId, List<Tag> tags, long round, long timeoutMillis) {
+            this.shardId = shardId;
+            this.tags = tags;
+            this.round = round;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[shard %s, round %d, %d tags, %dms]", getClass().getSimpleName(), shardId, round, tags.size(), timeoutMillis);
+        }
+    }
+
+    /**
+     * The tags of a heartbeat whose stream was already running and the tags whose stream it started. Tags
+     * that did not answer in time are in neither list.
+     */
+    static class HeartbeatAck implements Serializable {
+        static final long serialVersionUID = 42L;
+        final String shardId;
+        final long round;
+        final List<Tag> running;
+        final List<Tag> started;
+
+        HeartbeatAck(String shardId, long round, List<Tag> running, List<Tag> started) {
+            this.shardId = shardId;
+            this.round = round;
+            this.running = running;
+            this.started = started;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[shard %s, round %d, running %s, started %s]", getClass().getSimpleName(), shardId, round, running, started);
+        }
+    }
+
     static class Tag implements Serializable {
+        private static final List<Tag> tags = Collections.unmodifiableList(IntStream.range(0, EntityMessage.numberOfEventTags)
+                .mapToObj(i -> new Tag(i + ""))
+                .collect(Collectors.toList()));
+
         final String value;
 
         Tag(String value) {
             this.value = value;
         }
 
-        static Collection<Tag> tags() {
-            return IntStream.range(0, EntityMessage.numberOfEventTags)
-                    .mapToObj(i -> new Tag(i + ""))
-                    .collect(Collectors.toList());
+        static List<Tag> tags() {
+            return tags;
+        }
+
+        /**
+         * The tags grouped by the read-side shard they belong to.
+         */
+        static Map<String, List<Tag>> tagsByShard() {
+            return tags.stream().collect(Collectors.groupingBy(Tag::shardId, TreeMap::new, Collectors.toList()));
+        }
+
+        String shardId() {
+            return Math.floorMod(Integer.parseInt(value), numberOfShards) + "";
         }
 
         @Override
@@ -99,16 +268,22 @@ class ReadSideProcessorActor extends AbstractLoggingActor {
         return new ShardRegion.MessageExtractor() {
             @Override
             public String shardId(Object message) {
-                return message instanceof Tag
-                        ? message.hashCode() % EntityMessage.numberOfEventTags + ""
-                        : null;
+                if (message instanceof Tag) {
+                    return ((Tag) message).shardId();
+                } else if (message instanceof Heartbeat) {
+                    return ((Heartbeat) message).shardId;
+                }
+                return null;
             }
 
             @Override
             public String entityId(Object message) {
-                return message instanceof Tag
-                        ? ((Tag) message).value
-                        : null;
+                if (message instanceof Tag) {
+                    return ((Tag) message).value;
+                } else if (message instanceof Heartbeat) {
+                    return ((Heartbeat) message).tags.get(0).value;
+                }
+                return null;
             }
 
             @Override
@@ -1,34 +1,63 @@
 package cluster.persistence;
 
+import akka.Done;
 import akka.actor.AbstractLoggingActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
 import akka.actor.Props;
+import akka.cluster.pubsub.DistributedPubSub;
+import akka.cluster.pubsub.DistributedPubSubMediator;
 import akka.persistence.cassandra.query.javadsl.CassandraReadJournal;
 import akka.persistence.query.EventEnvelope;
 import akka.persistence.query.Offset;
 import akka.persistence.query.PersistenceQuery;
 import akka.persistence.query.TimeBasedUUID;
+import akka.japi.Pair;
+import akka.pattern.Patterns;
 import akka.stream.ActorMaterializer;
+import akka.stream.KillSwitches;
 import akka.stream.Materializer;
+import akka.stream.UniqueKillSwitch;
 import akka.stream.alpakka.cassandra.javadsl.CassandraSource;
+import akka.stream.javadsl.Keep;
 import akka.stream.javadsl.Sink;
 import com.datastax.driver.core.*;
+import scala.concurrent.duration.FiniteDuration;
 
+import java.time.Duration;
+import java.time.Instant;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ReadSideProcessorEventTagActor extends AbstractLoggingActor {
     private final ReadSideProcessorActor.Tag tag;
-    private final Session session;
+    private final String tagShardId;
+    private Session session;
     private final ActorMaterializer actorMaterializer;
     private static final String keyspaceName = "akka"; // todo get the keyspace name from the configuration
+    private static final long uuidEpochOffset = 0x01b21dd213814000L; // 100ns intervals from 1582-10-15 to 1970-01-01
     private PreparedStatement preparedUpdateStatement;
+    private UniqueKillSwitch killSwitch;
+    private CompletionStage<Done> streamDone = CompletableFuture.completedFuture(Done.getInstance());
+    private volatile Offset lastOffset;
+    private boolean draining;
+    private final AtomicLong events = new AtomicLong();
+    private final NodeMetricsRecorder metrics = NodeMetricsRecorder.get(context().system());
+    private final FlightEvents flightEvents = FlightEvents.get(context().system());
+    private long reportedEvents;
+    private long reportedNanos = System.nanoTime();
+    private double eventsPerSecond;
+    private Cancellable loadReport;
 
     public ReadSideProcessorEventTagActor(ReadSideProcessorActor.Tag tag) {
         this.tag = tag;
+        tagShardId = tag.shardId();
 
-        session = Cassandra.session();
         actorMaterializer = ActorMaterializer.create(context().system());
 
         //createOffsetTable();
@@ -38,6 +67,10 @@ public class ReadSideProcessorEventTagActor extends AbstractLoggingActor {
     public Receive createReceive() {
         return receiveBuilder()
                 .match(ReadSideProcessorActor.Tag.class, this::heartbeat)
+                .match(GracefulShutdown.Drain.class, drain -> drain())
+                .match(Drained.class, this::drained)
+                .match(StreamEnded.class, this::streamEnded)
+                .matchEquals("report-load", r -> reportLoad())
                 .build();
     }
 
@@ -45,12 +78,69 @@ public class ReadSideProcessorEventTagActor extends AbstractLoggingActor {
         log().info("Heartbeat {}", tag);
     }
 
+    /**
+     * Publish the event rate of this tag for read-side placement, smoothed over the last few reports.
+     */
+    private void reportLoad() {
+        long now = System.nanoTime();
+        long count = events.get();
+        double rate = (count - reportedEvents) * 1e9 / Math.max(1, now - reportedNanos);
+        eventsPerSecond = reportedEvents == 0 && eventsPerSecond == 0 ? rate : (eventsPerSecond + rate) / 2;
+        reportedEvents = count;
+        reportedNanos = now;
+        DistributedPubSub.get(context().system()).mediator().tell(
+                new DistributedPubSubMediator.Publish(ReadSidePlacement.topic, new ReadSidePlacement.TagLoad(tag.value, eventsPerSecond)),
+                self()
+        );
+    }
+
+    /**
+     * Stop reading events, write the offset of the last event handled and stop.
+     * Sent by the owning {@link ReadSideProcessorActor} when its shard is handed off.
+     */
+    private void drain() {
+        log().info("Drain {} at offset {}", tag, lastOffset);
+        draining = true;
+        ActorRef replyTo = sender();
+        if (killSwitch != null) {
+            killSwitch.shutdown();
+        }
+        CompletionStage<Drained> drained = streamDone
+                .handle((done, e) -> lastOffset)
+                .thenCompose(offset -> offset == null || preparedUpdateStatement == null
+                        ? CompletableFuture.completedFuture(null)
+                        : CassandraSource.create(preparedUpdateStatement.bind(((TimeBasedUUID) offset).value(), tag.value), session).runWith(Sink.seq(), actorMaterializer))
+                .handle((rows, e) -> new Drained(replyTo, e));
+        Patterns.pipe(drained, context().dispatcher()).to(self());
+    }
+
+    private void drained(Drained drained) {
+        if (drained.failure != null) {
+            log().warning("Final tag_read_progress update of {} failed, {}", tag, drained.failure.getMessage());
+        }
+        drained.replyTo.tell(Done.getInstance(), self());
+        context().stop(self());
+    }
+
+    /**
+     * The tag stream must run until this actor is drained. When it could not be started, or it completed or
+     * failed on its own, fail so the backoff supervisor restarts this actor and it resumes from the last
+     * committed offset.
+     */
+    private void streamEnded(StreamEnded streamEnded) {
+        if (!draining) {
+            throw new IllegalStateException(String.format("Read of %s %s", tag,
+                    streamEnded.failure == null ? "completed" : "failed"), streamEnded.failure);
+        }
+    }
+
     @Override
     public void preStart() {
         log().info("Start");
 
         // todo move the creation of the keyspace and the table to the singleton actor
         try {
+            session = Cassandra.get(context().system()).session().toCompletableFuture().get();
             createKeyspace(session, actorMaterializer)
                     .thenCompose(r -> createOffsetTable(session, actorMaterializer))
                     .thenCompose(r -> readTagOffset(actorMaterializer))
@@ -61,7 +151,18 @@ public class ReadSideProcessorEventTagActor extends AbstractLoggingActor {
             preparedUpdateStatement = session.prepare(String.format("update %s.tag_read_progress set offset = ? where tag = ?", keyspaceName));
         } catch (InterruptedException | ExecutionException e) {
             log().error(e, "Read by tags failed.");
+            self().tell(new StreamEnded(e), self());
         }
+
+        java.time.Duration reportInterval = context().system().settings().config().getDuration("read-side-placement.report-interval");
+        loadReport = context().system().scheduler().schedule(
+                FiniteDuration.create(reportInterval.toNanos(), TimeUnit.NANOSECONDS),
+                FiniteDuration.create(reportInterval.toNanos(), TimeUnit.NANOSECONDS),
+                self(),
+                "report-load",
+                context().dispatcher(),
+                ActorRef.noSender()
+        );
     }
 
     private static CompletionStage<List<Row>> createKeyspace(Session session, Materializer materializer) {
@@ -89,12 +190,21 @@ public class ReadSideProcessorEventTagActor extends AbstractLoggingActor {
 
     private void readEventsByTag(List<Row> rows) {
         if (rows.size() > 0) {
+            metrics.started(tag.value, offsetMillis(rows.get(0).getUUID("offset")));
             readEventsByTag(rows.get(0).getUUID("offset"));
         } else {
+            metrics.started(tag.value, System.currentTimeMillis());
             readEventsByTag(Offset.noOffset());
         }
     }
 
+    /**
+     * The time in epoch milliseconds of a time based offset.
+     */
+    static long offsetMillis(UUID offset) {
+        return (offset.timestamp() - uuidEpochOffset) / 10000;
+    }
+
     private void readEventsByTag(UUID uuid) {
         readEventsByTag(Offset.timeBasedUUID(uuid));
     }
@@ -104,21 +214,42 @@ public class ReadSideProcessorEventTagActor extends AbstractLoggingActor {
         CassandraReadJournal cassandraReadJournal =
                 PersistenceQuery.get(context().system()).getReadJournalFor(CassandraReadJournal.class, CassandraReadJournal.Identifier());
 
-        cassandraReadJournal.eventsByTag(tag.value, offset).runForeach(this::handleReadSideeEvent, actorMaterializer);
+        Pair<UniqueKillSwitch, CompletionStage<Done>> stream = cassandraReadJournal.eventsByTag(tag.value, offset)
+                .viaMat(KillSwitches.single(), Keep.right())
+                .toMat(Sink.foreach(this::handleReadSideeEvent), Keep.both())
+                .run(actorMaterializer);
+        killSwitch = stream.first();
+        streamDone = stream.second();
+        Patterns.pipe(streamDone.handle((done, e) -> new StreamEnded(e)), context().dispatcher()).to(self());
     }
 
     private void handleReadSideeEvent(EventEnvelope eventEnvelope) {
+        long started = System.nanoTime();
         log().info("Read-side {}", eventEnvelope);
 
         // TODO These events are stored in a read-side database.
         // To keep things simple storing events to a read-side database is not implemented.
 
         // todo add something to do updates every Nth event
+        lastOffset = eventEnvelope.offset();
+        events.incrementAndGet();
+        long lagMillis = 0;
+        if (eventEnvelope.event() instanceof EntityMessage.EntityEvent) {
+            lagMillis = Math.max(0, Duration.between(((EntityMessage.EntityEvent) eventEnvelope.event()).time, Instant.now()).toMillis());
+            metrics.projected();
+        }
         updateTagOffset(eventEnvelope.offset());
+        flightEvents.projected(tag.value, tagShardId, eventEnvelope.persistenceId(), eventEnvelope.sequenceNr(), lagMillis, System.nanoTime() - started);
     }
 
     private void updateTagOffset(Offset offset) {
-        CassandraSource.create(preparedUpdateStatement.bind(((TimeBasedUUID) offset).value(), tag.value), session).runWith(Sink.seq(), actorMaterializer)
+        long started = System.nanoTime();
+        UUID uuid = ((TimeBasedUUID) offset).value();
+        CassandraSource.create(preparedUpdateStatement.bind(uuid, tag.value), session).runWith(Sink.seq(), actorMaterializer)
+                .thenRun(() -> {
+                    metrics.committed(tag.value, offsetMillis(uuid));
+                    flightEvents.offsetCommitted(tag.value, tagShardId, System.nanoTime() - started);
+                })
                 .exceptionally(t -> {
                     throw new RuntimeException(String.format("Update tag_read_progress, %s failed!", tag), t);
                 });
@@ -127,12 +258,34 @@ public class ReadSideProcessorEventTagActor extends AbstractLoggingActor {
     @Override
     public void postStop() {
         log().info("Stop");
-        if (session != null) {
-            session.close();
+        metrics.stopped(tag.value);
+        if (loadReport != null) {
+            loadReport.cancel();
+        }
+        if (killSwitch != null) {
+            killSwitch.shutdown();
         }
     }
 
     static Props props(ReadSideProcessorActor.Tag tag) {
         return Props.create(ReadSideProcessorEventTagActor.class, tag);
     }
+
+    private static class StreamEnded {
+        final Throwable failure;
+
+        StreamEnded(Throwable failure) {
+            this.failure = failure;
+        }
+    }
+
+    private static class Drained {
+        final ActorRef replyTo;
+        final Throwable failure;
+
+        Drained(ActorRef replyTo, Throwable failure) {
+            this.replyTo = replyTo;
+            this.failure = failure;
+        }
+    }
 }
@@ -7,34 +7,67 @@ import akka.actor.Props;
 import scala.concurrent.duration.FiniteDuration;
 
 import java.time.Duration;
+import java.util.*;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * Keeps a tag stream running for every tag.
+ * <p>
+ * The first heartbeat is sent when the singleton starts, then one every {@code heartbeat-interval}. A heartbeat
+ * is one message per read-side shard that starts the streams of the shard's tags that are not running. The acks
+ * are tracked per tag, a tag that is not acked for {@code missed-heartbeats} intervals in a row is sent its own
+ * heartbeat, so a stuck entity does not keep the other tags of its shard from being revived.
+ */
 class ReadSideProcessorHeartbeatSingletonActor extends AbstractLoggingActor {
     private final ActorRef shardRegion;
+    private final Map<String, List<ReadSideProcessorActor.Tag>> tagsByShard = ReadSideProcessorActor.Tag.tagsByShard();
+    private final Map<ReadSideProcessorActor.Tag, Long> lastAcks = new HashMap<>();
+    private final FiniteDuration heartbeatInterval = heartbeatInterval();
+    private final int missedHeartbeats;
     private Cancellable heartbeat;
+    private long round;
 
     public ReadSideProcessorHeartbeatSingletonActor(ActorRef shardRegion) {
         this.shardRegion = shardRegion;
+        missedHeartbeats = context().system().settings().config().getInt("read-side-processor.missed-heartbeats");
     }
 
     @Override
     public Receive createReceive() {
         return receiveBuilder()
                 .match(Heartbeat.class, h -> heartbeat())
+                .match(ReadSideProcessorActor.HeartbeatAck.class, this::heartbeatAck)
                 .build();
     }
 
     private void heartbeat() {
-        log().info("Heartbeat {}", ReadSideProcessorActor.Tag.tags());
-        ReadSideProcessorActor.Tag.tags().forEach(tag -> shardRegion.tell(tag, self()));
+        round++;
+        log().debug("Heartbeat round {}, {} tags in {} shards", round, lastAcks.size(), tagsByShard.size());
+        long timeoutMillis = heartbeatInterval.toMillis() / 2;
+        tagsByShard.forEach((shardId, tags) -> shardRegion.tell(new ReadSideProcessorActor.Heartbeat(shardId, tags, round, timeoutMillis), self()));
+
+        long missedBefore = System.nanoTime() - heartbeatInterval.toNanos() * missedHeartbeats;
+        lastAcks.forEach((tag, lastAck) -> {
+            if (lastAck < missedBefore) {
+                log().warning("No heartbeat ack from {} for {} rounds, sending it its own heartbeat", tag, missedHeartbeats);
+                shardRegion.tell(new ReadSideProcessorActor.Heartbeat(tag.shardId(), Collections.singletonList(tag), round, timeoutMillis), self());
+            }
+        });
     }
 
-    private void scheduleHeartbeat() {
-        FiniteDuration tickInterval = heartbeatInterval();
+    private void heartbeatAck(ReadSideProcessorActor.HeartbeatAck heartbeatAck) {
+        long now = System.nanoTime();
+        heartbeatAck.running.forEach(tag -> lastAcks.put(tag, now));
+        heartbeatAck.started.forEach(tag -> lastAcks.put(tag, now));
+        if (!heartbeatAck.started.isEmpty()) {
+            log().info("Started {}", heartbeatAck.started);
+        }
+    }
 
+    private void scheduleHeartbeat() {
         heartbeat = context().system().scheduler().schedule(
-                tickInterval,
-                tickInterval,
+                FiniteDuration.Zero(),
+                heartbeatInterval,
                 self(),
                 new Heartbeat(),
                 context().dispatcher(),
@@ -50,6 +83,8 @@ class ReadSideProcessorHeartbeatSingletonActor extends AbstractLoggingActor {
     @Override
     public void preStart() {
         log().info("Start");
+        long now = System.nanoTime();
+        ReadSideProcessorActor.Tag.tags().forEach(tag -> lastAcks.put(tag, now));
         scheduleHeartbeat();
     }
 
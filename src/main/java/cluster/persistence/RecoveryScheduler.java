@@ -0,0 +1,208 @@
+package cluster.persistence;
+
+import akka.Done;
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import com.typesafe.config.Config;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-node limit on entity recoveries that are running at the same time.
+ * <p>
+ * When a node is lost every entity of its shards that gets a message starts on the surviving nodes at once,
+ * and each replays its events from the journal. The recovery of an entity waits in {@link #acquire} until
+ * fewer than {@code max-concurrent} recoveries are running and ends with {@link #release}. Waiting entities
+ * that have been sent a command go first, entities started by a query or a relocation follow in arrival
+ * order. A recovery that has waited {@code max-wait} starts regardless of the limit, so no entity waits
+ * into the recovery timeout of akka-persistence.
+ * <p>
+ * Entities acquire when their snapshot is loaded, the first step of a recovery, see {@link WarmStateSnapshotStore}.
+ * akka-persistence's own permits ({@code akka.persistence.max-concurrent-recoveries}) are granted in arrival order
+ * before that, so they are set high enough to leave the ordering to this scheduler. When disabled every
+ * recovery starts at once.
+ */
+class RecoveryScheduler implements Extension {
+    static final Id id = new Id();
+
+    private final boolean enabled;
+    private final int maxConcurrent;
+    private final long maxWaitNanos;
+    private final Map<String, Recovery> recoveries = new HashMap<>();
+    private final Deque<Recovery> commandsWaiting = new ArrayDeque<>();
+    private final Deque<Recovery> othersWaiting = new ArrayDeque<>();
+    private int running;
+    private long started;
+    private long startedFirst;
+    private long overdue;
+    private int peakWaiting;
+    private long longestWaitNanos;
+
+    private RecoveryScheduler(ExtendedActorSystem actorSystem) {
+        Config config = actorSystem.settings().config().getConfig("entity-recovery");
+        enabled = config.getBoolean("enabled");
+        maxConcurrent = config.getInt("max-concurrent");
+        maxWaitNanos = config.getDuration("max-wait").toNanos();
+
+        if (enabled) {
+            FiniteDuration tick = FiniteDuration.create(1, TimeUnit.SECONDS);
+            actorSystem.scheduler().schedule(tick, tick, () -> start(overdue()), actorSystem.dispatcher());
+        }
+    }
+
+    static RecoveryScheduler get(ActorSystem actorSystem) {
+        return id.get(actorSystem);
+    }
+
+    boolean enabled() {
+        return enabled;
+    }
+
+    /**
+     * Completes when the recovery of the entity may start.
+     */
+    CompletionStage<Done> acquire(String persistenceId) {
+        if (!enabled) {
+            return CompletableFuture.completedFuture(Done.getInstance());
+        }
+        List<Recovery> startNow;
+        Recovery recovery;
+        synchronized (this) {
+            recovery = recoveries.computeIfAbsent(persistenceId, Recovery::new);
+            recovery.requested = System.nanoTime();
+            (recovery.commandPending ? commandsWaiting : othersWaiting).add(recovery);
+            recovery.waiting = true;
+            peakWaiting = Math.max(peakWaiting, commandsWaiting.size() + othersWaiting.size());
+            startNow = next();
+        }
+        start(startNow);
+        return recovery.permit;
+    }
+
+    /**
+     * A command has arrived for an entity that is still recovering, it goes ahead of the entities without one.
+     */
+    void commandPending(String persistenceId) {
+        if (!enabled) {
+            return;
+        }
+        synchronized (this) {
+            Recovery recovery = recoveries.computeIfAbsent(persistenceId, Recovery::new);
+            if (!recovery.commandPending) {
+                recovery.commandPending = true;
+                if (recovery.waiting && othersWaiting.remove(recovery)) {
+                    commandsWaiting.add(recovery);
+                }
+            }
+        }
+    }
+
+    /**
+     * The entity's recovery has completed or the entity has stopped, a recovery still waiting is let go.
+     */
+    void release(String persistenceId) {
+        if (!enabled) {
+            return;
+        }
+        List<Recovery> startNow = new ArrayList<>();
+        synchronized (this) {
+            Recovery recovery = recoveries.remove(persistenceId);
+            if (recovery == null) {
+                return;
+            }
+            if (recovery.waiting) {
+                commandsWaiting.remove(recovery);
+                othersWaiting.remove(recovery);
+                recovery.waiting = false;
+                startNow.add(recovery);
+            } else if (recovery.running) {
+                running--;
+            }
+            startNow.addAll(next());
+        }
+        start(startNow);
+    }
+
+    /**
+     * Recoveries running and waiting, recoveries started, recoveries started over the limit after waiting
+     * {@code max-wait}, the peak number waiting and the longest wait in milliseconds.
+     */
+    synchronized Map<String, Long> stats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("running", (long) running);
+        stats.put("waiting", (long) (commandsWaiting.size() + othersWaiting.size()));
+        stats.put("started", started);
+        stats.put("startedWithCommandFirst", startedFirst);
+        stats.put("overdue", overdue);
+        stats.put("peakWaiting", (long) peakWaiting);
+        stats.put("longestWaitMillis", TimeUnit.NANOSECONDS.toMillis(longestWaitNanos));
+        return stats;
+    }
+
+    private List<Recovery> next() {
+        List<Recovery> next = new ArrayList<>();
+        while (running < maxConcurrent && !(commandsWaiting.isEmpty() && othersWaiting.isEmpty())) {
+            if (!commandsWaiting.isEmpty()) {
+                startedFirst++;
+                next.add(running(commandsWaiting.poll()));
+            } else {
+                next.add(running(othersWaiting.poll()));
+            }
+        }
+        return next;
+    }
+
+    private synchronized List<Recovery> overdue() {
+        List<Recovery> overdue = new ArrayList<>();
+        long now = System.nanoTime();
+        for (Deque<Recovery> waiting : Arrays.asList(commandsWaiting, othersWaiting)) {
+            while (!waiting.isEmpty() && now - waiting.peek().requested > maxWaitNanos) {
+                this.overdue++;
+                overdue.add(running(waiting.poll()));
+            }
+        }
+        return overdue;
+    }
+
+    private Recovery running(Recovery recovery) {
+        recovery.waiting = false;
+        recovery.running = true;
+        running++;
+        started++;
+        longestWaitNanos = Math.max(longestWaitNanos, System.nanoTime() - recovery.requested);
+        return recovery;
+    }
+
+    /**
+     * Complete the permits outside the lock, the snapshot load continues on the completing thread.
+     */
+    private static void start(List<Recovery> recoveries) {
+        recoveries.forEach(recovery -> recovery.permit.complete(Done.getInstance()));
+    }
+
+    private static class Recovery {
+        final String persistenceId;
+        final CompletableFuture<Done> permit = new CompletableFuture<>();
+        long requested;
+        boolean commandPending;
+        boolean waiting;
+        boolean running;
+
+        Recovery(String persistenceId) {
+            this.persistenceId = persistenceId;
+        }
+    }
+
+    static class Id extends AbstractExtensionId<RecoveryScheduler> {
+        @Override
+        public RecoveryScheduler createExtension(ExtendedActorSystem system) {
+            return new RecoveryScheduler(system);
+        }
+    }
+}
@@ -1,18 +1,18 @@
 package cluster.persistence;
 
-import akka.Done;
 import akka.actor.*;
 import akka.cluster.sharding.ClusterSharding;
 import akka.cluster.sharding.ClusterShardingSettings;
 import akka.cluster.singleton.ClusterSingletonManager;
 import akka.cluster.singleton.ClusterSingletonManagerSettings;
+import akka.cluster.singleton.ClusterSingletonProxy;
+import akka.cluster.singleton.ClusterSingletonProxySettings;
 import akka.management.javadsl.AkkaManagement;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 
 import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.CompletableFuture;
 
 public class Runner {
     public static void main(String[] args) {
@@ -26,27 +26,79 @@ public class Runner {
     private static void startupClusterNodes(List<String> ports) {
         System.out.printf("Start cluster on port(s) %s%n", ports);
 
-        ports.forEach(port -> {
-            ActorSystem actorSystem = ActorSystem.create("persistence", setupClusterNodeConfig(port));
+        for (int node = 0; node < ports.size(); node++) {
+            Config config = setupClusterNodeConfig(ports.get(node));
+            if (ports.size() > 1) {
+                // nodes in one JVM share the host, each takes the next ingest port
+                config = ConfigFactory.parseString(String.format("entity-ingest.port=%d", config.getInt("entity-ingest.port") + node))
+                        .withFallback(config);
+            }
+            ActorSystem actorSystem = ActorSystem.create("persistence", config);
 
             AkkaManagement.get(actorSystem).start();
+            GracefulShutdown.get(actorSystem);
 
-            actorSystem.actorOf(ClusterListenerActor.props(), "clusterListener");
+            actorSystem.actorOf(ClusterMetricsCollectorActor.props(), "clusterMetricsCollector");
 
             startupWriteSide(actorSystem);
             startupReadSide(actorSystem);
 
-            addCoordinatedShutdownTask(actorSystem, CoordinatedShutdown.PhaseClusterShutdown());
-
             actorSystem.log().info("Akka node {}", actorSystem.provider().getDefaultAddress());
-        });
+        }
     }
 
     private static void startupWriteSide(ActorSystem actorSystem) {
+        WriteSide writeSide = setupWriteSide(actorSystem);
+
+        actorSystem.actorOf(EntityCommandActor.props(writeSide.commandTarget), "entityCommand");
+        if (actorSystem.settings().config().getBoolean("entity-ingest.enabled")) {
+            actorSystem.actorOf(EntityIngestActor.props(writeSide.commandTarget), "entityIngest");
+        }
+        actorSystem.actorOf(PriorityLaneMailbox.props(actorSystem, EntityQueryActor.props(writeSide.queryTarget), "query-dispatcher"), "entityQuery");
+        actorSystem.actorOf(PriorityLaneMailbox.props(actorSystem, EntityBulkQueryActor.props(writeSide.shardRegion), "query-dispatcher"), "entityBulkQuery");
+    }
+
+    /**
+     * Start the entity shard region, the command batcher and near cache in front of it when they are enabled,
+     * and the entity singletons. The node and the performance harness send their commands and queries to the
+     * returned targets.
+     */
+    static WriteSide setupWriteSide(ActorSystem actorSystem) {
         ActorRef shardingRegion = setupWriteSideClusterSharding(actorSystem);
 
-        actorSystem.actorOf(EntityCommandActor.props(shardingRegion), "entityCommand");
-        actorSystem.actorOf(EntityQueryActor.props(shardingRegion), "entityQuery");
+        ActorRef commandTarget = actorSystem.settings().config().getBoolean("entity-command-batch.enabled")
+                ? actorSystem.actorOf(PriorityLaneMailbox.props(actorSystem, EntityCommandBatcherActor.props(shardingRegion)), "entityCommandBatcher")
+                : shardingRegion;
+        ActorRef queryTarget = actorSystem.settings().config().getBoolean("entity-near-cache.enabled")
+                ? actorSystem.actorOf(PriorityLaneMailbox.props(actorSystem, EntityNearCacheActor.props(shardingRegion), "query-dispatcher"), "entityNearCache")
+                : shardingRegion;
+        startupHotShardDetector(actorSystem, shardingRegion);
+        startupEntityShardLayout(actorSystem, shardingRegion);
+        return new WriteSide(shardingRegion, commandTarget, queryTarget);
+    }
+
+    private static void startupEntityShardLayout(ActorSystem actorSystem, ActorRef shardingRegion) {
+        actorSystem.actorOf(ClusterSingletonManager.props(
+                EntityShardLayoutActor.props(shardingRegion),
+                PoisonPill.getInstance(),
+                ClusterSingletonManagerSettings.create(actorSystem)
+        ), "entityShardLayout");
+    }
+
+    private static void startupHotShardDetector(ActorSystem actorSystem, ActorRef shardingRegion) {
+        if (!actorSystem.settings().config().getBoolean("hot-shards.enabled")) {
+            return;
+        }
+        actorSystem.actorOf(ClusterSingletonManager.props(
+                HotShardDetectorActor.props(shardingRegion),
+                PoisonPill.getInstance(),
+                ClusterSingletonManagerSettings.create(actorSystem)
+        ), "hotShardDetector");
+        ActorRef hotShardDetector = actorSystem.actorOf(ClusterSingletonProxy.props(
+                "/user/hotShardDetector",
+                ClusterSingletonProxySettings.create(actorSystem)
+        ), "hotShardDetectorProxy");
+        actorSystem.actorOf(ShardLoadReporterActor.props(hotShardDetector), "shardLoadReporter");
     }
 
     private static void startupReadSide(ActorSystem actorSystem) {
@@ -54,36 +106,47 @@ public class Runner {
     }
 
     private static Config setupClusterNodeConfig(String port) {
+        return setupClusterNodeConfig(port, ConfigFactory.load());
+    }
+
+    static Config setupClusterNodeConfig(String port, Config config) {
         return ConfigFactory.parseString(
                 String.format("akka.remote.netty.tcp.port=%s%n", port) +
                         String.format("akka.remote.artery.canonical.port=%s%n", port))
-                .withFallback(ConfigFactory.load());
+                .withFallback(config);
     }
 
-    private static ActorRef setupWriteSideClusterSharding(ActorSystem actorSystem) {
+    static ActorRef setupWriteSideClusterSharding(ActorSystem actorSystem) {
         ClusterShardingSettings settings = ClusterShardingSettings.create(actorSystem);
         return ClusterSharding.get(actorSystem).start(
                 "entity",
-                EntityPersistenceActor.props(),
+                PriorityLaneMailbox.props(actorSystem, EntityPersistenceActor.props(), "entity-dispatcher"),
                 settings,
-                EntityMessage.messageExtractor()
+                EntityMessage.messageExtractor(EntityRouting.get(actorSystem)),
+                ClusterSharding.get(actorSystem).defaultShardAllocationStrategy(settings),
+                EntityMessage.HandOff.instance
         );
     }
 
     private static ActorRef setupReadSideClusterSharding(ActorSystem actorSystem) {
-        ClusterShardingSettings settings = ClusterShardingSettings.create(actorSystem);
+        ClusterShardingSettings settings = ClusterShardingSettings.create(actorSystem).withRememberEntities(true);
+        ReadSidePlacement readSidePlacement = ReadSidePlacement.get(actorSystem);
         return ClusterSharding.get(actorSystem).start(
                 "readSideProcessor",
-                ReadSideProcessorActor.props(),
+                PriorityLaneMailbox.props(actorSystem, ReadSideProcessorActor.props(), "read-side-dispatcher"),
                 settings,
-                ReadSideProcessorActor.messageExtractor()
+                ReadSideProcessorActor.messageExtractor(),
+                readSidePlacement.enabled()
+                        ? readSidePlacement.allocationStrategy()
+                        : ClusterSharding.get(actorSystem).defaultShardAllocationStrategy(settings),
+                ReadSideProcessorActor.HandOff.instance
         );
     }
 
     private static void createReadSideClusterSingletonManagerActor(ActorSystem actorSystem) {
         ClusterSingletonManagerSettings settings = ClusterSingletonManagerSettings.create(actorSystem);
         Props clusterSingletonManagerProps = ClusterSingletonManager.props(
-                ReadSideProcessorHeartbeatSingletonActor.props(setupReadSideClusterSharding(actorSystem)),
+                PriorityLaneMailbox.props(actorSystem, ReadSideProcessorHeartbeatSingletonActor.props(setupReadSideClusterSharding(actorSystem)), "read-side-dispatcher"),
                 PoisonPill.getInstance(),
                 settings
         );
@@ -91,13 +154,15 @@ public class Runner {
         actorSystem.actorOf(clusterSingletonManagerProps, "clusterSingletonManager");
     }
 
-    private static void addCoordinatedShutdownTask(ActorSystem actorSystem, String coordindateShutdownPhase) {
-        CoordinatedShutdown.get(actorSystem).addTask(
-                coordindateShutdownPhase,
-                coordindateShutdownPhase,
-                () -> {
-                    actorSystem.log().warning("Coordinated shutdown phase {}", coordindateShutdownPhase);
-                    return CompletableFuture.completedFuture(Done.getInstance());
-                });
+    static class WriteSide {
+        final ActorRef shardRegion;
+        final ActorRef commandTarget;
+        final ActorRef queryTarget;
+
+        private WriteSide(ActorRef shardRegion, ActorRef commandTarget, ActorRef queryTarget) {
+            this.shardRegion = shardRegion;
+            this.commandTarget = commandTarget;
+            this.queryTarget = queryTarget;
+        }
     }
 }
@@ -0,0 +1,132 @@
+package cluster.persistence;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persist latency, recovery time and events replayed per recovery of the entities of one shard on this node.
+ * <p>
+ * Entities record into HdrHistogram recorders, which do not lock or allocate on the write path. Reads move
+ * what was recorded since the last read into histograms that cover the time since the shard first started on
+ * this node. Latencies are recorded in microseconds.
+ */
+class ShardLatency implements ShardLatencyMBean {
+    final String shardId;
+    private final Metric persist;
+    private final Metric recovery;
+    private final Metric replayed;
+
+    ShardLatency(String shardId, int significantDigits) {
+        this.shardId = shardId;
+        persist = new Metric(significantDigits);
+        recovery = new Metric(significantDigits);
+        replayed = new Metric(significantDigits);
+    }
+
+    void persisted(long nanos) {
+        persist.recorder.recordValue(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    void recovered(long nanos, long replayedEvents) {
+        recovery.recorder.recordValue(TimeUnit.NANOSECONDS.toMicros(nanos));
+        replayed.recorder.recordValue(replayedEvents);
+    }
+
+    Histogram persist() {
+        return persist.histogram();
+    }
+
+    Histogram recovery() {
+        return recovery.histogram();
+    }
+
+    Histogram replayed() {
+        return replayed.histogram();
+    }
+
+    @Override
+    public long getPersistCount() {
+        return persist().getTotalCount();
+    }
+
+    @Override
+    public double getPersistP50Millis() {
+        return millis(persist().getValueAtPercentile(50));
+    }
+
+    @Override
+    public double getPersistP99Millis() {
+        return millis(persist().getValueAtPercentile(99));
+    }
+
+    @Override
+    public double getPersistP999Millis() {
+        return millis(persist().getValueAtPercentile(99.9));
+    }
+
+    @Override
+    public double getPersistMaxMillis() {
+        return millis(persist().getMaxValue());
+    }
+
+    @Override
+    public long getRecoveryCount() {
+        return recovery().getTotalCount();
+    }
+
+    @Override
+    public double getRecoveryP50Millis() {
+        return millis(recovery().getValueAtPercentile(50));
+    }
+
+    @Override
+    public double getRecoveryP99Millis() {
+        return millis(recovery().getValueAtPercentile(99));
+    }
+
+    @Override
+    public double getRecoveryMaxMillis() {
+        return millis(recovery().getMaxValue());
+    }
+
+    @Override
+    public long getReplayedEventsP50() {
+        return replayed().getValueAtPercentile(50);
+    }
+
+    @Override
+    public long getReplayedEventsP99() {
+        return replayed().getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getReplayedEventsMax() {
+        return replayed().getMaxValue();
+    }
+
+    static double millis(long micros) {
+        return micros / 1000.0;
+    }
+
+    private static class Metric {
+        final Recorder recorder;
+        private final Histogram total;
+        private Histogram interval;
+
+        Metric(int significantDigits) {
+            recorder = new Recorder(significantDigits);
+            total = new Histogram(significantDigits);
+        }
+
+        /**
+         * A copy of everything recorded so far.
+         */
+        synchronized Histogram histogram() {
+            interval = recorder.getIntervalHistogram(interval);
+            total.add(interval);
+            return total.copy();
+        }
+    }
+}
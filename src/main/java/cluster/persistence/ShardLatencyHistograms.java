@@ -0,0 +1,80 @@
+package cluster.persistence;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import com.typesafe.config.Config;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The {@link ShardLatency} histograms of the entity shards that have run on this node.
+ * <p>
+ * Each shard's histograms are published as the JMX MBean
+ * {@code cluster.persistence:type=ShardLatency,address=<node address>,shard=<shard id>} and all of them are
+ * served as JSON by {@link ShardLatencyRoutes}. When disabled nothing is recorded and {@link #shard} is null.
+ */
+class ShardLatencyHistograms implements Extension {
+    static final Id id = new Id();
+
+    private final ExtendedActorSystem actorSystem;
+    private final boolean enabled;
+    private final int significantDigits;
+    private final Map<String, ShardLatency> shards = new ConcurrentHashMap<>();
+
+    private ShardLatencyHistograms(ExtendedActorSystem actorSystem) {
+        this.actorSystem = actorSystem;
+        Config config = actorSystem.settings().config().getConfig("shard-latency");
+        enabled = config.getBoolean("enabled");
+        significantDigits = config.getInt("significant-digits");
+    }
+
+    static ShardLatencyHistograms get(ActorSystem actorSystem) {
+        return id.get(actorSystem);
+    }
+
+    ShardLatency shard(String shardId) {
+        return enabled ? shards.computeIfAbsent(shardId, this::register) : null;
+    }
+
+    /**
+     * The shards by shard id.
+     */
+    Map<String, ShardLatency> shards() {
+        return new TreeMap<>(shards);
+    }
+
+    private ShardLatency register(String shardId) {
+        ShardLatency shardLatency = new ShardLatency(shardId, significantDigits);
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(String.format("cluster.persistence:type=ShardLatency,address=%s,shard=%s",
+                    ObjectName.quote(actorSystem.provider().getDefaultAddress().toString()), ObjectName.quote(shardId)));
+            server.registerMBean(shardLatency, name);
+            actorSystem.registerOnTermination(() -> {
+                try {
+                    server.unregisterMBean(name);
+                } catch (JMException e) {
+                    actorSystem.log().warning("Unregister {} failed, {}", name, e.getMessage());
+                }
+            });
+        } catch (JMException e) {
+            actorSystem.log().warning("Register shard {} latency MBean failed, {}", shardId, e.getMessage());
+        }
+        return shardLatency;
+    }
+
+    static class Id extends AbstractExtensionId<ShardLatencyHistograms> {
+        @Override
+        public ShardLatencyHistograms createExtension(ExtendedActorSystem system) {
+            return new ShardLatencyHistograms(system);
+        }
+    }
+}
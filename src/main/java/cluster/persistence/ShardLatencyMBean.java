@@ -0,0 +1,30 @@
+package cluster.persistence;
+
+/**
+ * JMX view of the {@link ShardLatency} histograms of one entity shard on a node. Latencies are in milliseconds.
+ */
+public interface ShardLatencyMBean {
+    long getPersistCount();
+
+    double getPersistP50Millis();
+
+    double getPersistP99Millis();
+
+    double getPersistP999Millis();
+
+    double getPersistMaxMillis();
+
+    long getRecoveryCount();
+
+    double getRecoveryP50Millis();
+
+    double getRecoveryP99Millis();
+
+    double getRecoveryMaxMillis();
+
+    long getReplayedEventsP50();
+
+    long getReplayedEventsP99();
+
+    long getReplayedEventsMax();
+}
@@ -0,0 +1,80 @@
+package cluster.persistence;
+
+import akka.actor.ExtendedActorSystem;
+import akka.http.javadsl.model.ContentTypes;
+import akka.http.javadsl.model.HttpEntities;
+import akka.http.javadsl.server.Route;
+import akka.management.javadsl.ManagementRouteProvider;
+import akka.management.javadsl.ManagementRouteProviderSettings;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.LongFunction;
+
+import static akka.http.javadsl.server.Directives.*;
+
+/**
+ * Adds {@code GET /shard-latency} to the akka-management HTTP endpoint, the {@link ShardLatency} histograms of
+ * this node's entity shards as JSON with the count and percentiles of each.
+ * <p>
+ * Registered in {@code akka.management.http.routes}, which is why the class is public.
+ */
+public class ShardLatencyRoutes implements ManagementRouteProvider {
+    private static final JsonFactory jsonFactory = new JsonFactory();
+    private static final double[] percentiles = {50, 90, 99, 99.9};
+    private static final String[] percentileNames = {"p50", "p90", "p99", "p999"};
+
+    private final ExtendedActorSystem actorSystem;
+
+    public ShardLatencyRoutes(ExtendedActorSystem actorSystem) {
+        this.actorSystem = actorSystem;
+    }
+
+    @Override
+    public Route routes(ManagementRouteProviderSettings settings) {
+        return path("shard-latency", () ->
+                get(() ->
+                        extractExecutionContext(executor ->
+                                onSuccess(CompletableFuture.supplyAsync(this::json, executor), json ->
+                                        complete(HttpEntities.create(ContentTypes.APPLICATION_JSON, json))))));
+    }
+
+    private String json() {
+        StringWriter json = new StringWriter();
+        try (JsonGenerator generator = jsonFactory.createGenerator(json)) {
+            generator.writeStartObject();
+            generator.writeStringField("node", actorSystem.provider().getDefaultAddress().toString());
+            generator.writeArrayFieldStart("shards");
+            for (ShardLatency shardLatency : ShardLatencyHistograms.get(actorSystem).shards().values()) {
+                generator.writeStartObject();
+                generator.writeStringField("shard", shardLatency.shardId);
+                writeHistogram(generator, "persistMillis", shardLatency.persist(), ShardLatency::millis);
+                writeHistogram(generator, "recoveryMillis", shardLatency.recovery(), ShardLatency::millis);
+                writeHistogram(generator, "replayedEvents", shardLatency.replayed(), value -> value);
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return json.toString();
+    }
+
+    private static void writeHistogram(JsonGenerator generator, String name, Histogram histogram, LongFunction<Number> unit) throws IOException {
+        generator.writeObjectFieldStart(name);
+        generator.writeNumberField("count", histogram.getTotalCount());
+        if (histogram.getTotalCount() > 0) {
+            for (int i = 0; i < percentiles.length; i++) {
+                generator.writeObjectField(percentileNames[i], unit.apply(histogram.getValueAtPercentile(percentiles[i])));
+            }
+            generator.writeObjectField("max", unit.apply(histogram.getMaxValue()));
+        }
+        generator.writeEndObject();
+    }
+}
@@ -0,0 +1,119 @@
+package cluster.persistence;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import com.typesafe.config.Config;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Counts the commands and queries handled by this node's entities, per shard and per entity.
+ * <p>
+ * The counts are taken and reset by {@link #report}, which turns them into rates. Per entity only the
+ * busiest few of each shard are reported. The reports are only taken with {@code hot-shards.enabled} on, so
+ * without it nothing is counted for them.
+ * <p>
+ * With {@code entity-prewarm.enabled} on the entity counts are also kept over a rolling window of one to two
+ * {@code entity-prewarm.frequency-window}, independent of the reports. When a shard is handed off its
+ * busiest entities are taken by {@link #handOff} and the node the shard moves to recovers them ahead of traffic.
+ */
+class ShardLoadMeter implements Extension {
+    static final Id id = new Id();
+
+    private volatile Map<String, Map<String, LongAdder>> counts = new ConcurrentHashMap<>();
+    private volatile Map<String, Map<String, LongAdder>> recent = new ConcurrentHashMap<>();
+    private volatile Map<String, Map<String, LongAdder>> earlier = new ConcurrentHashMap<>();
+    private final boolean loads;
+    private final boolean frequencies;
+    private long since = System.nanoTime();
+
+    private ShardLoadMeter(ExtendedActorSystem actorSystem) {
+        loads = actorSystem.settings().config().getBoolean("hot-shards.enabled");
+        Config config = actorSystem.settings().config().getConfig("entity-prewarm");
+        frequencies = config.getBoolean("enabled");
+
+        if (frequencies) {
+            FiniteDuration window = FiniteDuration.create(config.getDuration("frequency-window").toMillis(), TimeUnit.MILLISECONDS);
+            actorSystem.scheduler().schedule(window, window, this::rotate, actorSystem.dispatcher());
+        }
+    }
+
+    static ShardLoadMeter get(ActorSystem actorSystem) {
+        return id.get(actorSystem);
+    }
+
+    void record(String shardId, String entityId) {
+        if (loads) {
+            counts.computeIfAbsent(shardId, s -> new ConcurrentHashMap<>())
+                    .computeIfAbsent(entityId, e -> new LongAdder())
+                    .increment();
+        }
+        if (frequencies) {
+            recent.computeIfAbsent(shardId, s -> new ConcurrentHashMap<>())
+                    .computeIfAbsent(entityId, e -> new LongAdder())
+                    .increment();
+        }
+    }
+
+    /**
+     * The busiest entities of a shard over the rolling window, busiest first. The shard's counts are removed,
+     * so a shard handed off is taken once however many of its entities are stopped.
+     */
+    synchronized List<String> handOff(String shardId, int topEntities) {
+        Map<String, Long> entities = new HashMap<>();
+        for (Map<String, LongAdder> shard : Arrays.asList(recent.remove(shardId), earlier.remove(shardId))) {
+            if (shard != null) {
+                shard.forEach((entityId, count) -> entities.merge(entityId, count.sum(), Long::sum));
+            }
+        }
+        return entities.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .limit(topEntities)
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+    }
+
+    private synchronized void rotate() {
+        earlier = recent;
+        recent = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Rates since the last report, messages per second per shard and for the top entities of each shard.
+     */
+    synchronized HotShardDetectorActor.ShardLoadReport report(String node, int topEntities) {
+        Map<String, Map<String, LongAdder>> taken = counts;
+        counts = new ConcurrentHashMap<>();
+        long now = System.nanoTime();
+        double seconds = Math.max(1, now - since) / 1e9;
+        since = now;
+
+        Map<String, Double> shardRates = new HashMap<>();
+        Map<String, Map<String, Double>> entityRates = new HashMap<>();
+        taken.forEach((shardId, entities) -> {
+            long shardCount = entities.values().stream().mapToLong(LongAdder::sum).sum();
+            shardRates.put(shardId, shardCount / seconds);
+            Map<String, Double> top = new LinkedHashMap<>();
+            entities.entrySet().stream()
+                    .sorted(Comparator.comparingLong((Map.Entry<String, LongAdder> e) -> e.getValue().sum()).reversed())
+                    .limit(topEntities)
+                    .forEach(e -> top.put(e.getKey(), e.getValue().sum() / seconds));
+            entityRates.put(shardId, top);
+        });
+        return new HotShardDetectorActor.ShardLoadReport(node, shardRates, entityRates);
+    }
+
+    static class Id extends AbstractExtensionId<ShardLoadMeter> {
+        @Override
+        public ShardLoadMeter createExtension(ExtendedActorSystem system) {
+            return new ShardLoadMeter(system);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package cluster.persistence;
+
+import akka.actor.AbstractLoggingActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import akka.cluster.Cluster;
+import com.typesafe.config.Config;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends this node's {@link ShardLoadMeter} rates to the hot shard detector every {@code hot-shards.report-interval}.
+ */
+class ShardLoadReporterActor extends AbstractLoggingActor {
+    private final ActorRef hotShardDetector;
+    private final int topEntities;
+    private final FiniteDuration reportInterval;
+    private Cancellable report;
+
+    ShardLoadReporterActor(ActorRef hotShardDetector) {
+        this.hotShardDetector = hotShardDetector;
+        Config config = context().system().settings().config().getConfig("hot-shards");
+        topEntities = config.getInt("top-entities");
+        reportInterval = FiniteDuration.create(config.getDuration("report-interval").toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .matchEquals("report", r -> report())
+                .build();
+    }
+
+    private void report() {
+        String node = Cluster.get(context().system()).selfAddress().toString();
+        hotShardDetector.tell(ShardLoadMeter.get(context().system()).report(node, topEntities), self());
+    }
+
+    @Override
+    public void preStart() {
+        log().info("Start");
+        report = context().system().scheduler().schedule(reportInterval, reportInterval, self(), "report", context().dispatcher(), ActorRef.noSender());
+    }
+
+    @Override
+    public void postStop() {
+        log().info("Stop");
+        report.cancel();
+    }
+
+    static Props props(ActorRef hotShardDetector) {
+        return Props.create(ShardLoadReporterActor.class, hotShardDetector);
+    }
+}
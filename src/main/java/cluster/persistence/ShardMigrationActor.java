@@ -0,0 +1,109 @@
+package cluster.persistence;
+
+import akka.actor.AbstractLoggingActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import akka.cluster.sharding.ClusterSharding;
+import akka.cluster.sharding.ShardRegion;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves the entities of one shard to a new shard layout for a {@link EntityMessage.MigrateShard}, replies with
+ * {@link EntityMessage.ShardMigrated} when all of them have confirmed, then stops.
+ * <p>
+ * The entities of the shard are pending from the table version of the migration. Once this node has that
+ * table no entity of the shard starts writing, so the entities running at that point are sent a
+ * {@link EntityMessage.Relocate} and the shard has migrated when each has confirmed it has no writes in flight.
+ * Entities already isolated on a shard of their own are left alone. Without all confirmations before the
+ * timeout nothing is replied and the migration is retried.
+ */
+class ShardMigrationActor extends AbstractLoggingActor {
+    private final ActorRef shard;
+    private final EntityMessage.MigrateShard migrateShard;
+    private final ActorRef replyTo;
+    private final EntityRouting entityRouting = EntityRouting.get(context().system());
+    private final Set<String> unconfirmed = new HashSet<>();
+    private int entities;
+    private Cancellable deadline;
+
+    ShardMigrationActor(ActorRef shard, EntityMessage.MigrateShard migrateShard, ActorRef replyTo) {
+        this.shard = shard;
+        this.migrateShard = migrateShard;
+        this.replyTo = replyTo;
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(EntityRouting.Changed.class, changed -> awaitTable())
+                .match(ShardRegion.CurrentShardRegionState.class, this::shardRegionState)
+                .match(EntityMessage.Relocated.class, this::relocated)
+                .matchEquals("deadline", d -> {
+                    log().warning("{} timed out with {} of {} entities unconfirmed", migrateShard, unconfirmed.size(), entities);
+                    context().stop(self());
+                })
+                .build();
+    }
+
+    private void awaitTable() {
+        if (entityRouting.table().version >= migrateShard.version) {
+            entityRouting.unsubscribe(self());
+            ClusterSharding.get(context().system()).shardRegion("entity").tell(ShardRegion.getShardRegionStateInstance(), self());
+        }
+    }
+
+    private void shardRegionState(ShardRegion.CurrentShardRegionState currentShardRegionState) {
+        EntityRouting.Table table = entityRouting.table();
+        currentShardRegionState.getShards().stream()
+                .filter(shardState -> shardState.shardId().equals(migrateShard.shardId))
+                .flatMap(shardState -> shardState.getEntityIds().stream())
+                .filter(entityId -> !EntityMessage.isShardAgentEntityId(entityId))
+                .map(Entity.Id::new)
+                .filter(table::pending)
+                .forEach(id -> {
+                    unconfirmed.add(id.id);
+                    shard.tell(new EntityMessage.Relocate(id, migrateShard.version), self());
+                });
+        entities = unconfirmed.size();
+        replyIfConfirmed();
+    }
+
+    private void relocated(EntityMessage.Relocated relocated) {
+        unconfirmed.remove(relocated.id.id);
+        replyIfConfirmed();
+    }
+
+    private void replyIfConfirmed() {
+        if (unconfirmed.isEmpty()) {
+            replyTo.tell(new EntityMessage.ShardMigrated(migrateShard.shardId, entities), self());
+            context().stop(self());
+        }
+    }
+
+    @Override
+    public void preStart() {
+        deadline = context().system().scheduler().scheduleOnce(
+                FiniteDuration.create(migrateShard.timeoutMillis, TimeUnit.MILLISECONDS),
+                self(),
+                "deadline",
+                context().dispatcher(),
+                ActorRef.noSender()
+        );
+        entityRouting.subscribe(self());
+        awaitTable();
+    }
+
+    @Override
+    public void postStop() {
+        entityRouting.unsubscribe(self());
+        deadline.cancel();
+    }
+
+    static Props props(ActorRef shard, EntityMessage.MigrateShard migrateShard, ActorRef replyTo) {
+        return Props.create(ShardMigrationActor.class, shard, migrateShard, replyTo);
+    }
+}
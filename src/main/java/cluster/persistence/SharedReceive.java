@@ -0,0 +1,115 @@
+package cluster.persistence;
+
+import akka.actor.AbstractActor;
+import scala.Function1;
+import scala.runtime.AbstractPartialFunction;
+import scala.runtime.BoxedUnit;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * A receive that is built once per actor class and shared by all of its instances.
+ * <p>
+ * A receive from a ReceiveBuilder is a chain of partial functions around lambdas that capture the actor, so
+ * each instance holds its own copy, close to 100 bytes per case. That is most of the heap of an entity that is
+ * otherwise idle. The cases here take the actor as their first parameter instead, and an instance only holds a
+ * small function that points at the shared cases and at itself. Cases are tried in the order they were added,
+ * as with ReceiveBuilder.
+ */
+final class SharedReceive<A> {
+    private final List<Case<A>> cases;
+
+    private SharedReceive(List<Case<A>> cases) {
+        this.cases = cases;
+    }
+
+    static <A> Builder<A> builder() {
+        return new Builder<>();
+    }
+
+    AbstractActor.Receive receive(A actor) {
+        return new AbstractActor.Receive(new Bound<>(cases, actor));
+    }
+
+    static class Builder<A> {
+        private final List<Case<A>> cases = new ArrayList<>();
+
+        <P> Builder<A> match(Class<P> type, BiConsumer<A, P> apply) {
+            return match(type, (actor, message) -> true, apply);
+        }
+
+        <P> Builder<A> match(Class<P> type, BiPredicate<A, P> predicate, BiConsumer<A, P> apply) {
+            cases.add(new Case<>(
+                    message -> type.isInstance(message),
+                    (actor, message) -> predicate.test(actor, type.cast(message)),
+                    (actor, message) -> apply.accept(actor, type.cast(message))));
+            return this;
+        }
+
+        Builder<A> matchEquals(Object value, Consumer<A> apply) {
+            cases.add(new Case<>(value::equals, (actor, message) -> true, (actor, message) -> apply.accept(actor)));
+            return this;
+        }
+
+        SharedReceive<A> build() {
+            return new SharedReceive<>(new ArrayList<>(cases));
+        }
+    }
+
+    private static class Case<A> {
+        final Predicate<Object> type;
+        final BiPredicate<A, Object> predicate;
+        final BiConsumer<A, Object> apply;
+
+        Case(Predicate<Object> type, BiPredicate<A, Object> predicate, BiConsumer<A, Object> apply) {
+            this.type = type;
+            this.predicate = predicate;
+            this.apply = apply;
+        }
+
+        boolean matches(A actor, Object message) {
+            return type.test(message) && predicate.test(actor, message);
+        }
+    }
+
+    private static class Bound<A> extends AbstractPartialFunction<Object, BoxedUnit> {
+        private final List<Case<A>> cases;
+        private final A actor;
+
+        Bound(List<Case<A>> cases, A actor) {
+            this.cases = cases;
+            this.actor = actor;
+        }
+
+        @Override
+        public boolean isDefinedAt(Object message) {
+            return find(message) != null;
+        }
+
+        @Override
+        public <B extends Object, C> C applyOrElse(B message, Function1<B, C> otherwise) {
+            Case<A> matched = find(message);
+            if (matched == null) {
+                return otherwise.apply(message);
+            }
+            matched.apply.accept(actor, message);
+            @SuppressWarnings("unchecked")
+            C unit = (C) BoxedUnit.UNIT;
+            return unit;
+        }
+
+        private Case<A> find(Object message) {
+            for (Case<A> candidate : cases) {
+                if (candidate.matches(actor, message)) {
+                    return candidate;
+                }
+            }
+            return null;
+        }
+    }
+}
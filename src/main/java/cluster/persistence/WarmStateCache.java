@@ -0,0 +1,214 @@
+package cluster.persistence;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.serialization.Serialization;
+import akka.serialization.SerializationExtension;
+import akka.serialization.Serializer;
+import akka.serialization.Serializers;
+import com.typesafe.config.Config;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Per-node cache of entity state taken at passivation, so a reactivated entity can skip most of its replay.
+ * <p>
+ * Serialized states are appended to one direct ByteBuffer used as a ring. When the ring is full the oldest
+ * entries are overwritten, which bounds the cache by bytes rather than by entry count. Only a
+ * persistenceId to ring position map is kept on the heap.
+ * <p>
+ * A cached state is not durable, so each entry also records the sequence number of the entity's last durable
+ * snapshot. The snapshot store offers a cached state as a {@link Cached} so the entity can tell it apart from a
+ * durable snapshot.
+ */
+class WarmStateCache implements Extension {
+    static final Id id = new Id();
+
+    private static final int wrapMarker = -1;
+    private static final int headerBytes = 4 + 8 + 8 + 8 + 4 + 2 + 2;
+
+    private final boolean enabled;
+    private final ByteBuffer ring;
+    private final long capacity;
+    private final Map<String, Long> index = new HashMap<>();
+    private final Serialization serialization;
+    private long head;
+    private long tail;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    private WarmStateCache(ExtendedActorSystem system) {
+        Config config = system.settings().config().getConfig("warm-state-cache");
+        enabled = config.getBoolean("enabled");
+        capacity = enabled ? Math.min(Integer.MAX_VALUE, config.getBytes("capacity")) : 0;
+        ring = ByteBuffer.allocateDirect((int) capacity);
+        serialization = SerializationExtension.get(system);
+    }
+
+    static WarmStateCache get(ActorSystem system) {
+        return id.get(system);
+    }
+
+    boolean enabled() {
+        return enabled;
+    }
+
+    /**
+     * Cache the state of an entity as of the given sequence number, replacing any earlier entry. The
+     * durable sequence number is that of the entity's last snapshot saved to the snapshot store.
+     */
+    synchronized void put(String persistenceId, long sequenceNr, long durableSequenceNr, Object state) {
+        if (!enabled) {
+            return;
+        }
+        Serializer serializer = serialization.findSerializerFor(state);
+        byte[] manifest = Serializers.manifestFor(serializer, state).getBytes(StandardCharsets.UTF_8);
+        byte[] id = persistenceId.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = serializer.toBinary(state);
+        int size = headerBytes + id.length + manifest.length + payload.length;
+
+        index.remove(persistenceId);
+        if (size > capacity / 4) {
+            return;
+        }
+
+        long start = head % capacity + size > capacity ? nextLap(head) : head;
+        while (tail < start + size - capacity) {
+            if (tail >= head) {
+                tail = start;
+                break;
+            }
+            evictOldest();
+        }
+        if (start != head && capacity - head % capacity >= 4) {
+            ring.putInt((int) (head % capacity), wrapMarker);
+        }
+
+        ByteBuffer record = ring.duplicate();
+        record.position((int) (start % capacity));
+        record.putInt(size)
+                .putLong(sequenceNr)
+                .putLong(durableSequenceNr)
+                .putLong(System.currentTimeMillis())
+                .putInt(serializer.identifier())
+                .putShort((short) id.length)
+                .putShort((short) manifest.length)
+                .put(id)
+                .put(manifest)
+                .put(payload);
+
+        index.put(persistenceId, start);
+        head = start + size;
+    }
+
+    /**
+     * Remove and return the cached state of an entity, if it is still in the ring.
+     */
+    synchronized Optional<Entry> take(String persistenceId) {
+        if (!enabled) {
+            return Optional.empty();
+        }
+        Long position = index.remove(persistenceId);
+        if (position == null) {
+            misses++;
+            return Optional.empty();
+        }
+        hits++;
+
+        ByteBuffer record = ring.duplicate();
+        record.position((int) (position % capacity));
+        int size = record.getInt();
+        long sequenceNr = record.getLong();
+        long durableSequenceNr = record.getLong();
+        long timestamp = record.getLong();
+        int serializerId = record.getInt();
+        short idLength = record.getShort();
+        byte[] manifest = new byte[record.getShort()];
+        record.position(record.position() + idLength);
+        record.get(manifest);
+        ByteBuffer payload = record.slice();
+        payload.limit(size - headerBytes - idLength - manifest.length);
+
+        try {
+            Object state = serialization.deserializeByteBuffer(payload, serializerId, new String(manifest, StandardCharsets.UTF_8));
+            return Optional.of(new Entry(sequenceNr, durableSequenceNr, timestamp, state));
+        } catch (Exception e) {
+            return Optional.empty();
+        }
+    }
+
+    synchronized void invalidate(String persistenceId) {
+        index.remove(persistenceId);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s[entries %d, used %d of %d bytes, hits %d, misses %d, evictions %d]",
+                getClass().getSimpleName(), index.size(), head - tail, capacity, hits, misses, evictions);
+    }
+
+    private void evictOldest() {
+        int position = (int) (tail % capacity);
+        if (capacity - position < 4 || ring.getInt(position) == wrapMarker) {
+            tail = nextLap(tail);
+            return;
+        }
+
+        int size = ring.getInt(position);
+        byte[] id = new byte[ring.getShort(position + 4 + 8 + 8 + 8 + 4)];
+        ByteBuffer record = ring.duplicate();
+        record.position(position + headerBytes);
+        record.get(id);
+
+        String persistenceId = new String(id, StandardCharsets.UTF_8);
+        if (index.remove(persistenceId, tail)) {
+            evictions++;
+        }
+        tail += size;
+    }
+
+    private long nextLap(long position) {
+        return (position / capacity + 1) * capacity;
+    }
+
+    static class Entry {
+        final long sequenceNr;
+        final long durableSequenceNr;
+        final long timestamp;
+        final Object state;
+
+        private Entry(long sequenceNr, long durableSequenceNr, long timestamp, Object state) {
+            this.sequenceNr = sequenceNr;
+            this.durableSequenceNr = durableSequenceNr;
+            this.timestamp = timestamp;
+            this.state = state;
+        }
+    }
+
+    /**
+     * A cached state as offered to the entity. It is handed over in memory and never serialized.
+     */
+    static class Cached {
+        final long durableSequenceNr;
+        final Object state;
+
+        Cached(long durableSequenceNr, Object state) {
+            this.durableSequenceNr = durableSequenceNr;
+            this.state = state;
+        }
+    }
+
+    static class Id extends AbstractExtensionId<WarmStateCache> {
+        @Override
+        public WarmStateCache createExtension(ExtendedActorSystem system) {
+            return new WarmStateCache(system);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package cluster.persistence;
+
+import akka.actor.ActorRef;
+import akka.dispatch.Futures;
+import akka.dispatch.Mapper;
+import akka.persistence.*;
+import akka.persistence.snapshot.japi.SnapshotStore;
+import akka.util.Timeout;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import scala.PartialFunction;
+import scala.concurrent.ExecutionContext;
+import scala.concurrent.Future;
+import scala.runtime.BoxedUnit;
+
+import java.util.Optional;
+
+import static akka.pattern.Patterns.ask;
+
+/**
+ * Snapshot store plugin that serves entity state from the node's {@link WarmStateCache} and delegates
+ * everything else to the configured durable snapshot store.
+ * <p>
+ * On a cache hit the durable store is only asked for snapshots newer than the cached state, which is
+ * normally an empty result, and recovery then replays just the events written after the cached
+ * sequence number.
+ * <p>
+ * Entities use this store when the cache or the {@link RecoveryScheduler} is enabled, with the cache
+ * disabled it only holds back snapshot loads until the scheduler lets the recovery start.
+ * <p>
+ * A load waits for its recovery permit before it is handed to the plugin's own handling, so the wait is not
+ * part of the call timed by the snapshot store's circuit breaker. Loads queued in a recovery storm therefore
+ * do not count as breaker failures, which would open the breaker for every load and save on the node.
+ */
+public class WarmStateSnapshotStore extends SnapshotStore {
+    private final String delegatePluginId;
+    private final Timeout timeout;
+    private final WarmStateCache cache = WarmStateCache.get(context().system());
+    private final RecoveryScheduler recoveryScheduler = RecoveryScheduler.get(context().system());
+    private ActorRef delegate;
+
+    public WarmStateSnapshotStore(Config config) {
+        delegatePluginId = delegatePluginId(config, context().system().settings().config());
+        timeout = Timeout.create(config.getDuration("ask-timeout"));
+    }
+
+    /**
+     * The durable store behind this one, given the config of this plugin and of the actor system.
+     */
+    static String delegatePluginId(Config config, Config systemConfig) {
+        String delegate = config.getString("delegate");
+        return delegate.isEmpty() ? systemConfig.getString("akka.persistence.snapshot-store.plugin") : delegate;
+    }
+
+    @Override
+    public void preStart() throws Exception {
+        super.preStart();
+        delegate = Persistence.get(context().system()).snapshotStoreFor(delegatePluginId, ConfigFactory.empty());
+    }
+
+    /**
+     * Loading the snapshot is the first step of a recovery, so a load waits for the {@link RecoveryScheduler}
+     * and is then sent back to this store with the original sender, as if it had just arrived.
+     */
+    @Override
+    public void aroundReceive(PartialFunction<Object, BoxedUnit> receive, Object message) {
+        if (message instanceof SnapshotProtocol.LoadSnapshot && recoveryScheduler.enabled()) {
+            SnapshotProtocol.LoadSnapshot load = (SnapshotProtocol.LoadSnapshot) message;
+            ActorRef self = self();
+            ActorRef replyTo = sender();
+            recoveryScheduler.acquire(load.persistenceId()).thenRun(() -> self.tell(new Permitted(load), replyTo));
+        } else if (message instanceof Permitted) {
+            super.aroundReceive(receive, ((Permitted) message).load);
+        } else {
+            super.aroundReceive(receive, message);
+        }
+    }
+
+    @Override
+    public Future<Optional<SelectedSnapshot>> doLoadAsync(String persistenceId, SnapshotSelectionCriteria criteria) {
+        Optional<WarmStateCache.Entry> cached = cache.take(persistenceId);
+
+        if (cached.isPresent()) {
+            WarmStateCache.Entry entry = cached.get();
+            SnapshotMetadata metadata = SnapshotMetadata.apply(persistenceId, entry.sequenceNr, entry.timestamp);
+            if (criteria.matches(metadata)) {
+                SnapshotSelectionCriteria newer = SnapshotSelectionCriteria.create(
+                        criteria.maxSequenceNr(), criteria.maxTimestamp(), entry.sequenceNr + 1, 0);
+                return load(persistenceId, newer).map(new Mapper<Optional<SelectedSnapshot>, Optional<SelectedSnapshot>>() {
+                    @Override
+                    public Optional<SelectedSnapshot> apply(Optional<SelectedSnapshot> snapshot) {
+                        return snapshot.isPresent() ? snapshot : Optional.of(SelectedSnapshot.create(metadata, new WarmStateCache.Cached(entry.durableSequenceNr, entry.state)));
+                    }
+                }, dispatcher());
+            }
+        }
+        return load(persistenceId, criteria);
+    }
+
+    private Future<Optional<SelectedSnapshot>> load(String persistenceId, SnapshotSelectionCriteria criteria) {
+        return ask(delegate, new SnapshotProtocol.LoadSnapshot(persistenceId, criteria, Long.MAX_VALUE), timeout)
+                .flatMap(new Mapper<Object, Future<Optional<SelectedSnapshot>>>() {
+                    @Override
+                    public Future<Optional<SelectedSnapshot>> apply(Object response) {
+                        if (response instanceof SnapshotProtocol.LoadSnapshotResult) {
+                            SnapshotProtocol.LoadSnapshotResult result = (SnapshotProtocol.LoadSnapshotResult) response;
+                            return Futures.successful(Optional.ofNullable(result.snapshot().getOrElse(() -> null)));
+                        } else {
+                            return Futures.failed(((SnapshotProtocol.LoadSnapshotFailed) response).cause());
+                        }
+                    }
+                }, dispatcher());
+    }
+
+    @Override
+    public Future<Void> doSaveAsync(SnapshotMetadata metadata, Object snapshot) {
+        return request(new SnapshotProtocol.SaveSnapshot(metadata, snapshot));
+    }
+
+    @Override
+    public Future<Void> doDeleteAsync(SnapshotMetadata metadata) {
+        cache.invalidate(metadata.persistenceId());
+        return request(new SnapshotProtocol.DeleteSnapshot(metadata));
+    }
+
+    @Override
+    public Future<Void> doDeleteAsync(String persistenceId, SnapshotSelectionCriteria criteria) {
+        cache.invalidate(persistenceId);
+        return request(new SnapshotProtocol.DeleteSnapshots(persistenceId, criteria));
+    }
+
+    private Future<Void> request(SnapshotProtocol.Request request) {
+        return ask(delegate, request, timeout)
+                .flatMap(new Mapper<Object, Future<Void>>() {
+                    @Override
+                    public Future<Void> apply(Object response) {
+                        if (response instanceof SaveSnapshotFailure) {
+                            return Futures.failed(((SaveSnapshotFailure) response).cause());
+                        } else if (response instanceof DeleteSnapshotFailure) {
+                            return Futures.failed(((DeleteSnapshotFailure) response).cause());
+                        } else if (response instanceof DeleteSnapshotsFailure) {
+                            return Futures.failed(((DeleteSnapshotsFailure) response).cause());
+                        } else {
+                            return Futures.successful(null);
+                        }
+                    }
+                }, dispatcher());
+    }
+
+    private ExecutionContext dispatcher() {
+        return context().dispatcher();
+    }
+
+    private static class Permitted {
+        final SnapshotProtocol.LoadSnapshot load;
+
+        Permitted(SnapshotProtocol.LoadSnapshot load) {
+            this.load = load;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package cluster.persistence;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EntityRoutingTableTest {
+    private static final List<Entity.Id> ids = IntStream.range(0, 1000)
+            .mapToObj(i -> new Entity.Id(String.format("entity-%d-%d", i, i * 7919)))
+            .collect(Collectors.toList());
+
+    @Test
+    void idsIncludeNegativeHashCodes() {
+        assertTrue(ids.stream().anyMatch(id -> id.id.hashCode() < 0));
+        assertTrue(ids.stream().anyMatch(id -> id.id.hashCode() > 0));
+    }
+
+    @Test
+    void initialTableRoutesToHomeShard() {
+        EntityRouting.Table table = EntityRouting.Table.initial;
+        assertFalse(table.resharding());
+        for (Entity.Id id : ids) {
+            assertEquals(EntityMessage.shardId(id, EntityMessage.numberOfShards), table.shardId(id));
+            assertEquals(table.shardId(id), table.layoutShardId(id));
+            assertFalse(table.pending(id));
+        }
+    }
+
+    @Test
+    void layoutShardIdsIncludeNegativeIds() {
+        List<String> shardIds = table(15).layoutShardIds();
+        assertEquals(29, shardIds.size());
+        assertTrue(shardIds.contains("-14"));
+        assertTrue(shardIds.contains("0"));
+        assertTrue(shardIds.contains("14"));
+        assertFalse(shardIds.contains("15"));
+        assertFalse(shardIds.contains("-15"));
+    }
+
+    @Test
+    void everyEntityIsInALayoutShard() {
+        EntityRouting.Table table = EntityRouting.Table.initial;
+        List<String> shardIds = table.layoutShardIds();
+        ids.forEach(id -> assertTrue(shardIds.contains(table.layoutShardId(id)), id.toString()));
+        assertTrue(ids.stream().anyMatch(id -> table.layoutShardId(id).startsWith("-")));
+    }
+
+    @Test
+    void pendingEntityHoldsUntilMovedOrReleased() {
+        Entity.Id id = ids.get(0);
+        EntityRouting.Table table = EntityRouting.Table.initial.withPending(id.id, "hot-" + id.id);
+        assertEquals(1, table.version);
+        assertTrue(table.pending(id));
+        assertEquals(EntityMessage.shardId(id, 15), table.shardId(id));
+        assertFalse(table.pending(ids.get(1)));
+
+        EntityRouting.Table moved = table.withMoved(id.id);
+        assertEquals(2, moved.version);
+        assertFalse(moved.pending(id));
+        assertEquals("hot-" + id.id, moved.shardId(id));
+        assertEquals(EntityMessage.shardId(id, 15), moved.layoutShardId(id));
+
+        EntityRouting.Table released = table.withoutPending(id.id);
+        assertEquals(2, released.version);
+        assertFalse(released.pending(id));
+        assertEquals(EntityMessage.shardId(id, 15), released.shardId(id));
+    }
+
+    @Test
+    void reshardFrom15To30() {
+        reshard(15, 30);
+    }
+
+    @Test
+    void reshardFrom15To20() {
+        reshard(15, 20);
+    }
+
+    @Test
+    void reshardFrom30To15() {
+        reshard(30, 15);
+    }
+
+    /**
+     * Migrate every old shard one at a time, checking the route of every entity after each step.
+     */
+    private static void reshard(int from, int to) {
+        EntityRouting.Table table = table(from).withNextNumberOfShards(to);
+        assertTrue(table.resharding());
+        assertEquals(from, table.numberOfShards);
+        assertEquals(to, table.nextNumberOfShards);
+
+        List<String> oldShardIds = table.layoutShardIds();
+        for (String oldShardId : oldShardIds) {
+            long version = table.version;
+            table = table.withMigrating(oldShardId);
+            assertEquals(version + 1, table.version);
+            for (Entity.Id id : ids) {
+                String home = EntityMessage.shardId(id, from);
+                assertEquals(home.equals(oldShardId), table.pending(id), id.toString());
+            }
+
+            table = table.withMigrated(oldShardId);
+            assertEquals(version + 2, table.version);
+            if (table.resharding()) {
+                for (Entity.Id id : ids) {
+                    String home = EntityMessage.shardId(id, from);
+                    boolean migrated = oldShardIds.indexOf(home) <= oldShardIds.indexOf(oldShardId);
+                    assertFalse(table.pending(id), id.toString());
+                    assertEquals(migrated ? EntityMessage.shardId(id, to) : home, table.shardId(id), id.toString());
+                    assertEquals(home, table.layoutShardId(id));
+                }
+            }
+        }
+
+        assertFalse(table.resharding());
+        assertEquals(to, table.numberOfShards);
+        assertTrue(table.migrating.isEmpty());
+        assertTrue(table.migrated.isEmpty());
+        for (Entity.Id id : ids) {
+            assertEquals(EntityMessage.shardId(id, to), table.shardId(id));
+            assertFalse(table.pending(id));
+        }
+    }
+
+    @Test
+    void isolatedEntityKeepsItsShardAcrossAReshard() {
+        Entity.Id hot = ids.get(0);
+        EntityRouting.Table table = EntityRouting.Table.initial
+                .withPending(hot.id, "hot-" + hot.id)
+                .withMoved(hot.id)
+                .withNextNumberOfShards(30);
+
+        String hotHome = table.layoutShardId(hot);
+        table = table.withMigrating(hotHome);
+        assertFalse(table.pending(hot));
+        assertEquals("hot-" + hot.id, table.shardId(hot));
+        table = table.withMigrated(hotHome);
+        assertEquals("hot-" + hot.id, table.shardId(hot));
+
+        for (String oldShardId : table.layoutShardIds()) {
+            if (!table.migrated.contains(oldShardId)) {
+                table = table.withMigrating(oldShardId).withMigrated(oldShardId);
+            }
+        }
+        assertFalse(table.resharding());
+        assertEquals(30, table.numberOfShards);
+        assertEquals("hot-" + hot.id, table.shardId(hot));
+        assertEquals(EntityMessage.shardId(hot, 30), table.layoutShardId(hot));
+    }
+
+    @Test
+    void pendingEntityStaysPendingAcrossAReshard() {
+        Entity.Id id = ids.get(0);
+        EntityRouting.Table table = EntityRouting.Table.initial
+                .withPending(id.id, "hot-" + id.id)
+                .withNextNumberOfShards(30);
+        for (String oldShardId : table.layoutShardIds()) {
+            table = table.withMigrating(oldShardId).withMigrated(oldShardId);
+        }
+        assertFalse(table.resharding());
+        assertTrue(table.pending(id));
+        assertEquals("hot-" + id.id, table.withMoved(id.id).shardId(id));
+    }
+
+    private static EntityRouting.Table table(int numberOfShards) {
+        return new EntityRouting.Table(0, numberOfShards, 0, new HashMap<>(), new HashMap<>(), new HashSet<>(), new HashSet<>());
+    }
+}
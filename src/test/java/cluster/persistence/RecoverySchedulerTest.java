@@ -0,0 +1,137 @@
+package cluster.persistence;
+
+import akka.actor.ActorSystem;
+import com.typesafe.config.ConfigFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RecoverySchedulerTest {
+    private ActorSystem actorSystem;
+
+    private RecoveryScheduler scheduler(int maxConcurrent, String maxWait) {
+        actorSystem = ActorSystem.create("recovery-scheduler-test", ConfigFactory.parseString(String.format(
+                "entity-recovery { enabled = on, max-concurrent = %d, max-wait = %s }", maxConcurrent, maxWait))
+                .withFallback(ConfigFactory.defaultReference()));
+        return RecoveryScheduler.get(actorSystem);
+    }
+
+    @AfterEach
+    void terminate() throws Exception {
+        if (actorSystem != null) {
+            actorSystem.terminate().result(scala.concurrent.duration.Duration.create(10, TimeUnit.SECONDS), null);
+        }
+    }
+
+    @Test
+    void startsUpToTheLimit() {
+        RecoveryScheduler scheduler = scheduler(2, "1h");
+        CompletionStage<?> a = scheduler.acquire("a");
+        CompletionStage<?> b = scheduler.acquire("b");
+        CompletionStage<?> c = scheduler.acquire("c");
+        assertTrue(started(a));
+        assertTrue(started(b));
+        assertFalse(started(c));
+        assertEquals(2L, (long) scheduler.stats().get("running"));
+        assertEquals(1L, (long) scheduler.stats().get("waiting"));
+
+        scheduler.release("a");
+        assertTrue(started(c));
+        assertEquals(2L, (long) scheduler.stats().get("running"));
+        assertEquals(0L, (long) scheduler.stats().get("waiting"));
+    }
+
+    @Test
+    void othersStartInArrivalOrder() {
+        RecoveryScheduler scheduler = scheduler(1, "1h");
+        scheduler.acquire("a");
+        CompletionStage<?> b = scheduler.acquire("b");
+        CompletionStage<?> c = scheduler.acquire("c");
+
+        scheduler.release("a");
+        assertTrue(started(b));
+        assertFalse(started(c));
+        scheduler.release("b");
+        assertTrue(started(c));
+    }
+
+    @Test
+    void commandPendingGoesFirst() {
+        RecoveryScheduler scheduler = scheduler(1, "1h");
+        scheduler.acquire("a");
+        CompletionStage<?> b = scheduler.acquire("b");
+        CompletionStage<?> c = scheduler.acquire("c");
+        scheduler.commandPending("c");
+
+        scheduler.release("a");
+        assertTrue(started(c));
+        assertFalse(started(b));
+        assertEquals(1L, (long) scheduler.stats().get("startedWithCommandFirst"));
+        scheduler.release("c");
+        assertTrue(started(b));
+    }
+
+    @Test
+    void commandPendingBeforeAcquireGoesFirst() {
+        RecoveryScheduler scheduler = scheduler(1, "1h");
+        scheduler.acquire("a");
+        CompletionStage<?> b = scheduler.acquire("b");
+        scheduler.commandPending("c");
+        CompletionStage<?> c = scheduler.acquire("c");
+
+        scheduler.release("a");
+        assertTrue(started(c));
+        assertFalse(started(b));
+    }
+
+    @Test
+    void commandsStartInArrivalOrder() {
+        RecoveryScheduler scheduler = scheduler(1, "1h");
+        scheduler.acquire("a");
+        CompletionStage<?> b = scheduler.acquire("b");
+        CompletionStage<?> c = scheduler.acquire("c");
+        scheduler.commandPending("c");
+        scheduler.commandPending("b");
+
+        scheduler.release("a");
+        assertTrue(started(c));
+        assertFalse(started(b));
+    }
+
+    @Test
+    void releaseOfAWaitingRecoveryLetsItGo() {
+        RecoveryScheduler scheduler = scheduler(1, "1h");
+        scheduler.acquire("a");
+        CompletionStage<?> b = scheduler.acquire("b");
+        CompletionStage<?> c = scheduler.acquire("c");
+
+        scheduler.release("b");
+        assertTrue(started(b));
+        assertFalse(started(c));
+        assertEquals(1L, (long) scheduler.stats().get("running"));
+        assertEquals(1L, (long) scheduler.stats().get("waiting"));
+
+        scheduler.release("a");
+        assertTrue(started(c));
+    }
+
+    @Test
+    void overdueRecoveryStartsOverTheLimit() throws Exception {
+        RecoveryScheduler scheduler = scheduler(1, "100ms");
+        scheduler.acquire("a");
+        CompletionStage<?> b = scheduler.acquire("b");
+        assertFalse(started(b));
+
+        b.toCompletableFuture().get(5, TimeUnit.SECONDS);
+        assertEquals(2L, (long) scheduler.stats().get("running"));
+        assertEquals(1L, (long) scheduler.stats().get("overdue"));
+    }
+
+    private static boolean started(CompletionStage<?> permit) {
+        return permit.toCompletableFuture().isDone();
+    }
+}